@@ -1,26 +1,98 @@
 package io.nextpos.einvoice.common.encryption;
 
 import com.tradevan.geinv.kms.dist.DistKMSService;
+import io.nextpos.einvoice.common.shared.BoundedCache;
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.util.ReflectionUtils;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Derived AES keys are cached per password. Concurrent callers that miss the cache for the same password wait for a single derivation.
+ */
 @Service
 public class EncryptionServiceImpl implements EncryptionService {
 
+    private final MethodHandle getSecretKeyHex;
+
+    private final BoundedCache<String, String> aesKeys;
+
+    private final ConcurrentMap<String, CompletableFuture<String>> pendingAesKeys = new ConcurrentHashMap<>();
+
+    @Autowired
+    public EncryptionServiceImpl(EInvoiceProperties properties) {
+
+        try {
+            final Method method = ReflectionUtils.findMethod(DistKMSService.class, "getSecretKeyHex");
+            ReflectionUtils.makeAccessible(Objects.requireNonNull(method));
+            this.getSecretKeyHex = MethodHandles.lookup().unreflect(method);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to resolve DistKMSService.getSecretKeyHex: " + e.getMessage(), e);
+        }
+
+        final EInvoiceProperties.Encryption settings = properties.getEncryption();
+        this.aesKeys = new BoundedCache<>(settings.getAesKeyCacheSize(), settings.getAesKeyTimeToLive());
+    }
+
     @Override
     public String generateAESKey(String password) {
 
+        final String cachedAesKey = aesKeys.get(password);
+
+        if (cachedAesKey != null) {
+            return cachedAesKey;
+        }
+
+        final CompletableFuture<String> aesKey = new CompletableFuture<>();
+        final CompletableFuture<String> pendingAesKey = pendingAesKeys.putIfAbsent(password, aesKey);
+
+        if (pendingAesKey != null) {
+            return awaitAesKey(pendingAesKey);
+        }
+
         try {
-            final Method getSecretKeyHex = ReflectionUtils.findMethod(DistKMSService.class, "getSecretKeyHex");
-            ReflectionUtils.makeAccessible(Objects.requireNonNull(getSecretKeyHex));
+            final String derivedAesKey = aesKeys.get(password, this::deriveAESKey);
+            aesKey.complete(derivedAesKey);
 
-            return (String) ReflectionUtils.invokeMethod(getSecretKeyHex, new DistKMSService(password));
+            return derivedAesKey;
 
-        } catch (Exception e) {
+        } catch (RuntimeException e) {
+            aesKey.completeExceptionally(e);
+            throw e;
+        } finally {
+            pendingAesKeys.remove(password, aesKey);
+        }
+    }
+
+    private String deriveAESKey(String password) {
+
+        try {
+            return (String) getSecretKeyHex.invokeExact(new DistKMSService(password));
+
+        } catch (Throwable e) {
             throw new RuntimeException("Error while generating aes key: " + e.getMessage(), e);
         }
     }
+
+    private String awaitAesKey(CompletableFuture<String> pendingAesKey) {
+
+        try {
+            return pendingAesKey.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
 }
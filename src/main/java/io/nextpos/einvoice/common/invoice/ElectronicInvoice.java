@@ -1,6 +1,9 @@
 package io.nextpos.einvoice.common.invoice;
 
+import io.nextpos.einvoice.common.invoicenumber.InvoiceNumber;
+import io.nextpos.einvoice.common.shared.BoundedCache;
 import io.nextpos.einvoice.common.shared.EInvoiceBaseObject;
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -10,6 +13,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
@@ -20,15 +24,11 @@ import javax.xml.bind.DatatypeConverter;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.nio.charset.StandardCharsets;
-import java.time.Instant;
+import java.time.Duration;
+import java.time.YearMonth;
 import java.time.ZoneId;
-import java.time.chrono.ChronoZonedDateTime;
-import java.time.chrono.MinguoChronology;
-import java.time.chrono.MinguoDate;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoField;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Date;
 import java.util.List;
 
@@ -40,6 +40,7 @@ import java.util.List;
  * https://invoice.ppmof.gov.tw/web_doc/onlineBook/docs_A4.pdf
  */
 @Document
+@CompoundIndex(name = "seller_ubn_invoice_period_status_index", def = "{'sellerUbn': 1, 'invoicePeriod.year': 1, 'invoicePeriod.startMonth': 1, 'invoiceStatus': 1}")
 @Data
 @EqualsAndHashCode(callSuper = true)
 @NoArgsConstructor
@@ -90,6 +91,11 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
 
     private String qrCode2Content;
 
+    /**
+     * Encoding of the item details in both QR codes.
+     */
+    private QrCodeEncoding qrCodeEncoding;
+
     @Transient
     private String qrCode1ImageBinary;
 
@@ -137,7 +143,7 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
 
     public void updateInvoiceNumber(String invoiceNumber) {
         this.invoiceNumber = invoiceNumber;
-        this.internalInvoiceNumber = invoiceNumber.replace("-", "");
+        this.internalInvoiceNumber = InvoiceNumber.toInternalInvoiceNumber(invoiceNumber);
     }
 
     public void updateSalesAndTaxAmount(BigDecimal salesAmount, BigDecimal taxAmount) {
@@ -161,78 +167,23 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
     }
 
     public void generateCodeContent(String aesKey) {
-        final InvoiceQRCodeEncryptor invoiceQRCodeEncryptor = new InvoiceQRCodeEncryptor(aesKey);
-
-        this.generateBarcodeContent();
-        this.generateQrCode1Content(invoiceQRCodeEncryptor);
-        this.generateQrCode2Content();
-    }
-
-    private void generateBarcodeContent() {
-        barcodeContent = invoicePeriod.formatInvoicePeriod() + internalInvoiceNumber + randomNumber;
+        generateCodeContent(InvoiceQRCodeEncryptor.forKey(aesKey));
     }
 
-    private void generateQrCode1Content(InvoiceQRCodeEncryptor invoiceQRCodeEncryptor) {
+    public void generateCodeContent(InvoiceQRCodeEncryptor invoiceQRCodeEncryptor) {
+        final QrCodeItemLayout itemLayout = InvoiceCodeContentEncoder.layoutItems(this);
 
-        final DateTimeFormatter df = DateTimeFormatter.ofPattern("yyyMMdd")
-                .withChronology(MinguoChronology.INSTANCE)
-                .withZone(ZoneId.of("Asia/Taipei"));
-
-        final StringBuilder qrCodeContent = new StringBuilder();
-        qrCodeContent.append(internalInvoiceNumber);
-        qrCodeContent.append(df.format(invoiceCreatedDate.toInstant()));
-        qrCodeContent.append(randomNumber);
-        qrCodeContent.append(toEightDigitHexadecimal(getSalesAmountWithoutTax()));
-        qrCodeContent.append(toEightDigitHexadecimal(salesAmount));
-        qrCodeContent.append(buyerUbn != null ? buyerUbn : "00000000");
-        qrCodeContent.append(sellerUbn);
-        qrCodeContent.append(encryptInvoiceNumber(invoiceQRCodeEncryptor)).append(":");
-        qrCodeContent.append("**********").append(":");
-
-        qrCodeContent.append(invoiceItems.size()).append(":");
-        qrCodeContent.append(invoiceItems.size()).append(":");
-        qrCodeContent.append("1: "); // 0 Big-5, 1 UTF-8, 2 Base64
-
-//        if (qrCodeContent.length() < 135) {
-//            qrCodeContent.append(" ".repeat(135 - qrCodeContent.length()));
-//        }
-
-        this.qrCode1Content = qrCodeContent.toString();
+        this.barcodeContent = InvoiceCodeContentEncoder.appendBarcodeContent(this, InvoiceCodeContentEncoder.threadLocalBuffer()).toString();
+        this.qrCode1Content = InvoiceCodeContentEncoder.appendQrCode1Content(this, invoiceQRCodeEncryptor, itemLayout, InvoiceCodeContentEncoder.threadLocalBuffer()).toString();
+        this.qrCode2Content = InvoiceCodeContentEncoder.appendQrCode2Content(this, itemLayout, InvoiceCodeContentEncoder.threadLocalBuffer()).toString();
+        this.qrCodeEncoding = itemLayout.getEncoding();
     }
 
-    private String toEightDigitHexadecimal(BigDecimal number) {
-
-        final String hex = Long.toHexString(number.longValue());
-        final StringBuilder leftPadding = new StringBuilder();
-
-        for (int i = 0; i < 8 - hex.length(); i++) {
-            leftPadding.append("0");
-        }
-
-        return leftPadding.append(hex).toString();
-    }
-
-    private String encryptInvoiceNumber(final InvoiceQRCodeEncryptor invoiceQRCodeEncryptor) {
-        return invoiceQRCodeEncryptor.encode(internalInvoiceNumber + randomNumber);
-    }
-
-    private void generateQrCode2Content() {
-
-        final StringBuilder qrCodeContent = new StringBuilder();
-
-        for (final InvoiceItem lineItem : invoiceItems) {
-            qrCodeContent.append(lineItem.getProductName()).append(":")
-                    .append(lineItem.getQuantity()).append(":")
-                    .append(lineItem.getUnitPrice()).append(":");
-        }
-
-        //this.qrCode2Content = "**" + Base64.getEncoder().encodeToString(qrCodeContent.toString().getBytes(StandardCharsets.UTF_8));
-        //this.qrCode2Content = "**" + qrCodeContent.toString();
-        this.qrCode2Content = "**";
-
-//        if (this.qrCode2Content.length() < 135) {
-//            this.qrCode2Content += " ".repeat(135 - this.qrCode2Content.length());
-//        }
+    /**
+     * Invoices generated before the encoding was recorded have UTF-8 item details.
+     */
+    public QrCodeEncoding getQrCodeEncoding() {
+        return qrCodeEncoding != null ? qrCodeEncoding : QrCodeEncoding.UTF8;
     }
 
     public String getQrCode1ContentAsHex() {
@@ -245,12 +196,13 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
 
     private String encodeContentAsHex(String content) {
 
+        final byte[] bytes = content.getBytes(getQrCodeEncoding().getCharset());
         final StringBuilder command = new StringBuilder("1D286B");
-        final String byteLength1 = String.format("%02X", (content.length() + 3) % 256);
-        final String byteLength2 = String.format("%02X", (content.length() + 3) / 256);
+        final String byteLength1 = String.format("%02X", (bytes.length + 3) % 256);
+        final String byteLength2 = String.format("%02X", (bytes.length + 3) / 256);
         command.append(byteLength1).append(byteLength2);
         command.append("315030");
-        command.append(Hex.encodeHex(content.getBytes(StandardCharsets.UTF_8), false));
+        command.append(Hex.encodeHex(bytes, false));
 
         return command.toString();
     }
@@ -263,8 +215,6 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
     @NoArgsConstructor
     public static class InvoicePeriod {
 
-        private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("MM");
-
         /**
          * Minguo year (e.g. 109 = 2020)
          */
@@ -284,19 +234,27 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
          */
         private String endMonth;
 
+        /**
+         * Current period by the system clock.
+         *
+         * @deprecated ignores the Clock of the injected calendar, use InvoicePeriod(InvoicePeriodCalendar) or the period of the invoice number range.
+         */
+        @Deprecated
         public InvoicePeriod(ZoneId zoneId) {
+            this(InvoicePeriodCalendar.getPeriod(YearMonth.now(zoneId)));
+        }
 
-            final ChronoZonedDateTime<MinguoDate> date = MinguoChronology.INSTANCE.zonedDateTime(Instant.now(), zoneId);
-            this.year = String.valueOf(date.get(ChronoField.YEAR));
-            final int month = date.get(ChronoField.MONTH_OF_YEAR);
+        /**
+         * Current period of the calendar, i.e. the same period the current invoice number range is looked up by.
+         */
+        public InvoicePeriod(InvoicePeriodCalendar invoicePeriodCalendar) {
+            this(invoicePeriodCalendar.getCurrentPeriod());
+        }
 
-            if (month % 2 == 0) {
-                this.startMonth = date.minus(1, ChronoUnit.MONTHS).format(FORMATTER);
-                this.endMonth = date.format(FORMATTER);
-            } else {
-                this.startMonth = date.format(FORMATTER);
-                this.endMonth = date.plus(1, ChronoUnit.MONTHS).format(FORMATTER);
-            }
+        public InvoicePeriod(InvoicePeriodCalendar.BimonthlyPeriod period) {
+            this.year = period.getYear();
+            this.startMonth = period.getStartMonth();
+            this.endMonth = period.getEndMonth();
         }
 
         public String formatInvoicePeriod() {
@@ -352,6 +310,9 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
     }
 
     /**
+     * Encryptors are cached per AES key, see forKey. An encryptor can be shared between threads as every thread gets its own
+     * initialized Cipher, so encoding neither parses the key nor initializes a Cipher once a thread has used the encryptor.
+     *
      * @author MrCuteJacky
      * @version 1.0
      */
@@ -372,42 +333,145 @@ public class ElectronicInvoice extends EInvoiceBaseObject {
          */
         private final static String SPEC_KEY = "Dt8lyToo17X/XkXaQvihuA==";
 
+        private final static IvParameterSpec IV_PARAMETER_SPEC = new IvParameterSpec(Base64.getDecoder().decode(SPEC_KEY));
+
+        /**
+         * Encryptors per AES key, with the defaults of EInvoiceProperties.Encryption until configureCache is called.
+         * Each encryptor holds a Cipher per thread and mode, so memory grows with the number of threads times the number of cached keys.
+         */
+        private static volatile BoundedCache<String, InvoiceQRCodeEncryptor> encryptors = new BoundedCache<>(1_000, Duration.ofHours(1));
+
+        private final static char[] BASE64_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+        /**
+         * Invoice number and random number, e.g. AW000023501234
+         */
+        private final static int INVOICE_NUMBER_INPUT_LENGTH = 14;
+
+        private final static ThreadLocal<byte[][]> INVOICE_NUMBER_BUFFERS = ThreadLocal.withInitial(() -> new byte[][]{new byte[INVOICE_NUMBER_INPUT_LENGTH], new byte[32]});
+
         private final SecretKeySpec secretKeySpec;
 
-        private final Cipher cipher;
+        private final ThreadLocal<Cipher> encryptCipher;
 
-        private final IvParameterSpec ivParameterSpec;
+        private final ThreadLocal<Cipher> decryptCipher;
 
         public InvoiceQRCodeEncryptor(String aesKey) {
 
             try {
-                ivParameterSpec = new IvParameterSpec(DatatypeConverter.parseBase64Binary(SPEC_KEY));
                 secretKeySpec = new SecretKeySpec(DatatypeConverter.parseHexBinary(aesKey), TYPE_SPEC);
-                cipher = Cipher.getInstance(TYPE_INIT);
             } catch (Exception e) {
                 throw new RuntimeException("Unable to create QR Code Encryptor: " + e.getMessage());
             }
 
+            encryptCipher = ThreadLocal.withInitial(() -> createCipher(Cipher.ENCRYPT_MODE));
+            decryptCipher = ThreadLocal.withInitial(() -> createCipher(Cipher.DECRYPT_MODE));
+        }
+
+        /**
+         * Returns the cached encryptor of the AES key, creating it on first use.
+         */
+        public static InvoiceQRCodeEncryptor forKey(String aesKey) {
+            return encryptors.get(aesKey, InvoiceQRCodeEncryptor::new);
+        }
+
+        /**
+         * Replaces the encryptor cache, dropping the encryptors cached so far.
+         */
+        public static void configureCache(int maximumSize, Duration timeToLive) {
+            encryptors = new BoundedCache<>(maximumSize, timeToLive);
         }
 
         public String encode(String input) {
 
             try {
-                cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-                byte[] encoded = cipher.doFinal(input.getBytes());
+                byte[] encoded = encryptCipher.get().doFinal(input.getBytes(StandardCharsets.UTF_8));
+
+                return Base64.getEncoder().encodeToString(encoded);
+            } catch (Exception e) {
+                encryptCipher.remove();
+                throw new RuntimeException("Unable to encrypt string: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Same as encode(internalInvoiceNumber + randomNumber), but encrypts and Base64 encodes through per-thread buffers straight into output.
+         */
+        public void encodeInvoiceNumberTo(String internalInvoiceNumber, String randomNumber, StringBuilder output) {
+
+            if (internalInvoiceNumber.length() + randomNumber.length() != INVOICE_NUMBER_INPUT_LENGTH) {
+                output.append(encode(internalInvoiceNumber + randomNumber));
+                return;
+            }
+
+            final byte[][] buffers = INVOICE_NUMBER_BUFFERS.get();
+            final byte[] input = buffers[0];
+            final byte[] encrypted = buffers[1];
+            int position = 0;
+
+            for (int i = 0; i < internalInvoiceNumber.length(); i++) {
+                input[position++] = (byte) internalInvoiceNumber.charAt(i);
+            }
+
+            for (int i = 0; i < randomNumber.length(); i++) {
+                input[position++] = (byte) randomNumber.charAt(i);
+            }
+
+            final int encryptedLength;
 
-                return DatatypeConverter.printBase64Binary(encoded);
+            try {
+                encryptedLength = encryptCipher.get().doFinal(input, 0, INVOICE_NUMBER_INPUT_LENGTH, encrypted, 0);
             } catch (Exception e) {
+                encryptCipher.remove();
                 throw new RuntimeException("Unable to encrypt string: " + e.getMessage());
             }
+
+            appendBase64(encrypted, encryptedLength, output);
         }
 
         public String decode(String input) throws Exception {
 
-            cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
-            byte[] decoded = DatatypeConverter.parseBase64Binary(input);
+            byte[] decoded = Base64.getDecoder().decode(input);
+
+            try {
+                return new String(decryptCipher.get().doFinal(decoded), StandardCharsets.UTF_8);
+            } catch (Exception e) {
+                decryptCipher.remove();
+                throw e;
+            }
+        }
+
+        private static void appendBase64(byte[] bytes, int length, StringBuilder output) {
+
+            int i = 0;
+
+            for (; i + 3 <= length; i += 3) {
+                final int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8 | (bytes[i + 2] & 0xFF);
+                output.append(BASE64_DIGITS[bits >>> 18]).append(BASE64_DIGITS[bits >>> 12 & 0x3F]).append(BASE64_DIGITS[bits >>> 6 & 0x3F]).append(BASE64_DIGITS[bits & 0x3F]);
+            }
+
+            if (i + 1 == length) {
+                final int bits = (bytes[i] & 0xFF) << 16;
+                output.append(BASE64_DIGITS[bits >>> 18]).append(BASE64_DIGITS[bits >>> 12 & 0x3F]).append("==");
+            } else if (i + 2 == length) {
+                final int bits = (bytes[i] & 0xFF) << 16 | (bytes[i + 1] & 0xFF) << 8;
+                output.append(BASE64_DIGITS[bits >>> 18]).append(BASE64_DIGITS[bits >>> 12 & 0x3F]).append(BASE64_DIGITS[bits >>> 6 & 0x3F]).append('=');
+            }
+        }
+
+        /**
+         * doFinal resets a Cipher to its initialized state, so the same IV and key are used for every call without calling init again.
+         */
+        private Cipher createCipher(int mode) {
 
-            return new String(cipher.doFinal(decoded));
+            try {
+                final Cipher cipher = Cipher.getInstance(TYPE_INIT);
+                cipher.init(mode, secretKeySpec, IV_PARAMETER_SPEC);
+
+                return cipher;
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to create QR Code Encryptor: " + e.getMessage());
+            }
         }
     }
 }
@@ -5,7 +5,7 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 import java.util.List;
 import java.util.Optional;
 
-public interface ElectronicInvoiceRepository extends MongoRepository<ElectronicInvoice, String> {
+public interface ElectronicInvoiceRepository extends MongoRepository<ElectronicInvoice, String>, ElectronicInvoiceRepositoryCustom {
 
     Optional<ElectronicInvoice> findByInternalInvoiceNumber(String internalInvoiceNumber);
 
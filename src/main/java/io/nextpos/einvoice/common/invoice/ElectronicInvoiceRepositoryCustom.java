@@ -0,0 +1,19 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.KeysetPage;
+
+import java.util.stream.Stream;
+
+/**
+ * Cursor-backed and keyset-paginated variants of the list queries, for backlogs that should not be loaded onto the heap at once.
+ * Streams hold a cursor and must be closed.
+ */
+public interface ElectronicInvoiceRepositoryCustom {
+
+    Stream<ElectronicInvoice> streamAllByClientIdAndInvoiceStatus(String clientId, ElectronicInvoice.InvoiceStatus invoiceStatus);
+
+    /**
+     * @param afterId nextKey of the previous page, null for the first page.
+     */
+    KeysetPage<ElectronicInvoice> findPageByClientIdAndInvoiceStatus(String clientId, ElectronicInvoice.InvoiceStatus invoiceStatus, String afterId, int pageSize);
+}
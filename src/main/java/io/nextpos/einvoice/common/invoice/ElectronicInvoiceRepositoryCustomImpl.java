@@ -0,0 +1,56 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import io.nextpos.einvoice.common.shared.KeysetPage;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.StreamUtils;
+
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+public class ElectronicInvoiceRepositoryCustomImpl implements ElectronicInvoiceRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final int cursorBatchSize;
+
+    @Autowired
+    public ElectronicInvoiceRepositoryCustomImpl(MongoTemplate mongoTemplate, EInvoiceProperties properties) {
+        this.mongoTemplate = mongoTemplate;
+        this.cursorBatchSize = properties.getStreaming().getCursorBatchSize();
+    }
+
+    @Override
+    public Stream<ElectronicInvoice> streamAllByClientIdAndInvoiceStatus(String clientId, ElectronicInvoice.InvoiceStatus invoiceStatus) {
+
+        final Query query = Query.query(clientIdAndInvoiceStatus(clientId, invoiceStatus)).with(Sort.by("_id")).cursorBatchSize(cursorBatchSize);
+
+        return StreamUtils.createStreamFromIterator(mongoTemplate.stream(query, ElectronicInvoice.class));
+    }
+
+    @Override
+    public KeysetPage<ElectronicInvoice> findPageByClientIdAndInvoiceStatus(String clientId, ElectronicInvoice.InvoiceStatus invoiceStatus, String afterId, int pageSize) {
+
+        KeysetPage.checkPageSize(pageSize);
+
+        final Criteria criteria = clientIdAndInvoiceStatus(clientId, invoiceStatus);
+
+        if (afterId != null) {
+            criteria.and("_id").gt(new ObjectId(afterId));
+        }
+
+        final Query query = Query.query(criteria).with(Sort.by("_id")).limit(pageSize + 1);
+
+        return KeysetPage.of(mongoTemplate.find(query, ElectronicInvoice.class), pageSize, ElectronicInvoice::getId);
+    }
+
+    private Criteria clientIdAndInvoiceStatus(String clientId, ElectronicInvoice.InvoiceStatus invoiceStatus) {
+        return where("clientId").is(clientId).and("invoiceStatus").is(invoiceStatus);
+    }
+}
@@ -0,0 +1,309 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.BoundedCache;
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.Objects;
+
+/**
+ * Renders the electronic invoice print layout (電子發票證明聯) as ESC/POS commands, written as bytes rather than hex strings.
+ * <p>
+ * The seller header is rendered once per seller and reused as a byte template. Text is encoded in the configured printer charset,
+ * QR code content in the encoding declared in QR code 1.
+ */
+@Component
+public class EscPosReceiptRenderer {
+
+    private static final byte ESC = 0x1B;
+
+    private static final byte GS = 0x1D;
+
+    private static final byte LF = 0x0A;
+
+    private static final byte[] INITIALIZE = {ESC, '@'};
+
+    private static final byte[] ALIGN_LEFT = {ESC, 'a', 0};
+
+    private static final byte[] ALIGN_CENTER = {ESC, 'a', 1};
+
+    private static final byte[] NORMAL_SIZE = {GS, '!', 0x00};
+
+    private static final byte[] DOUBLE_SIZE = {GS, '!', 0x11};
+
+    /**
+     * Barcode height 64 dots, narrowest module width and no human readable text.
+     */
+    private static final byte[] BARCODE_SETUP = {GS, 'h', 64, GS, 'w', 1, GS, 'H', 0};
+
+    /**
+     * Model 2 and error correction level L.
+     */
+    private static final byte[] QR_CODE_SETUP = {GS, '(', 'k', 4, 0, 49, 65, 50, 0, GS, '(', 'k', 3, 0, 49, 69, 48};
+
+    private static final byte[] QR_CODE_PRINT = {GS, '(', 'k', 3, 0, 49, 81, 48};
+
+    private static final byte[] PARTIAL_CUT = {GS, 'V', 66, 0};
+
+    /**
+     * GS k m=69 (CODE39) n
+     */
+    private static final byte CODE39 = 69;
+
+    private static final String TITLE = "電子發票證明聯";
+
+    /**
+     * Alignment and size commands plus line feeds of the seller header, besides its text.
+     */
+    private static final int SELLER_HEADER_COMMAND_LENGTH = ALIGN_CENTER.length + DOUBLE_SIZE.length + NORMAL_SIZE.length + 3;
+
+    /**
+     * A receipt is a few hundred bytes. The per-thread buffer never grows past this, so a rendering bug cannot grow it without bound.
+     */
+    private static final int MAXIMUM_BUFFER_SIZE = 1 << 20;
+
+    private static final DateTimeFormatter DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(InvoicePeriodCalendar.ZONE_ID);
+
+    private final Charset charset;
+
+    private final int qrCodeModuleSize;
+
+    private final int bufferSize;
+
+    private final BoundedCache<String, SellerHeader> sellerHeaders;
+
+    private final ThreadLocal<CharsetEncoder> textEncoders;
+
+    private final ThreadLocal<CharsetEncoder> utf8QrCodeEncoders = ThreadLocal.withInitial(() -> newEncoder(StandardCharsets.UTF_8));
+
+    private final ThreadLocal<CharsetEncoder> big5QrCodeEncoders = ThreadLocal.withInitial(() -> newEncoder(QrCodeEncoding.BIG5.getCharset()));
+
+    private final ThreadLocal<StringBuilder> lines = ThreadLocal.withInitial(() -> new StringBuilder(64));
+
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    @Autowired
+    public EscPosReceiptRenderer(EInvoiceProperties properties) {
+
+        final EInvoiceProperties.Receipt settings = properties.getReceipt();
+        this.charset = Charset.forName(settings.getCharset());
+        this.qrCodeModuleSize = settings.getQrCodeModuleSize();
+        this.bufferSize = settings.getBufferSize();
+        this.sellerHeaders = new BoundedCache<>(settings.getSellerTemplateCacheSize(), null);
+        this.textEncoders = ThreadLocal.withInitial(() -> newEncoder(charset));
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(bufferSize));
+    }
+
+    /**
+     * Renders the receipt at the buffer's position and returns the number of bytes written.
+     *
+     * @throws BufferOverflowException if the receipt does not fit into the remaining buffer.
+     */
+    public int render(ElectronicInvoice electronicInvoice, ByteBuffer buffer) {
+
+        final int start = buffer.position();
+
+        buffer.put(INITIALIZE);
+        buffer.put(sellerHeader(electronicInvoice));
+
+        buffer.put(DOUBLE_SIZE);
+        final ElectronicInvoice.InvoicePeriod invoicePeriod = electronicInvoice.getInvoicePeriod();
+        writeLine(line().append(invoicePeriod.getYear()).append('年').append(invoicePeriod.getStartMonth()).append('-').append(invoicePeriod.getEndMonth()).append('月'), buffer);
+        writeLine(line().append(electronicInvoice.getInvoiceNumber()), buffer);
+        buffer.put(NORMAL_SIZE);
+
+        buffer.put(ALIGN_LEFT);
+        final StringBuilder dateTime = line();
+        DATE_TIME_FORMATTER.formatTo(electronicInvoice.getInvoiceCreatedDate().toInstant(), dateTime);
+        writeLine(dateTime, buffer);
+        writeLine(appendAmount(line().append("隨機碼 ").append(electronicInvoice.getRandomNumber()).append("    總計 "), electronicInvoice.getSalesAmount()), buffer);
+
+        final StringBuilder ubns = line().append("賣方 ").append(electronicInvoice.getSellerUbn());
+
+        if (electronicInvoice.getBuyerUbn() != null) {
+            ubns.append("    買方 ").append(electronicInvoice.getBuyerUbn());
+        }
+
+        writeLine(ubns, buffer);
+
+        buffer.put(ALIGN_CENTER);
+        writeBarcode(electronicInvoice.getBarcodeContent(), buffer);
+        final CharsetEncoder qrCodeEncoder = electronicInvoice.getQrCodeEncoding() == QrCodeEncoding.BIG5 ? big5QrCodeEncoders.get() : utf8QrCodeEncoders.get();
+        writeQrCode(electronicInvoice.getQrCode1Content(), qrCodeEncoder, buffer);
+        writeQrCode(electronicInvoice.getQrCode2Content(), qrCodeEncoder, buffer);
+
+        buffer.put(LF);
+        buffer.put(PARTIAL_CUT);
+
+        return buffer.position() - start;
+    }
+
+    /**
+     * Renders the receipt into a per-thread buffer and writes it to the channel.
+     */
+    public void render(ElectronicInvoice electronicInvoice, WritableByteChannel channel) throws IOException {
+
+        ByteBuffer buffer = buffers.get();
+
+        while (true) {
+            buffer.clear();
+
+            try {
+                render(electronicInvoice, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= MAXIMUM_BUFFER_SIZE) {
+                    throw new IllegalStateException("Receipt exceeds " + MAXIMUM_BUFFER_SIZE + " bytes: " + electronicInvoice.getInvoiceNumber(), e);
+                }
+
+                buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAXIMUM_BUFFER_SIZE));
+                buffers.set(buffer);
+            }
+        }
+
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public void evictSellerHeader(String sellerUbn) {
+        sellerHeaders.remove(sellerUbn);
+    }
+
+    private byte[] sellerHeader(ElectronicInvoice electronicInvoice) {
+
+        final SellerHeader sellerHeader = sellerHeaders.get(electronicInvoice.getSellerUbn());
+
+        if (sellerHeader != null && sellerHeader.matches(electronicInvoice)) {
+            return sellerHeader.bytes;
+        }
+
+        final String sellerName = Objects.toString(electronicInvoice.getSellerName(), "");
+        final String sellerAddress = electronicInvoice.getSellerAddress();
+        final int textLength = sellerName.length() + TITLE.length() + (sellerAddress != null ? sellerAddress.length() : 0);
+        final int maximumTextBytes = (int) Math.ceil(textLength * (double) textEncoders.get().maxBytesPerChar());
+
+        final ByteBuffer buffer = ByteBuffer.allocate(SELLER_HEADER_COMMAND_LENGTH + maximumTextBytes);
+        buffer.put(ALIGN_CENTER);
+        buffer.put(DOUBLE_SIZE);
+        writeLine(line().append(sellerName), buffer);
+        writeLine(line().append(TITLE), buffer);
+        buffer.put(NORMAL_SIZE);
+
+        if (sellerAddress != null) {
+            writeLine(line().append(sellerAddress), buffer);
+        }
+
+        final byte[] bytes = new byte[buffer.position()];
+        buffer.flip().get(bytes);
+        sellerHeaders.put(electronicInvoice.getSellerUbn(), new SellerHeader(electronicInvoice.getSellerName(), electronicInvoice.getSellerAddress(), bytes));
+
+        return bytes;
+    }
+
+    private void writeBarcode(String content, ByteBuffer buffer) {
+
+        buffer.put(BARCODE_SETUP);
+        buffer.put(GS).put((byte) 'k').put(CODE39).put((byte) content.length());
+
+        for (int i = 0; i < content.length(); i++) {
+            buffer.put((byte) content.charAt(i));
+        }
+
+        buffer.put(LF);
+    }
+
+    /**
+     * GS ( k pL pH 49 80 48 d1...dk stores the content, pL and pH being the content length + 3. The length is written once the content is encoded.
+     */
+    private void writeQrCode(String content, CharsetEncoder encoder, ByteBuffer buffer) {
+
+        buffer.put(QR_CODE_SETUP);
+        buffer.put(GS).put((byte) '(').put((byte) 'k').put((byte) 3).put((byte) 0).put((byte) 49).put((byte) 67).put((byte) qrCodeModuleSize);
+
+        buffer.put(GS).put((byte) '(').put((byte) 'k');
+        final int lengthPosition = buffer.position();
+        buffer.put((byte) 0).put((byte) 0).put((byte) 49).put((byte) 80).put((byte) 48);
+
+        final int contentStart = buffer.position();
+        encode(content, encoder, buffer);
+        final int length = buffer.position() - contentStart + 3;
+
+        buffer.put(lengthPosition, (byte) (length % 256));
+        buffer.put(lengthPosition + 1, (byte) (length / 256));
+        buffer.put(QR_CODE_PRINT);
+    }
+
+    private StringBuilder line() {
+
+        final StringBuilder line = lines.get();
+        line.setLength(0);
+
+        return line;
+    }
+
+    private StringBuilder appendAmount(StringBuilder line, BigDecimal amount) {
+
+        if (amount.scale() == 0) {
+            return line.append(amount.longValue());
+        }
+
+        return line.append(amount.toPlainString());
+    }
+
+    private void writeLine(CharSequence text, ByteBuffer buffer) {
+        encode(text, textEncoders.get(), buffer);
+        buffer.put(LF);
+    }
+
+    private static void encode(CharSequence text, CharsetEncoder encoder, ByteBuffer buffer) {
+
+        encoder.reset();
+        final CoderResult result = encoder.encode(CharBuffer.wrap(text), buffer, true);
+
+        if (result.isOverflow() || encoder.flush(buffer).isOverflow()) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    private static CharsetEncoder newEncoder(Charset charset) {
+        return charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    private static class SellerHeader {
+
+        private final String sellerName;
+
+        private final String sellerAddress;
+
+        private final byte[] bytes;
+
+        SellerHeader(String sellerName, String sellerAddress, byte[] bytes) {
+            this.sellerName = sellerName;
+            this.sellerAddress = sellerAddress;
+            this.bytes = bytes;
+        }
+
+        boolean matches(ElectronicInvoice electronicInvoice) {
+            return Objects.equals(sellerName, electronicInvoice.getSellerName()) && Objects.equals(sellerAddress, electronicInvoice.getSellerAddress());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package io.nextpos.einvoice.common.invoice;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Turnkey results exported to a CSV file with the header sequence,invoiceIdentifier,status,message and rows in sequence order.
+ * Also serves as an offline stand-in for the Turnkey database.
+ * <p>
+ * The byte offset after the last row read is kept, so consecutive fetches continue from there instead of reading the file from the start.
+ * The offset reached by each fetch is also kept as a checkpoint, so a fetch that goes back, e.g. after the high-water mark was held, resumes
+ * from the closest checkpoint at or before afterSequence.
+ * Rows are read once they end with a line separator, as the file may still be appended to.
+ */
+public class FileTurnkeyResultSource implements TurnkeyResultSource {
+
+    public static final String HEADER = "sequence,invoiceIdentifier,status,message";
+
+    private static final int MAX_CHECKPOINTS = 1_024;
+
+    private final Path resultFile;
+
+    private long position;
+
+    private long positionSequence = Long.MIN_VALUE;
+
+    /**
+     * Sequence of the last row read by a fetch, to the byte offset after that row.
+     */
+    private final NavigableMap<Long, Long> checkpoints = new TreeMap<>();
+
+    public FileTurnkeyResultSource(Path resultFile) {
+        this.resultFile = resultFile;
+    }
+
+    @Override
+    public String getName() {
+        return "file:" + resultFile.toAbsolutePath();
+    }
+
+    @Override
+    public synchronized List<TurnkeyResult> fetchResults(long afterSequence, int limit) {
+
+        final List<TurnkeyResult> results = new ArrayList<>();
+
+        if (!Files.exists(resultFile)) {
+            return results;
+        }
+
+        try (FileChannel channel = FileChannel.open(resultFile, StandardOpenOption.READ)) {
+            if (channel.size() < position) {
+                checkpoints.clear();
+            }
+
+            if (afterSequence < positionSequence || channel.size() < position) {
+                final Map.Entry<Long, Long> checkpoint = checkpoints.floorEntry(afterSequence);
+                position = checkpoint != null ? checkpoint.getValue() : 0;
+                positionSequence = checkpoint != null ? checkpoint.getKey() : Long.MIN_VALUE;
+            }
+
+            final InputStream inputStream = new BufferedInputStream(Channels.newInputStream(channel.position(position)));
+            final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+            int nextByte;
+
+            while (results.size() < limit && (nextByte = inputStream.read()) != -1) {
+                if (nextByte != '\n') {
+                    lineBuffer.write(nextByte);
+                    continue;
+                }
+
+                final String line = StringUtils.removeEnd(lineBuffer.toString(StandardCharsets.UTF_8), "\r");
+                position += lineBuffer.size() + 1;
+                lineBuffer.reset();
+
+                if (StringUtils.isBlank(line) || line.startsWith(HEADER)) {
+                    continue;
+                }
+
+                final String[] columns = line.split(",", 4);
+                final long sequence = Long.parseLong(columns[0].trim());
+                positionSequence = sequence;
+
+                if (sequence > afterSequence) {
+                    results.add(new TurnkeyResult(sequence,
+                            columns[1].trim(),
+                            PendingEInvoiceQueue.PendingEInvoiceStatus.valueOf(columns[2].trim()),
+                            columns.length > 3 ? columns[3] : null));
+                }
+            }
+
+            saveCheckpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Turnkey results cannot be read: " + resultFile, e);
+        }
+
+        return results;
+    }
+
+    private void saveCheckpoint() {
+
+        if (positionSequence == Long.MIN_VALUE) {
+            return;
+        }
+
+        checkpoints.put(positionSequence, position);
+
+        if (checkpoints.size() > MAX_CHECKPOINTS) {
+            checkpoints.pollFirstEntry();
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+
+import java.math.BigDecimal;
+import java.nio.charset.CharsetEncoder;
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes the barcode, QR code 1 and QR code 2 content of an electronic invoice into a caller supplied StringBuilder.
+ * Item details are laid out across both QR codes by layoutItems.
+ * <p>
+ * Dates are converted to Minguo calendar arithmetically and amounts are written through a lookup table, so encoding does not allocate
+ * formatters or intermediate strings. Reusing the StringBuilder across invoices, see threadLocalBuffer, makes encoding garbage free
+ * apart from the content strings that are finally stored on the invoice.
+ */
+public final class InvoiceCodeContentEncoder {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final int MINGUO_YEAR_OFFSET = 1911;
+
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    /**
+     * Taiwan has kept UTC+8 without daylight saving time since 1980.
+     */
+    private static final long TAIPEI_OFFSET_MILLIS = 8 * 3_600_000L;
+
+    /**
+     * 1980-01-01T00:00+08:00
+     */
+    private static final long FIXED_OFFSET_SINCE_MILLIS = 315_504_000_000L;
+
+    private static final String NO_BUYER_UBN = "00000000";
+
+    private static final String QR_CODE_1_CUSTOM_AREA = "**********";
+
+    private static final String QR_CODE_2_PREFIX = "**";
+
+    /**
+     * Byte capacity of a version 8 QR code at error correction level L. Denser codes do not scan reliably from thermal receipts.
+     */
+    static final int MAX_QR_CODE_BYTES = 192;
+
+    /**
+     * QR code 1 up to the item counts: 77 characters of invoice information and encrypted verification code, then :**********:
+     */
+    private static final int QR_CODE_1_FIXED_LENGTH = 77 + QR_CODE_1_CUSTOM_AREA.length() + 2;
+
+    private static final ThreadLocal<CharsetEncoder> BIG5_ENCODERS = ThreadLocal.withInitial(() -> QrCodeEncoding.BIG5.getCharset().newEncoder());
+
+    private static final ThreadLocal<StringBuilder> ITEM_BUFFERS = ThreadLocal.withInitial(() -> new StringBuilder(64));
+
+    private static final ThreadLocal<StringBuilder> BUFFERS = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    private InvoiceCodeContentEncoder() {
+    }
+
+    /**
+     * Returns an empty StringBuilder that belongs to the calling thread. It is reused by the next call on the same thread.
+     */
+    public static StringBuilder threadLocalBuffer() {
+
+        final StringBuilder buffer = BUFFERS.get();
+        buffer.setLength(0);
+
+        return buffer;
+    }
+
+    /**
+     * Invoice period (Minguo year and end month), invoice number and random number.
+     */
+    public static StringBuilder appendBarcodeContent(ElectronicInvoice electronicInvoice, StringBuilder buffer) {
+
+        final ElectronicInvoice.InvoicePeriod invoicePeriod = electronicInvoice.getInvoicePeriod();
+
+        return buffer.append(invoicePeriod.getYear())
+                .append(invoicePeriod.getEndMonth())
+                .append(electronicInvoice.getInternalInvoiceNumber())
+                .append(electronicInvoice.getRandomNumber());
+    }
+
+    /**
+     * Decides the encoding of the item details and how many items go into QR code 1 and QR code 2.
+     * <p>
+     * Big5 is chosen when every item name can be encoded in Big5 and that is smaller than UTF-8, which is the case for any Chinese text.
+     * Items are packed in order, first after the QR code 1 header and then after the QR code 2 prefix, each code staying within
+     * MAX_QR_CODE_BYTES. Packing stops at the first item that does not fit, so the same items always produce the same content.
+     */
+    public static QrCodeItemLayout layoutItems(ElectronicInvoice electronicInvoice) {
+
+        final List<ElectronicInvoice.InvoiceItem> items = electronicInvoice.getInvoiceItems();
+        final int itemCount = items.size();
+        final int[] utf8Lengths = new int[itemCount];
+        final int[] big5Lengths = new int[itemCount];
+        boolean big5Encodable = true;
+        int utf8Total = 0;
+        int big5Total = 0;
+
+        final CharsetEncoder big5Encoder = BIG5_ENCODERS.get();
+        final StringBuilder itemText = ITEM_BUFFERS.get();
+
+        for (int i = 0; i < itemCount; i++) {
+            itemText.setLength(0);
+            appendItem(items.get(i), itemText);
+
+            int utf8Length = 0;
+            int big5Length = 0;
+
+            for (int j = 0; j < itemText.length(); j++) {
+                final char c = itemText.charAt(j);
+
+                if (c < 0x80) {
+                    utf8Length++;
+                    big5Length++;
+                } else if (c < 0x800) {
+                    utf8Length += 2;
+                    big5Length += 2;
+                    big5Encodable = big5Encodable && big5Encoder.canEncode(c);
+                } else if (Character.isHighSurrogate(c)) {
+                    utf8Length += 4;
+                    big5Encodable = false;
+                } else if (!Character.isLowSurrogate(c)) {
+                    utf8Length += 3;
+                    big5Length += 2;
+                    big5Encodable = big5Encodable && big5Encoder.canEncode(c);
+                }
+            }
+
+            utf8Lengths[i] = utf8Length;
+            big5Lengths[i] = big5Length;
+            utf8Total += utf8Length;
+            big5Total += big5Length;
+        }
+
+        final boolean big5 = big5Encodable && big5Total < utf8Total;
+        final int[] lengths = big5 ? big5Lengths : utf8Lengths;
+
+        // the recorded and total item counts are bounded by the number of digits of the total item count
+        final int qrCode1HeaderLength = QR_CODE_1_FIXED_LENGTH + 2 * (Integer.toString(itemCount).length() + 1) + 2;
+        final int qrCode1ItemCount = packItems(lengths, 0, MAX_QR_CODE_BYTES - qrCode1HeaderLength);
+        final int qrCode2ItemCount = packItems(lengths, qrCode1ItemCount, MAX_QR_CODE_BYTES - QR_CODE_2_PREFIX.length());
+
+        return new QrCodeItemLayout(big5 ? QrCodeEncoding.BIG5 : QrCodeEncoding.UTF8, qrCode1ItemCount, qrCode2ItemCount, itemCount);
+    }
+
+    public static StringBuilder appendQrCode1Content(ElectronicInvoice electronicInvoice, ElectronicInvoice.InvoiceQRCodeEncryptor encryptor, QrCodeItemLayout itemLayout, StringBuilder buffer) {
+
+        final String buyerUbn = electronicInvoice.getBuyerUbn();
+
+        buffer.append(electronicInvoice.getInternalInvoiceNumber());
+        appendMinguoDate(electronicInvoice.getInvoiceCreatedDate(), buffer);
+        buffer.append(electronicInvoice.getRandomNumber());
+        appendEightDigitHexadecimal(amountWithoutTax(electronicInvoice.getSalesAmount(), electronicInvoice.getTaxAmount()), buffer);
+        appendEightDigitHexadecimal(electronicInvoice.getSalesAmount().longValue(), buffer);
+        buffer.append(buyerUbn != null ? buyerUbn : NO_BUYER_UBN);
+        buffer.append(electronicInvoice.getSellerUbn());
+
+        encryptor.encodeInvoiceNumberTo(electronicInvoice.getInternalInvoiceNumber(), electronicInvoice.getRandomNumber(), buffer);
+        buffer.append(':');
+
+        buffer.append(QR_CODE_1_CUSTOM_AREA).append(':');
+        buffer.append(itemLayout.getRecordedItemCount()).append(':');
+        buffer.append(itemLayout.getTotalItemCount()).append(':');
+        buffer.append(itemLayout.getEncoding().getCode()).append(':');
+
+        appendItems(electronicInvoice.getInvoiceItems(), 0, itemLayout.getQrCode1ItemCount(), buffer);
+
+        return buffer;
+    }
+
+    public static StringBuilder appendQrCode2Content(ElectronicInvoice electronicInvoice, QrCodeItemLayout itemLayout, StringBuilder buffer) {
+
+        buffer.append(QR_CODE_2_PREFIX);
+        appendItems(electronicInvoice.getInvoiceItems(), itemLayout.getQrCode1ItemCount(), itemLayout.getRecordedItemCount(), buffer);
+
+        return buffer;
+    }
+
+    /**
+     * Writes the date in Taipei time as yyyMMdd in Minguo calendar, e.g. 1091031.
+     */
+    public static void appendMinguoDate(Date date, StringBuilder buffer) {
+
+        final long epochMilli = date.getTime();
+
+        if (epochMilli < FIXED_OFFSET_SINCE_MILLIS) {
+            final LocalDate localDate = date.toInstant().atZone(InvoicePeriodCalendar.ZONE_ID).toLocalDate();
+            appendMinguoDate(localDate.getYear(), localDate.getMonthValue(), localDate.getDayOfMonth(), buffer);
+            return;
+        }
+
+        // civil date from epoch day, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+        final long epochDay = Math.floorDiv(epochMilli + TAIPEI_OFFSET_MILLIS, MILLIS_PER_DAY);
+        final long z = epochDay + 719_468;
+        final long era = Math.floorDiv(z, 146_097);
+        final long dayOfEra = z - era * 146_097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1_460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long shiftedMonth = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+        final int month = (int) (shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9);
+        final int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        appendMinguoDate(year, month, day, buffer);
+    }
+
+    /**
+     * Lower case hexadecimal, left padded with zeros to at least eight digits.
+     */
+    public static void appendEightDigitHexadecimal(long number, StringBuilder buffer) {
+
+        final int digits = Math.max(8, (Long.SIZE - Long.numberOfLeadingZeros(number) + 3) / 4);
+
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer.append(HEX_DIGITS[(int) (number >>> shift) & 0xF]);
+        }
+    }
+
+    private static void appendMinguoDate(int year, int month, int day, StringBuilder buffer) {
+
+        final int minguoYear = year - MINGUO_YEAR_OFFSET;
+
+        buffer.append((char) ('0' + minguoYear / 100 % 10))
+                .append((char) ('0' + minguoYear / 10 % 10))
+                .append((char) ('0' + minguoYear % 10))
+                .append((char) ('0' + month / 10))
+                .append((char) ('0' + month % 10))
+                .append((char) ('0' + day / 10))
+                .append((char) ('0' + day % 10));
+    }
+
+    /**
+     * Returns how many items, starting at from, fit into availableBytes. Items after the first are preceded by a colon.
+     */
+    private static int packItems(int[] lengths, int from, int availableBytes) {
+
+        int remainingBytes = availableBytes;
+        int count = 0;
+
+        for (int i = from; i < lengths.length; i++) {
+            remainingBytes -= lengths[i] + (count > 0 ? 1 : 0);
+
+            if (remainingBytes < 0) {
+                break;
+            }
+
+            count++;
+        }
+
+        return count;
+    }
+
+    private static void appendItems(List<ElectronicInvoice.InvoiceItem> items, int from, int to, StringBuilder buffer) {
+
+        for (int i = from; i < to; i++) {
+            if (i > from) {
+                buffer.append(':');
+            }
+
+            appendItem(items.get(i), buffer);
+        }
+    }
+
+    /**
+     * name:quantity:unit price. Colons in the name would shift the following fields and are replaced with spaces.
+     */
+    private static void appendItem(ElectronicInvoice.InvoiceItem item, StringBuilder buffer) {
+
+        final String productName = item.getProductName();
+
+        for (int i = 0; i < productName.length(); i++) {
+            final char c = productName.charAt(i);
+            buffer.append(c == ':' ? ' ' : c);
+        }
+
+        buffer.append(':').append(item.getQuantity()).append(':');
+
+        final BigDecimal unitPrice = item.getUnitPrice();
+
+        if (unitPrice.scale() == 0) {
+            buffer.append(unitPrice.longValue());
+        } else {
+            buffer.append(unitPrice.stripTrailingZeros().toPlainString());
+        }
+    }
+
+    /**
+     * Amounts are stored with scale 0, in which case the subtraction is done on longs without creating a BigDecimal.
+     */
+    private static long amountWithoutTax(BigDecimal salesAmount, BigDecimal taxAmount) {
+
+        if (salesAmount.scale() == 0 && taxAmount.scale() == 0) {
+            return salesAmount.longValue() - taxAmount.longValue();
+        }
+
+        return salesAmount.subtract(taxAmount).longValue();
+    }
+}
@@ -0,0 +1,27 @@
+package io.nextpos.einvoice.common.invoice;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+public interface InvoiceCodeGenerationService {
+
+    /**
+     * Generates barcode and QR code content of the given invoices in parallel and saves it. Returns the number of invoices saved.
+     */
+    int generateCodeContent(Collection<ElectronicInvoice> electronicInvoices, String aesKey);
+
+    /**
+     * Same as the collection variant but consumes the stream in batches, so the stream can be larger than memory.
+     */
+    int generateCodeContent(Stream<ElectronicInvoice> electronicInvoices, String aesKey);
+
+    /**
+     * Regenerates the code content of a seller's invoices of one period in the given statuses, e.g. those to be reprinted after the seller's AES key changed.
+     */
+    int regenerateCodeContent(String sellerUbn, ElectronicInvoice.InvoicePeriod invoicePeriod, Collection<ElectronicInvoice.InvoiceStatus> invoiceStatuses, String aesKey);
+
+    /**
+     * Regenerates the code content of the given invoices, e.g. those being re-issued.
+     */
+    int regenerateCodeContent(Collection<String> ids, String aesKey);
+}
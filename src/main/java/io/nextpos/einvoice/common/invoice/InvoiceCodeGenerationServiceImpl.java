@@ -0,0 +1,168 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Code content is generated on a dedicated fork join pool. Encryptors are cached per AES key and hold a Cipher per thread,
+ * so every worker reuses its own Cipher for the whole batch. Each batch is saved with one unordered bulk write.
+ * The encryptor cache is sized from einvoice.encryption on startup.
+ */
+@Service
+public class InvoiceCodeGenerationServiceImpl implements InvoiceCodeGenerationService, DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceCodeGenerationServiceImpl.class);
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ForkJoinPool pool;
+
+    private final int batchSize;
+
+    @Autowired
+    public InvoiceCodeGenerationServiceImpl(MongoTemplate mongoTemplate, EInvoiceProperties properties) {
+        this.mongoTemplate = mongoTemplate;
+
+        final EInvoiceProperties.CodeGeneration settings = properties.getCodeGeneration();
+        this.pool = new ForkJoinPool(settings.getParallelism());
+        this.batchSize = settings.getBatchSize();
+
+        final EInvoiceProperties.Encryption encryption = properties.getEncryption();
+        ElectronicInvoice.InvoiceQRCodeEncryptor.configureCache(encryption.getEncryptorCacheSize(), encryption.getEncryptorTimeToLive());
+    }
+
+    @Override
+    public int generateCodeContent(Collection<ElectronicInvoice> electronicInvoices, String aesKey) {
+        return generateCodeContent(electronicInvoices.stream(), aesKey);
+    }
+
+    @Override
+    public int generateCodeContent(Stream<ElectronicInvoice> electronicInvoices, String aesKey) {
+
+        final Iterator<ElectronicInvoice> iterator = electronicInvoices.iterator();
+        final List<ElectronicInvoice> batch = new ArrayList<>(batchSize);
+        int savedCount = 0;
+
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+
+            if (batch.size() == batchSize) {
+                savedCount += generateAndSave(batch, aesKey);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            savedCount += generateAndSave(batch, aesKey);
+        }
+
+        return savedCount;
+    }
+
+    @Override
+    public int regenerateCodeContent(String sellerUbn, ElectronicInvoice.InvoicePeriod invoicePeriod, Collection<ElectronicInvoice.InvoiceStatus> invoiceStatuses, String aesKey) {
+
+        if (invoiceStatuses.isEmpty()) {
+            throw new IllegalArgumentException("Invoice statuses must not be empty");
+        }
+
+        final Query query = Query.query(where("sellerUbn").is(sellerUbn)
+                .and("invoicePeriod.year").is(invoicePeriod.getYear())
+                .and("invoicePeriod.startMonth").is(invoicePeriod.getStartMonth())
+                .and("invoiceStatus").in(invoiceStatuses));
+
+        final int savedCount = regenerateMatchingCodeContent(query, aesKey);
+
+        LOGGER.info("Regenerated code content of {} invoices of seller {} in period {}", savedCount, sellerUbn, invoicePeriod.formatLongInvoicePeriod());
+
+        return savedCount;
+    }
+
+    @Override
+    public int regenerateCodeContent(Collection<String> ids, String aesKey) {
+
+        final int savedCount = regenerateMatchingCodeContent(Query.query(where("_id").in(ids)), aesKey);
+
+        LOGGER.info("Regenerated code content of {} of {} invoices", savedCount, ids.size());
+
+        return savedCount;
+    }
+
+    private int regenerateMatchingCodeContent(Query query, String aesKey) {
+
+        query.cursorBatchSize(batchSize);
+        final List<ElectronicInvoice> batch = new ArrayList<>(batchSize);
+        int savedCount = 0;
+
+        try (CloseableIterator<ElectronicInvoice> electronicInvoices = mongoTemplate.stream(query, ElectronicInvoice.class)) {
+            while (electronicInvoices.hasNext()) {
+                batch.add(electronicInvoices.next());
+
+                if (batch.size() == batchSize) {
+                    savedCount += generateAndSave(batch, aesKey);
+                    batch.clear();
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            savedCount += generateAndSave(batch, aesKey);
+        }
+
+        return savedCount;
+    }
+
+    private int generateAndSave(List<ElectronicInvoice> batch, String aesKey) {
+
+        final ElectronicInvoice.InvoiceQRCodeEncryptor encryptor = ElectronicInvoice.InvoiceQRCodeEncryptor.forKey(aesKey);
+
+        // a parallel stream started from a task of this pool runs on this pool rather than the common pool
+        pool.submit(() -> batch.parallelStream().forEach(electronicInvoice -> electronicInvoice.generateCodeContent(encryptor))).join();
+
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ElectronicInvoice.class);
+        int updateCount = 0;
+
+        for (ElectronicInvoice electronicInvoice : batch) {
+            if (electronicInvoice.getId() == null) {
+                continue;
+            }
+
+            final Update updateOperation = new Update().set("barcodeContent", electronicInvoice.getBarcodeContent())
+                    .set("qrCode1Content", electronicInvoice.getQrCode1Content())
+                    .set("qrCode2Content", electronicInvoice.getQrCode2Content())
+                    .set("qrCodeEncoding", electronicInvoice.getQrCodeEncoding());
+
+            bulkOperations.updateOne(Query.query(where("_id").is(electronicInvoice.getId())), updateOperation);
+            updateCount++;
+        }
+
+        if (updateCount == 0) {
+            return 0;
+        }
+
+        return bulkOperations.execute().getMatchedCount();
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdown();
+    }
+}
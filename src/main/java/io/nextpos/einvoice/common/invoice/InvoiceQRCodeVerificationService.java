@@ -0,0 +1,18 @@
+package io.nextpos.einvoice.common.invoice;
+
+import java.nio.file.Path;
+import java.util.function.Function;
+
+public interface InvoiceQRCodeVerificationService {
+
+    /**
+     * Decrypts the verification code in QR code 1 of every invoice of the seller and compares it to the invoice number and random number.
+     * Mismatches are written to reportFile.
+     */
+    QRCodeVerificationReport verifyQRCodes(String sellerUbn, String aesKey, Path reportFile);
+
+    /**
+     * Same as the single seller variant for all invoices, resolving the AES key by seller ubn. Invoices are read in sellerUbn order.
+     */
+    QRCodeVerificationReport verifyQRCodes(Function<String, String> aesKeyResolver, Path reportFile);
+}
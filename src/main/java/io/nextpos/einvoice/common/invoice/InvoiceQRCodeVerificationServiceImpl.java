@@ -0,0 +1,173 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Invoices are read through a cursor, with only the fields needed for verification, and decrypted in parallel batches.
+ * Encryptors are cached per AES key with a Cipher per thread, so workers never initialize a Cipher per invoice.
+ * The all-sellers audit reads invoices in sellerUbn order on the seller index, so each seller's AES key is resolved and used in one run of invoices.
+ */
+@Service
+public class InvoiceQRCodeVerificationServiceImpl implements InvoiceQRCodeVerificationService, DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceQRCodeVerificationServiceImpl.class);
+
+    static final String HEADER = "id,invoiceNumber,sellerUbn,reason,decrypted";
+
+    /**
+     * Invoice number (10), date (7), random number (4), amounts (8 + 8) and ubns (8 + 8) precede the verification code.
+     */
+    private static final int VERIFICATION_CODE_START = 53;
+
+    private static final int VERIFICATION_CODE_END = VERIFICATION_CODE_START + 24;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ForkJoinPool pool;
+
+    private final int batchSize;
+
+    @Autowired
+    public InvoiceQRCodeVerificationServiceImpl(MongoTemplate mongoTemplate, EInvoiceProperties properties) {
+        this.mongoTemplate = mongoTemplate;
+
+        final EInvoiceProperties.CodeGeneration settings = properties.getCodeGeneration();
+        this.pool = new ForkJoinPool(settings.getParallelism());
+        this.batchSize = settings.getBatchSize();
+    }
+
+    @Override
+    public QRCodeVerificationReport verifyQRCodes(String sellerUbn, String aesKey, Path reportFile) {
+        return verifyQRCodes(Query.query(where("sellerUbn").is(sellerUbn)), ubn -> aesKey, reportFile);
+    }
+
+    @Override
+    public QRCodeVerificationReport verifyQRCodes(Function<String, String> aesKeyResolver, Path reportFile) {
+        return verifyQRCodes(new Query().with(Sort.by("sellerUbn")), aesKeyResolver, reportFile);
+    }
+
+    private QRCodeVerificationReport verifyQRCodes(Query query, Function<String, String> aesKeyResolver, Path reportFile) {
+
+        query.fields().include("invoiceNumber", "internalInvoiceNumber", "randomNumber", "sellerUbn", "qrCode1Content");
+        query.cursorBatchSize(batchSize);
+
+        final QRCodeVerificationReport report = new QRCodeVerificationReport(reportFile);
+        final List<ElectronicInvoice> batch = new ArrayList<>(batchSize);
+        final long start = System.nanoTime();
+
+        try (BufferedWriter writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8);
+             CloseableIterator<ElectronicInvoice> electronicInvoices = mongoTemplate.stream(query, ElectronicInvoice.class)) {
+
+            writer.write(HEADER);
+            writer.newLine();
+
+            while (electronicInvoices.hasNext()) {
+                batch.add(electronicInvoices.next());
+
+                if (batch.size() == batchSize) {
+                    verifyBatch(batch, aesKeyResolver, writer, report);
+                }
+            }
+
+            verifyBatch(batch, aesKeyResolver, writer, report);
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write QR code verification report: " + reportFile, e);
+        }
+
+        report.setElapsed(Duration.ofNanos(System.nanoTime() - start));
+
+        LOGGER.info("Verified QR codes of {} invoices in {}, {} mismatches, {} invoices per second",
+                report.getVerifiedCount(), report.getElapsed(), report.getMismatchCount(), Math.round(report.getInvoicesPerSecond()));
+
+        return report;
+    }
+
+    private void verifyBatch(List<ElectronicInvoice> batch, Function<String, String> aesKeyResolver, BufferedWriter writer, QRCodeVerificationReport report) throws IOException {
+
+        final String[] mismatches = new String[batch.size()];
+
+        pool.submit(() -> IntStream.range(0, batch.size()).parallel()
+                .forEach(i -> mismatches[i] = verify(batch.get(i), aesKeyResolver))).join();
+
+        for (int i = 0; i < mismatches.length; i++) {
+            if (mismatches[i] != null) {
+                final ElectronicInvoice electronicInvoice = batch.get(i);
+                writer.write(electronicInvoice.getId() + "," + electronicInvoice.getInvoiceNumber() + "," + electronicInvoice.getSellerUbn() + "," + mismatches[i]);
+                writer.newLine();
+                report.setMismatchCount(report.getMismatchCount() + 1);
+            }
+        }
+
+        report.setVerifiedCount(report.getVerifiedCount() + batch.size());
+        batch.clear();
+    }
+
+    /**
+     * Returns null if the verification code matches, otherwise the reason and the decrypted value.
+     */
+    private String verify(ElectronicInvoice electronicInvoice, Function<String, String> aesKeyResolver) {
+
+        final String qrCode1Content = electronicInvoice.getQrCode1Content();
+
+        if (qrCode1Content == null || qrCode1Content.length() < VERIFICATION_CODE_END) {
+            return "MISSING,";
+        }
+
+        final String aesKey = aesKeyResolver.apply(electronicInvoice.getSellerUbn());
+
+        if (aesKey == null) {
+            return "NO_AES_KEY,";
+        }
+
+        final String decrypted;
+
+        try {
+            decrypted = ElectronicInvoice.InvoiceQRCodeEncryptor.forKey(aesKey).decode(qrCode1Content.substring(VERIFICATION_CODE_START, VERIFICATION_CODE_END));
+        } catch (Exception e) {
+            return "UNDECRYPTABLE,";
+        }
+
+        final String internalInvoiceNumber = electronicInvoice.getInternalInvoiceNumber();
+        final String randomNumber = electronicInvoice.getRandomNumber();
+
+        if (internalInvoiceNumber != null && randomNumber != null
+                && decrypted.length() == internalInvoiceNumber.length() + randomNumber.length()
+                && decrypted.startsWith(internalInvoiceNumber)
+                && decrypted.endsWith(randomNumber)) {
+            return null;
+        }
+
+        // a wrong key can decrypt to arbitrary characters, which must not break the report format
+        return "MISMATCH," + decrypted.replaceAll("[^A-Za-z0-9]", "?");
+    }
+
+    @Override
+    public void destroy() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,330 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Date;
+
+/**
+ * Writes MIG 3.2 messages C0401 (invoice), C0501 (cancel invoice) and C0701 (void invoice) as UTF-8 XML.
+ * <p>
+ * Elements are written in schema order straight from the invoice, without building an object tree. Each thread reuses its own
+ * character and byte buffers, so writing an invoice allocates little beyond the strings read from it.
+ */
+@Component
+public class MigWriter {
+
+    static final String C0401_NAMESPACE = "urn:GEINV:eInvoiceMessage:C0401:3.2";
+
+    static final String C0501_NAMESPACE = "urn:GEINV:eInvoiceMessage:C0501:3.2";
+
+    static final String C0701_NAMESPACE = "urn:GEINV:eInvoiceMessage:C0701:3.2";
+
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    /**
+     * Buyer identifier of B2C invoices.
+     */
+    private static final String NO_BUYER_IDENTIFIER = "0000000000";
+
+    private static final String NO_BUYER_NAME = "0000";
+
+    private static final String MOBILE_CARRIER_TYPE = "3J0002";
+
+    private static final String CITIZEN_CERTIFICATE_CARRIER_TYPE = "CQ0001";
+
+    /**
+     * 07 general tax invoice.
+     */
+    private static final String INVOICE_TYPE = "07";
+
+    /**
+     * 1 taxable.
+     */
+    private static final String TAX_TYPE = "1";
+
+    private static final String TAX_RATE = "0.05";
+
+    private static final String DEFAULT_CANCEL_REASON = "取消發票";
+
+    private static final String DEFAULT_VOID_REASON = "作廢發票";
+
+    private final ThreadLocal<StringBuilder> documents = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+
+    private final ThreadLocal<CharsetEncoder> encoders = ThreadLocal.withInitial(StandardCharsets.UTF_8::newEncoder);
+
+    private final ThreadLocal<ByteBuffer> byteBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(8192));
+
+    /**
+     * Writes the message that corresponds to the pending e-invoice type, dated with the creation date of the queue entry.
+     */
+    public void write(PendingEInvoiceQueue pendingEInvoiceQueue, OutputStream outputStream) throws IOException {
+
+        final ElectronicInvoice electronicInvoice = pendingEInvoiceQueue.getElectronicInvoice();
+        final Date date = pendingEInvoiceQueue.getCreatedDate() != null ? pendingEInvoiceQueue.getCreatedDate() : new Date();
+
+        switch (pendingEInvoiceQueue.getInvoiceType()) {
+            case CREATE:
+                writeInvoice(electronicInvoice, outputStream);
+                break;
+            case CANCEL:
+                writeCancelInvoice(electronicInvoice, date, DEFAULT_CANCEL_REASON, outputStream);
+                break;
+            case VOID:
+                writeVoidInvoice(electronicInvoice, date, DEFAULT_VOID_REASON, outputStream);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported pending e-invoice type: " + pendingEInvoiceQueue.getInvoiceType());
+        }
+    }
+
+    /**
+     * C0401
+     */
+    public void writeInvoice(ElectronicInvoice electronicInvoice, OutputStream outputStream) throws IOException {
+
+        final StringBuilder xml = startDocument("Invoice", C0401_NAMESPACE);
+        final LocalDateTime invoiceDateTime = toLocalDateTime(electronicInvoice.getInvoiceCreatedDate());
+        final boolean b2b = StringUtils.isNotBlank(electronicInvoice.getBuyerUbn());
+
+        xml.append("<Main>");
+        element(xml, "InvoiceNumber", electronicInvoice.getInternalInvoiceNumber());
+        dateElement(xml, "InvoiceDate", invoiceDateTime);
+        timeElement(xml, "InvoiceTime", invoiceDateTime);
+
+        xml.append("<Seller>");
+        element(xml, "Identifier", electronicInvoice.getSellerUbn());
+        element(xml, "Name", electronicInvoice.getSellerName());
+        optionalElement(xml, "Address", electronicInvoice.getSellerAddress());
+        xml.append("</Seller>");
+
+        xml.append("<Buyer>");
+        element(xml, "Identifier", b2b ? electronicInvoice.getBuyerUbn() : NO_BUYER_IDENTIFIER);
+        element(xml, "Name", b2b && StringUtils.isNotBlank(electronicInvoice.getBuyerName()) ? electronicInvoice.getBuyerName() : NO_BUYER_NAME);
+        xml.append("</Buyer>");
+
+        element(xml, "InvoiceType", INVOICE_TYPE);
+        element(xml, "DonateMark", StringUtils.isNotBlank(electronicInvoice.getNpoBan()) ? "1" : "0");
+
+        if (electronicInvoice.getCarrierType() != null) {
+            element(xml, "CarrierType", electronicInvoice.getCarrierType() == ElectronicInvoice.CarrierType.MOBILE ? MOBILE_CARRIER_TYPE : CITIZEN_CERTIFICATE_CARRIER_TYPE);
+            element(xml, "CarrierId1", electronicInvoice.getCarrierId());
+            element(xml, "CarrierId2", electronicInvoice.getCarrierId2() != null ? electronicInvoice.getCarrierId2() : electronicInvoice.getCarrierId());
+        }
+
+        element(xml, "PrintMark", electronicInvoice.canPrintElectronicInvoice() ? "Y" : "N");
+        optionalElement(xml, "NPOBAN", electronicInvoice.getNpoBan());
+        element(xml, "RandomNumber", electronicInvoice.getRandomNumber());
+        xml.append("</Main>");
+
+        xml.append("<Details>");
+        int sequenceNumber = 1;
+
+        for (ElectronicInvoice.InvoiceItem item : electronicInvoice.getInvoiceItems()) {
+            xml.append("<ProductItem>");
+            element(xml, "Description", item.getProductName());
+            xml.append("<Quantity>").append(item.getQuantity()).append("</Quantity>");
+            amountElement(xml, "UnitPrice", item.getUnitPrice());
+            amountElement(xml, "Amount", item.getSubTotal());
+            xml.append("<SequenceNumber>").append(sequenceNumber++).append("</SequenceNumber>");
+            xml.append("</ProductItem>");
+        }
+
+        xml.append("</Details>");
+
+        // B2C invoices state tax inclusive sales and no tax amount, B2B invoices state them separately
+        xml.append("<Amount>");
+        amountElement(xml, "SalesAmount", b2b ? electronicInvoice.getSalesAmountWithoutTax() : electronicInvoice.getSalesAmount());
+        element(xml, "FreeTaxSalesAmount", "0");
+        element(xml, "ZeroTaxSalesAmount", "0");
+        element(xml, "TaxType", TAX_TYPE);
+        element(xml, "TaxRate", TAX_RATE);
+        amountElement(xml, "TaxAmount", b2b ? electronicInvoice.getTaxAmount() : BigDecimal.ZERO);
+        amountElement(xml, "TotalAmount", electronicInvoice.getSalesAmount());
+        xml.append("</Amount>");
+
+        endDocument(xml, "Invoice", outputStream);
+    }
+
+    /**
+     * C0501
+     */
+    public void writeCancelInvoice(ElectronicInvoice electronicInvoice, Date cancelDate, String cancelReason, OutputStream outputStream) throws IOException {
+
+        final StringBuilder xml = startDocument("CancelInvoice", C0501_NAMESPACE);
+        final LocalDateTime cancelDateTime = toLocalDateTime(cancelDate);
+
+        element(xml, "CancelInvoiceNumber", electronicInvoice.getInternalInvoiceNumber());
+        dateElement(xml, "InvoiceDate", toLocalDateTime(electronicInvoice.getInvoiceCreatedDate()));
+        element(xml, "BuyerId", buyerIdentifier(electronicInvoice));
+        element(xml, "SellerId", electronicInvoice.getSellerUbn());
+        dateElement(xml, "CancelDate", cancelDateTime);
+        timeElement(xml, "CancelTime", cancelDateTime);
+        element(xml, "CancelReason", cancelReason);
+
+        endDocument(xml, "CancelInvoice", outputStream);
+    }
+
+    /**
+     * C0701
+     */
+    public void writeVoidInvoice(ElectronicInvoice electronicInvoice, Date voidDate, String voidReason, OutputStream outputStream) throws IOException {
+
+        final StringBuilder xml = startDocument("VoidInvoice", C0701_NAMESPACE);
+        final LocalDateTime voidDateTime = toLocalDateTime(voidDate);
+
+        element(xml, "VoidInvoiceNumber", electronicInvoice.getInternalInvoiceNumber());
+        dateElement(xml, "InvoiceDate", toLocalDateTime(electronicInvoice.getInvoiceCreatedDate()));
+        element(xml, "BuyerId", buyerIdentifier(electronicInvoice));
+        element(xml, "SellerId", electronicInvoice.getSellerUbn());
+        dateElement(xml, "VoidDate", voidDateTime);
+        timeElement(xml, "VoidTime", voidDateTime);
+        element(xml, "VoidReason", voidReason);
+
+        endDocument(xml, "VoidInvoice", outputStream);
+    }
+
+    private StringBuilder startDocument(String rootElement, String namespace) {
+
+        final StringBuilder xml = documents.get();
+        xml.setLength(0);
+
+        return xml.append(XML_DECLARATION)
+                .append('<').append(rootElement).append(" xmlns=\"").append(namespace).append("\">");
+    }
+
+    /**
+     * Encodes the document through the per-thread byte buffer, flushing it to the stream whenever it fills up.
+     */
+    private void endDocument(StringBuilder xml, String rootElement, OutputStream outputStream) throws IOException {
+
+        xml.append("</").append(rootElement).append('>');
+
+        final CharsetEncoder encoder = encoders.get().reset();
+        final ByteBuffer byteBuffer = byteBuffers.get();
+        final CharBuffer chars = CharBuffer.wrap(xml);
+        CoderResult result;
+
+        byteBuffer.clear();
+
+        do {
+            result = encoder.encode(chars, byteBuffer, true);
+
+            if (result.isError()) {
+                result.throwException();
+            }
+
+            outputStream.write(byteBuffer.array(), 0, byteBuffer.position());
+            byteBuffer.clear();
+        } while (result.isOverflow());
+
+        encoder.flush(byteBuffer);
+        outputStream.write(byteBuffer.array(), 0, byteBuffer.position());
+        outputStream.flush();
+    }
+
+    private String buyerIdentifier(ElectronicInvoice electronicInvoice) {
+        return StringUtils.isNotBlank(electronicInvoice.getBuyerUbn()) ? electronicInvoice.getBuyerUbn() : NO_BUYER_IDENTIFIER;
+    }
+
+    private LocalDateTime toLocalDateTime(Date date) {
+        return LocalDateTime.ofInstant(date.toInstant(), InvoicePeriodCalendar.ZONE_ID);
+    }
+
+    private void optionalElement(StringBuilder xml, String name, String value) {
+
+        if (StringUtils.isNotBlank(value)) {
+            element(xml, name, value);
+        }
+    }
+
+    private void element(StringBuilder xml, String name, String value) {
+
+        xml.append('<').append(name).append('>');
+        appendEscaped(xml, value != null ? value : "");
+        xml.append("</").append(name).append('>');
+    }
+
+    private void amountElement(StringBuilder xml, String name, BigDecimal amount) {
+
+        xml.append('<').append(name).append('>');
+
+        if (amount.scale() == 0) {
+            xml.append(amount.longValue());
+        } else {
+            xml.append(amount.stripTrailingZeros().toPlainString());
+        }
+
+        xml.append("</").append(name).append('>');
+    }
+
+    /**
+     * yyyyMMdd
+     */
+    private void dateElement(StringBuilder xml, String name, LocalDateTime dateTime) {
+
+        xml.append('<').append(name).append('>');
+        appendDigits(xml, dateTime.getYear(), 4);
+        appendDigits(xml, dateTime.getMonthValue(), 2);
+        appendDigits(xml, dateTime.getDayOfMonth(), 2);
+        xml.append("</").append(name).append('>');
+    }
+
+    /**
+     * HH:mm:ss
+     */
+    private void timeElement(StringBuilder xml, String name, LocalDateTime dateTime) {
+
+        xml.append('<').append(name).append('>');
+        appendDigits(xml, dateTime.getHour(), 2);
+        xml.append(':');
+        appendDigits(xml, dateTime.getMinute(), 2);
+        xml.append(':');
+        appendDigits(xml, dateTime.getSecond(), 2);
+        xml.append("</").append(name).append('>');
+    }
+
+    private void appendDigits(StringBuilder xml, int value, int digits) {
+
+        for (int divisor = (int) Math.pow(10, digits - 1); divisor > 0; divisor /= 10) {
+            xml.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
+    private void appendEscaped(StringBuilder xml, String value) {
+
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+
+            switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                case '\'':
+                    xml.append("&apos;");
+                    break;
+                default:
+                    xml.append(c);
+            }
+        }
+    }
+}
@@ -4,12 +4,20 @@ import io.nextpos.einvoice.common.shared.EInvoiceBaseObject;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.DBRef;
 import org.springframework.data.mongodb.core.mapping.Document;
 
+import java.util.Date;
+
 @Document
+@CompoundIndexes({@CompoundIndex(name = "status_lease_expires_at_index", def = "{'status': 1, 'leaseExpiresAt': 1}"),
+        @CompoundIndex(name = "status_id_index", def = "{'status': 1, '_id': 1}"),
+        @CompoundIndex(name = "invoice_identifier_index", def = "{'invoiceIdentifier': 1}", sparse = true)})
 @Data
 @EqualsAndHashCode(callSuper = true)
 @NoArgsConstructor
@@ -27,9 +35,36 @@ public class PendingEInvoiceQueue extends EInvoiceBaseObject {
     @Indexed
     private PendingEInvoiceStatus status;
 
-    @DBRef
+    /**
+     * Lazy so that loading queue entries does not issue one query per entry. Batches of entries are resolved with a single query
+     * by PendingEInvoiceQueueRepository.resolveElectronicInvoices. Left out of equals and toString, which would resolve it.
+     */
+    @DBRef(lazy = true)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
     private ElectronicInvoice electronicInvoice;
 
+    /**
+     * Worker holding the lease of a CLAIMED entry.
+     */
+    private String claimedBy;
+
+    /**
+     * Identifies the claimBatch call that claimed the entry.
+     */
+    @Indexed(sparse = true)
+    private String claimId;
+
+    /**
+     * A CLAIMED entry can be claimed again by any worker after this.
+     */
+    private Date leaseExpiresAt;
+
+    /**
+     * Identifies the last bulk status update of the entry, so the update can tell which entries it changed when reading them back.
+     */
+    private String transitionId;
+
     public PendingEInvoiceQueue(ElectronicInvoice electronicInvoice, PendingEInvoiceType pendingEInvoiceType) {
         this.invoiceNumber = electronicInvoice.getInvoiceNumber();
         this.ubn = electronicInvoice.getSellerUbn();
@@ -41,6 +76,9 @@ public class PendingEInvoiceQueue extends EInvoiceBaseObject {
 
     public void markAsProcessed() {
         status = PendingEInvoiceStatus.PROCESSED;
+        claimedBy = null;
+        claimId = null;
+        leaseExpiresAt = null;
     }
 
     public enum PendingEInvoiceType {
@@ -48,17 +86,30 @@ public class PendingEInvoiceQueue extends EInvoiceBaseObject {
         /**
          * New invoice (C0401)
          */
-        CREATE,
+        CREATE("C0401"),
 
         /**
          * Cancel invoice (C0501)
          */
-        CANCEL,
+        CANCEL("C0501"),
 
         /**
          * Void invoice (C0701)
          */
-        VOID
+        VOID("C0701");
+
+        /**
+         * MIG message type
+         */
+        private final String messageType;
+
+        PendingEInvoiceType(String messageType) {
+            this.messageType = messageType;
+        }
+
+        public String getMessageType() {
+            return messageType;
+        }
     }
 
     public enum PendingEInvoiceStatus {
@@ -68,6 +119,11 @@ public class PendingEInvoiceQueue extends EInvoiceBaseObject {
          */
         PENDING,
 
+        /**
+         * Claimed by a worker until its lease expires.
+         */
+        CLAIMED,
+
         /**
          * MIG is copied to Turnkey working directory.
          */
@@ -4,7 +4,7 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 
 import java.util.List;
 
-public interface PendingEInvoiceQueueRepository extends MongoRepository<PendingEInvoiceQueue, String> {
+public interface PendingEInvoiceQueueRepository extends MongoRepository<PendingEInvoiceQueue, String>, PendingEInvoiceQueueRepositoryCustom {
 
     PendingEInvoiceQueue findByInvoiceNumberAndInvoiceTypeAndStatus(String invoiceNumber, PendingEInvoiceQueue.PendingEInvoiceType invoiceType, PendingEInvoiceQueue.PendingEInvoiceStatus status);
 
@@ -12,5 +12,7 @@ public interface PendingEInvoiceQueueRepository extends MongoRepository<PendingE
 
     List<PendingEInvoiceQueue> findAllByStatusIn(List<PendingEInvoiceQueue.PendingEInvoiceStatus> status);
 
+    List<PendingEInvoiceQueue> findAllByClaimId(String claimId);
+
     void deleteAllByStatus(PendingEInvoiceQueue.PendingEInvoiceStatus status);
 }
@@ -0,0 +1,32 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.KeysetPage;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * Cursor-backed and keyset-paginated variants of the list queries, for backlogs that should not be loaded onto the heap at once.
+ * Streams hold a cursor and must be closed. Both resolve the electronic invoices of each cursor batch or page with one query.
+ */
+public interface PendingEInvoiceQueueRepositoryCustom {
+
+    /**
+     * Loads the electronic invoices still referenced by lazy DBRefs with one $in query and sets them on the queue entries.
+     */
+    void resolveElectronicInvoices(Collection<PendingEInvoiceQueue> pendingEInvoices);
+
+    Stream<PendingEInvoiceQueue> streamAllByUbnAndStatus(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status);
+
+    Stream<PendingEInvoiceQueue> streamAllByStatusIn(Collection<PendingEInvoiceQueue.PendingEInvoiceStatus> status);
+
+    /**
+     * @param afterId nextKey of the previous page, null for the first page.
+     */
+    KeysetPage<PendingEInvoiceQueue> findPageByUbnAndStatus(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status, String afterId, int pageSize);
+
+    /**
+     * @param afterId nextKey of the previous page, null for the first page.
+     */
+    KeysetPage<PendingEInvoiceQueue> findPageByStatusIn(Collection<PendingEInvoiceQueue.PendingEInvoiceStatus> status, String afterId, int pageSize);
+}
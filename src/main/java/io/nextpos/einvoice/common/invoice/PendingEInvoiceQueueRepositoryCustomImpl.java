@@ -0,0 +1,154 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import io.nextpos.einvoice.common.shared.KeysetPage;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.data.util.StreamUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+public class PendingEInvoiceQueueRepositoryCustomImpl implements PendingEInvoiceQueueRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final int cursorBatchSize;
+
+    @Autowired
+    public PendingEInvoiceQueueRepositoryCustomImpl(MongoTemplate mongoTemplate, EInvoiceProperties properties) {
+        this.mongoTemplate = mongoTemplate;
+        this.cursorBatchSize = properties.getStreaming().getCursorBatchSize();
+    }
+
+    @Override
+    public Stream<PendingEInvoiceQueue> streamAllByUbnAndStatus(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+        return stream(where("ubn").is(ubn).and("status").is(status));
+    }
+
+    @Override
+    public Stream<PendingEInvoiceQueue> streamAllByStatusIn(Collection<PendingEInvoiceQueue.PendingEInvoiceStatus> status) {
+        return stream(where("status").in(status));
+    }
+
+    @Override
+    public KeysetPage<PendingEInvoiceQueue> findPageByUbnAndStatus(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status, String afterId, int pageSize) {
+        return findPage(where("ubn").is(ubn).and("status").is(status), afterId, pageSize);
+    }
+
+    @Override
+    public KeysetPage<PendingEInvoiceQueue> findPageByStatusIn(Collection<PendingEInvoiceQueue.PendingEInvoiceStatus> status, String afterId, int pageSize) {
+        return findPage(where("status").in(status), afterId, pageSize);
+    }
+
+    @Override
+    public void resolveElectronicInvoices(Collection<PendingEInvoiceQueue> pendingEInvoices) {
+
+        final Map<String, List<PendingEInvoiceQueue>> pendingEInvoicesByInvoiceId = new HashMap<>();
+
+        for (PendingEInvoiceQueue pendingEInvoiceQueue : pendingEInvoices) {
+            final ElectronicInvoice electronicInvoice = pendingEInvoiceQueue.getElectronicInvoice();
+
+            if (electronicInvoice instanceof LazyLoadingProxy) {
+                final String invoiceId = ((LazyLoadingProxy) electronicInvoice).toDBRef().getId().toString();
+                pendingEInvoicesByInvoiceId.computeIfAbsent(invoiceId, id -> new ArrayList<>(1)).add(pendingEInvoiceQueue);
+            }
+        }
+
+        if (pendingEInvoicesByInvoiceId.isEmpty()) {
+            return;
+        }
+
+        final Query query = Query.query(where("_id").in(pendingEInvoicesByInvoiceId.keySet()));
+
+        for (ElectronicInvoice electronicInvoice : mongoTemplate.find(query, ElectronicInvoice.class)) {
+            pendingEInvoicesByInvoiceId.get(electronicInvoice.getId()).forEach(pending -> pending.setElectronicInvoice(electronicInvoice));
+        }
+    }
+
+    private Stream<PendingEInvoiceQueue> stream(Criteria criteria) {
+
+        final Query query = Query.query(criteria).with(Sort.by("_id")).cursorBatchSize(cursorBatchSize);
+
+        return StreamUtils.createStreamFromIterator(new BatchResolvingIterator(mongoTemplate.stream(query, PendingEInvoiceQueue.class)));
+    }
+
+    private KeysetPage<PendingEInvoiceQueue> findPage(Criteria criteria, String afterId, int pageSize) {
+
+        KeysetPage.checkPageSize(pageSize);
+
+        if (afterId != null) {
+            criteria.and("_id").gt(new ObjectId(afterId));
+        }
+
+        final Query query = Query.query(criteria).with(Sort.by("_id")).limit(pageSize + 1);
+
+        final KeysetPage<PendingEInvoiceQueue> page = KeysetPage.of(mongoTemplate.find(query, PendingEInvoiceQueue.class), pageSize, PendingEInvoiceQueue::getId);
+        resolveElectronicInvoices(page.getContent());
+
+        return page;
+    }
+
+    /**
+     * Reads a cursor batch ahead so the electronic invoices of the whole batch are resolved with one query.
+     */
+    private class BatchResolvingIterator implements CloseableIterator<PendingEInvoiceQueue> {
+
+        private final CloseableIterator<PendingEInvoiceQueue> cursor;
+
+        private final List<PendingEInvoiceQueue> batch = new ArrayList<>(cursorBatchSize);
+
+        private int position;
+
+        BatchResolvingIterator(CloseableIterator<PendingEInvoiceQueue> cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            if (position < batch.size()) {
+                return true;
+            }
+
+            batch.clear();
+            position = 0;
+
+            while (batch.size() < cursorBatchSize && cursor.hasNext()) {
+                batch.add(cursor.next());
+            }
+
+            resolveElectronicInvoices(batch);
+
+            return !batch.isEmpty();
+        }
+
+        @Override
+        public PendingEInvoiceQueue next() {
+
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return batch.get(position++);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
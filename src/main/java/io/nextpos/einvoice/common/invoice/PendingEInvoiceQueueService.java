@@ -1,7 +1,12 @@
 package io.nextpos.einvoice.common.invoice;
 
+import io.nextpos.einvoice.common.shared.KeysetPage;
+
+import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 public interface PendingEInvoiceQueueService {
 
@@ -9,13 +14,50 @@ public interface PendingEInvoiceQueueService {
 
     PendingEInvoiceQueue reissueErroredEInvoiceQueue(String invoiceNumber, PendingEInvoiceQueue.PendingEInvoiceType invoiceType);
 
+    /**
+     * Moves the entries that are currently in status from to status to, without rewriting the rest of the documents.
+     * CLAIMED entries are moved with transitionClaimed.
+     *
+     * @return outcome per id, in the order of ids.
+     */
+    Map<String, StatusTransitionOutcome> transition(Collection<String> ids, PendingEInvoiceQueue.PendingEInvoiceStatus from, PendingEInvoiceQueue.PendingEInvoiceStatus to);
+
+    /**
+     * Moves the CLAIMED entries that are still held by the given claim to status to and releases the claim. An entry that was claimed
+     * again by another worker after its lease expired is left alone and reported as STATUS_MISMATCH.
+     *
+     * @return outcome per id, in the order of ids.
+     */
+    Map<String, StatusTransitionOutcome> transitionClaimed(String claimId, Collection<String> ids, PendingEInvoiceQueue.PendingEInvoiceStatus to);
+
     PendingEInvoiceQueue updatePendingEInvoiceQueue(PendingEInvoiceQueue pendingEInvoiceQueue);
 
     List<PendingEInvoiceQueue> findPendingEInvoicesByUbn(String ubn);
 
+    /**
+     * Moves up to size PENDING entries, or CLAIMED entries whose lease has expired, to CLAIMED for the given worker.
+     * No entry is claimed by two workers with overlapping leases.
+     */
+    List<PendingEInvoiceQueue> claimBatch(String workerId, int size, Duration leaseDuration);
+
     List<PendingEInvoiceQueue> findPendingEInvoicesByStatuses(PendingEInvoiceQueue.PendingEInvoiceStatus... status);
 
+    /**
+     * Cursor-backed, must be closed.
+     */
+    Stream<PendingEInvoiceQueue> streamPendingEInvoicesByStatuses(PendingEInvoiceQueue.PendingEInvoiceStatus... status);
+
+    /**
+     * @param afterId nextKey of the previous page, null for the first page.
+     */
+    KeysetPage<PendingEInvoiceQueue> findPendingEInvoicePageByStatuses(String afterId, int pageSize, PendingEInvoiceQueue.PendingEInvoiceStatus... status);
+
     void deleteByStatus(PendingEInvoiceQueue.PendingEInvoiceStatus status);
 
     Map<String, List<PendingInvoiceStats>> generatePendingEInvoiceStats();
+
+    /**
+     * Rebuilds the status counters behind generatePendingEInvoiceStats from the queue, correcting drift. Meant to be run periodically.
+     */
+    Map<String, List<PendingInvoiceStats>> reconcilePendingEInvoiceStats();
 }
@@ -1,21 +1,34 @@
 package io.nextpos.einvoice.common.invoice;
 
+import com.mongodb.client.result.UpdateResult;
+import io.nextpos.einvoice.common.shared.KeysetPage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.aggregation.Aggregation;
-import org.springframework.data.mongodb.core.aggregation.AggregationResults;
-import org.springframework.data.mongodb.core.aggregation.GroupOperation;
-import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.groupingBy;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
 
 @Service
 @Transactional("mongoTx")
@@ -23,14 +36,19 @@ public class PendingEInvoiceQueueServiceImpl implements PendingEInvoiceQueueServ
 
     private static final Logger LOGGER = LoggerFactory.getLogger(PendingEInvoiceQueueServiceImpl.class);
 
+    private static final int MAX_CLAIM_ATTEMPTS = 3;
+
     private final PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository;
 
     private final MongoTemplate mongoTemplate;
 
+    private final PendingInvoiceStatsTracker pendingInvoiceStatsTracker;
+
     @Autowired
-    public PendingEInvoiceQueueServiceImpl(PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository, MongoTemplate mongoTemplate) {
+    public PendingEInvoiceQueueServiceImpl(PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository, MongoTemplate mongoTemplate, PendingInvoiceStatsTracker pendingInvoiceStatsTracker) {
         this.pendingEInvoiceQueueRepository = pendingEInvoiceQueueRepository;
         this.mongoTemplate = mongoTemplate;
+        this.pendingInvoiceStatsTracker = pendingInvoiceStatsTracker;
     }
 
     @Override
@@ -38,6 +56,7 @@ public class PendingEInvoiceQueueServiceImpl implements PendingEInvoiceQueueServ
 
         PendingEInvoiceQueue pendingEInvoice = new PendingEInvoiceQueue(electronicInvoice, pendingEInvoiceType);
         pendingEInvoiceQueueRepository.save(pendingEInvoice);
+        pendingInvoiceStatsTracker.recordCreated(pendingEInvoice.getUbn(), pendingEInvoice.getStatus());
 
         LOGGER.info("Created pending e-invoice[type={}]: {}", pendingEInvoiceType, pendingEInvoice.getId());
 
@@ -48,44 +67,233 @@ public class PendingEInvoiceQueueServiceImpl implements PendingEInvoiceQueueServ
     public PendingEInvoiceQueue reissueErroredEInvoiceQueue(String invoiceNumber, PendingEInvoiceQueue.PendingEInvoiceType invoiceType) {
         final PendingEInvoiceQueue pendingEInvoiceQueue = pendingEInvoiceQueueRepository.findByInvoiceNumberAndInvoiceTypeAndStatus(invoiceNumber, invoiceType, PendingEInvoiceQueue.PendingEInvoiceStatus.ERROR);
 
-        pendingEInvoiceQueue.setStatus(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+        final Map<String, StatusTransitionOutcome> outcomes = transition(List.of(pendingEInvoiceQueue.getId()),
+                PendingEInvoiceQueue.PendingEInvoiceStatus.ERROR,
+                PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+
+        if (outcomes.get(pendingEInvoiceQueue.getId()) == StatusTransitionOutcome.TRANSITIONED) {
+            pendingEInvoiceQueue.setStatus(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+        }
+
+        return pendingEInvoiceQueue;
+    }
+
+    @Override
+    public Map<String, StatusTransitionOutcome> transition(Collection<String> ids, PendingEInvoiceQueue.PendingEInvoiceStatus from, PendingEInvoiceQueue.PendingEInvoiceStatus to) {
+
+        if (from == PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED) {
+            throw new IllegalArgumentException("Claimed entries are transitioned with transitionClaimed");
+        }
+
+        return transition(ids, where("status").is(from), from, to);
+    }
+
+    @Override
+    public Map<String, StatusTransitionOutcome> transitionClaimed(String claimId, Collection<String> ids, PendingEInvoiceQueue.PendingEInvoiceStatus to) {
+
+        return transition(ids, where("status").is(PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED).and("claimId").is(claimId),
+                PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED, to);
+    }
+
+    /**
+     * All entries are moved with one updateMulti guarded on the expected status, stamped with a transition id unique to this call. The entries
+     * are then read back once, projected to ubn, status and transitionId, to tell which ones were transitioned by this call and count them per ubn.
+     */
+    private Map<String, StatusTransitionOutcome> transition(Collection<String> ids, Criteria guard, PendingEInvoiceQueue.PendingEInvoiceStatus from, PendingEInvoiceQueue.PendingEInvoiceStatus to) {
+
+        if (to == PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED) {
+            throw new IllegalArgumentException("Entries are claimed with claimBatch");
+        }
+
+        final Map<String, StatusTransitionOutcome> outcomes = new LinkedHashMap<>();
 
-        return pendingEInvoiceQueueRepository.save(pendingEInvoiceQueue);
+        if (ids.isEmpty()) {
+            return outcomes;
+        }
+
+        final String transitionId = UUID.randomUUID().toString();
+        final Update updateOperation = new Update().set("status", to).set("transitionId", transitionId).set("modifiedDate", new Date());
+
+        if (from == PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED) {
+            updateOperation.unset("claimedBy").unset("claimId").unset("leaseExpiresAt");
+        }
+
+        final Query query = Query.query(new Criteria().andOperator(where("_id").in(ids), guard));
+        mongoTemplate.updateMulti(query, updateOperation, PendingEInvoiceQueue.class);
+
+        final Query readBackQuery = Query.query(where("_id").in(ids));
+        readBackQuery.fields().include("ubn", "status", "transitionId");
+
+        final Map<String, PendingEInvoiceQueue> currentEntries = mongoTemplate.find(readBackQuery, PendingEInvoiceQueue.class).stream()
+                .collect(Collectors.toMap(PendingEInvoiceQueue::getId, Function.identity()));
+
+        final List<PendingInvoiceStatsTracker.StatusChange> statusChanges = new ArrayList<>(ids.size());
+
+        for (String id : ids) {
+            final PendingEInvoiceQueue currentEntry = currentEntries.get(id);
+
+            if (outcomes.containsKey(id)) {
+                continue;
+            }
+
+            if (currentEntry == null) {
+                outcomes.put(id, StatusTransitionOutcome.NOT_FOUND);
+            } else if (currentEntry.getStatus() == to && transitionId.equals(currentEntry.getTransitionId())) {
+                outcomes.put(id, StatusTransitionOutcome.TRANSITIONED);
+                statusChanges.add(new PendingInvoiceStatsTracker.StatusChange(currentEntry.getUbn(), from, to));
+            } else {
+                outcomes.put(id, StatusTransitionOutcome.STATUS_MISMATCH);
+            }
+        }
+
+        pendingInvoiceStatsTracker.recordTransitions(statusChanges);
+
+        return outcomes;
     }
 
+    /**
+     * Reads the stored status first so that a status changed through save() is counted too.
+     */
     @Override
     public PendingEInvoiceQueue updatePendingEInvoiceQueue(PendingEInvoiceQueue pendingEInvoiceQueue) {
-        return pendingEInvoiceQueueRepository.save(pendingEInvoiceQueue);
+
+        PendingEInvoiceQueue.PendingEInvoiceStatus storedStatus = null;
+
+        if (pendingEInvoiceQueue.getId() != null) {
+            final Query query = Query.query(where("_id").is(pendingEInvoiceQueue.getId()));
+            query.fields().include("status");
+            final PendingEInvoiceQueue storedEntry = mongoTemplate.findOne(query, PendingEInvoiceQueue.class);
+            storedStatus = storedEntry != null ? storedEntry.getStatus() : null;
+        }
+
+        final PendingEInvoiceQueue savedEntry = pendingEInvoiceQueueRepository.save(pendingEInvoiceQueue);
+
+        if (storedStatus == null) {
+            pendingInvoiceStatsTracker.recordCreated(savedEntry.getUbn(), savedEntry.getStatus());
+        } else {
+            pendingInvoiceStatsTracker.recordTransitions(List.of(new PendingInvoiceStatsTracker.StatusChange(savedEntry.getUbn(), storedStatus, savedEntry.getStatus())));
+        }
+
+        return savedEntry;
     }
 
     @Override
     public List<PendingEInvoiceQueue> findPendingEInvoicesByUbn(String ubn) {
-        return pendingEInvoiceQueueRepository.findAllByUbnAndStatus(ubn, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+
+        final List<PendingEInvoiceQueue> pendingEInvoices = pendingEInvoiceQueueRepository.findAllByUbnAndStatus(ubn, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+        pendingEInvoiceQueueRepository.resolveElectronicInvoices(pendingEInvoices);
+
+        return pendingEInvoices;
+    }
+
+    /**
+     * Candidates are read oldest first and claimed with one update that is guarded on the same criteria, so an entry claimed concurrently
+     * by another worker is skipped rather than claimed twice. The claimed entries are then read back by claim id. When other workers took every
+     * candidate, fresh candidates are read a few times before giving up with an empty list.
+     * Each branch of the claimable criteria is read in _id order from status_id_index, so the oldest candidates are merged without a blocking sort.
+     * Runs outside of a transaction so that concurrent claims do not fail with write conflicts.
+     */
+    @Override
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
+    public List<PendingEInvoiceQueue> claimBatch(String workerId, int size, Duration leaseDuration) {
+
+        if (size < 1) {
+            throw new IllegalArgumentException("Claim size must be positive: " + size);
+        }
+
+        final String claimId = UUID.randomUUID().toString();
+
+        for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; attempt++) {
+            final Date now = new Date();
+            final Query candidateQuery = Query.query(claimableCriteria(now)).with(Sort.by("_id")).limit(size);
+            candidateQuery.fields().include("status");
+
+            final Map<String, PendingEInvoiceQueue.PendingEInvoiceStatus> candidateStatuses = mongoTemplate.find(candidateQuery, PendingEInvoiceQueue.class).stream()
+                    .collect(Collectors.toMap(PendingEInvoiceQueue::getId, PendingEInvoiceQueue::getStatus));
+            final Collection<String> candidateIds = candidateStatuses.keySet();
+
+            if (candidateIds.isEmpty()) {
+                return List.of();
+            }
+
+            final Date leaseExpiresAt = Date.from(now.toInstant().plus(leaseDuration));
+            final Update updateOperation = new Update().set("status", PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED)
+                    .set("claimedBy", workerId)
+                    .set("claimId", claimId)
+                    .set("leaseExpiresAt", leaseExpiresAt)
+                    .set("modifiedDate", now);
+
+            final Query claimQuery = Query.query(new Criteria().andOperator(where("_id").in(candidateIds), claimableCriteria(now)));
+            final UpdateResult result = mongoTemplate.updateMulti(claimQuery, updateOperation, PendingEInvoiceQueue.class);
+
+            if (result.getModifiedCount() > 0) {
+                final List<PendingEInvoiceQueue> claimedEInvoices = pendingEInvoiceQueueRepository.findAllByClaimId(claimId);
+                pendingEInvoiceQueueRepository.resolveElectronicInvoices(claimedEInvoices);
+
+                pendingInvoiceStatsTracker.recordTransitions(claimedEInvoices.stream()
+                        .map(pending -> new PendingInvoiceStatsTracker.StatusChange(pending.getUbn(), candidateStatuses.get(pending.getId()), PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED))
+                        .collect(Collectors.toList()));
+
+                LOGGER.info("Worker {} claimed {} of {} candidate pending e-invoices until {}", workerId, claimedEInvoices.size(), candidateIds.size(), leaseExpiresAt);
+
+                return claimedEInvoices;
+            }
+        }
+
+        return List.of();
+    }
+
+    private Criteria claimableCriteria(Date now) {
+        return new Criteria().orOperator(where("status").is(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING),
+                where("status").is(PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED).and("leaseExpiresAt").lt(now));
     }
 
     @Override
     public List<PendingEInvoiceQueue> findPendingEInvoicesByStatuses(PendingEInvoiceQueue.PendingEInvoiceStatus... status) {
-        return pendingEInvoiceQueueRepository.findAllByStatusIn(Arrays.asList(status));
+
+        final List<PendingEInvoiceQueue> pendingEInvoices = pendingEInvoiceQueueRepository.findAllByStatusIn(Arrays.asList(status));
+        pendingEInvoiceQueueRepository.resolveElectronicInvoices(pendingEInvoices);
+
+        return pendingEInvoices;
     }
 
+    /**
+     * The cursor outlives this call, so it is not bound to a transaction.
+     */
     @Override
-    public void deleteByStatus(PendingEInvoiceQueue.PendingEInvoiceStatus status) {
-        pendingEInvoiceQueueRepository.deleteAllByStatus(status);
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
+    public Stream<PendingEInvoiceQueue> streamPendingEInvoicesByStatuses(PendingEInvoiceQueue.PendingEInvoiceStatus... status) {
+        return pendingEInvoiceQueueRepository.streamAllByStatusIn(Arrays.asList(status));
     }
 
     @Override
-    public Map<String, List<PendingInvoiceStats>> generatePendingEInvoiceStats() {
+    public KeysetPage<PendingEInvoiceQueue> findPendingEInvoicePageByStatuses(String afterId, int pageSize, PendingEInvoiceQueue.PendingEInvoiceStatus... status) {
 
-        final GroupOperation groupBy = Aggregation.group("ubn", "status")
-                .first("ubn").as("ubn")
-                .first("status").as("status")
-                .count().as("invoiceCount");
+        KeysetPage.checkPageSize(pageSize);
 
-        final TypedAggregation<PendingEInvoiceQueue> aggregation = Aggregation.newAggregation(PendingEInvoiceQueue.class, groupBy);
+        return pendingEInvoiceQueueRepository.findPageByStatusIn(Arrays.asList(status), afterId, pageSize);
+    }
 
-        final AggregationResults<PendingInvoiceStats> result = mongoTemplate.aggregate(aggregation, PendingInvoiceStats.class);
+    @Override
+    public void deleteByStatus(PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+        pendingEInvoiceQueueRepository.deleteAllByStatus(status);
+        pendingInvoiceStatsTracker.resetStatus(status);
+    }
+
+    /**
+     * Reads the status counters rather than aggregating the queue. Runs outside of a transaction, as it may rebuild missing counters.
+     */
+    @Override
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
+    public Map<String, List<PendingInvoiceStats>> generatePendingEInvoiceStats() {
+        return pendingInvoiceStatsTracker.getStats().stream()
+                .collect(groupingBy(PendingInvoiceStats::getUbn));
+    }
 
-        return result.getMappedResults().stream()
+    @Override
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
+    public Map<String, List<PendingInvoiceStats>> reconcilePendingEInvoiceStats() {
+        return pendingInvoiceStatsTracker.reconcile().stream()
                 .collect(groupingBy(PendingInvoiceStats::getUbn));
     }
 }
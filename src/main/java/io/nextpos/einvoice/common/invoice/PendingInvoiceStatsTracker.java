@@ -0,0 +1,198 @@
+package io.nextpos.einvoice.common.invoice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.GroupOperation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Maintains PendingInvoiceStatusCounter documents with $inc upserts so that pending e-invoice stats are read from one small document
+ * per (ubn, status) instead of being aggregated over the whole queue.
+ * <p>
+ * Counts recorded within a transaction are applied after it commits, so the hot counter documents are not written inside queue transactions,
+ * where concurrent increments would fail with write conflicts, and a rolled back change is not counted.
+ * <p>
+ * Writes that bypass the queue service, such as repository deletes, are not counted. reconcile() rebuilds the counters from the queue
+ * to correct such drift, and is meant to be run periodically.
+ */
+@Component
+public class PendingInvoiceStatsTracker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PendingInvoiceStatsTracker.class);
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    public PendingInvoiceStatsTracker(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    public void recordCreated(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+        runAfterCommit(() -> applyCreated(ubn, status));
+    }
+
+    private void applyCreated(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+
+        final Update updateOperation = new Update().inc("invoiceCount", 1)
+                .setOnInsert("ubn", ubn)
+                .setOnInsert("status", status);
+
+        mongoTemplate.upsert(Query.query(where("_id").is(PendingInvoiceStatusCounter.toId(ubn, status))), updateOperation, PendingInvoiceStatusCounter.class);
+    }
+
+    /**
+     * Applies the net change of all status changes with one unordered bulk write.
+     */
+    public void recordTransitions(Collection<StatusChange> statusChanges) {
+
+        final List<StatusChange> recordedChanges = List.copyOf(statusChanges);
+        runAfterCommit(() -> applyTransitions(recordedChanges));
+    }
+
+    private void applyTransitions(Collection<StatusChange> statusChanges) {
+
+        final Map<String, Delta> deltas = new HashMap<>();
+
+        for (StatusChange statusChange : statusChanges) {
+            if (statusChange.from == statusChange.to) {
+                continue;
+            }
+
+            deltas.computeIfAbsent(PendingInvoiceStatusCounter.toId(statusChange.ubn, statusChange.from), id -> new Delta(statusChange.ubn, statusChange.from)).count--;
+            deltas.computeIfAbsent(PendingInvoiceStatusCounter.toId(statusChange.ubn, statusChange.to), id -> new Delta(statusChange.ubn, statusChange.to)).count++;
+        }
+
+        deltas.values().removeIf(delta -> delta.count == 0);
+
+        if (deltas.isEmpty()) {
+            return;
+        }
+
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PendingInvoiceStatusCounter.class);
+
+        deltas.forEach((id, delta) -> bulkOperations.upsert(Query.query(where("_id").is(id)),
+                new Update().inc("invoiceCount", delta.count).setOnInsert("ubn", delta.ubn).setOnInsert("status", delta.status)));
+
+        bulkOperations.execute();
+    }
+
+    /**
+     * For deletes of every entry in a status.
+     */
+    public void resetStatus(PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+        mongoTemplate.updateMulti(Query.query(where("status").is(status)), new Update().set("invoiceCount", 0), PendingInvoiceStatusCounter.class);
+    }
+
+    /**
+     * Rebuilds the counters first when there are none yet but the queue has entries, e.g. when the counter collection was dropped.
+     */
+    public List<PendingInvoiceStats> getStats() {
+
+        final Query query = Query.query(where("invoiceCount").gt(0));
+        final List<PendingInvoiceStats> stats = mongoTemplate.find(query, PendingInvoiceStats.class, mongoTemplate.getCollectionName(PendingInvoiceStatusCounter.class));
+
+        if (stats.isEmpty() && !mongoTemplate.exists(new Query(), PendingInvoiceStatusCounter.class) && mongoTemplate.exists(new Query(), PendingEInvoiceQueue.class)) {
+            return reconcile();
+        }
+
+        return stats;
+    }
+
+    /**
+     * Overwrites the counters with the result of a $group over the queue. Status changes made while the aggregation runs may be
+     * counted twice or not at all until the next reconciliation.
+     */
+    public List<PendingInvoiceStats> reconcile() {
+
+        final GroupOperation groupBy = Aggregation.group("ubn", "status")
+                .first("ubn").as("ubn")
+                .first("status").as("status")
+                .count().as("invoiceCount");
+
+        final TypedAggregation<PendingEInvoiceQueue> aggregation = Aggregation.newAggregation(PendingEInvoiceQueue.class, groupBy);
+        final List<PendingInvoiceStats> stats = mongoTemplate.aggregate(aggregation, PendingInvoiceStats.class).getMappedResults();
+
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PendingInvoiceStatusCounter.class);
+        final List<String> counterIds = new ArrayList<>(stats.size());
+
+        for (PendingInvoiceStats stat : stats) {
+            final PendingEInvoiceQueue.PendingEInvoiceStatus status = PendingEInvoiceQueue.PendingEInvoiceStatus.valueOf(stat.getStatus());
+            final String id = PendingInvoiceStatusCounter.toId(stat.getUbn(), status);
+            counterIds.add(id);
+
+            bulkOperations.upsert(Query.query(where("_id").is(id)),
+                    new Update().set("invoiceCount", stat.getInvoiceCount()).set("ubn", stat.getUbn()).set("status", status));
+        }
+
+        bulkOperations.updateMulti(Query.query(where("_id").nin(counterIds)), new Update().set("invoiceCount", 0));
+        bulkOperations.execute();
+
+        LOGGER.info("Reconciled {} pending e-invoice status counters", stats.size());
+
+        return stats;
+    }
+
+    private void runAfterCommit(Runnable counterUpdate) {
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            counterUpdate.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                counterUpdate.run();
+            }
+        });
+    }
+
+    /**
+     * Status change of one queue entry.
+     */
+    public static class StatusChange {
+
+        private final String ubn;
+
+        private final PendingEInvoiceQueue.PendingEInvoiceStatus from;
+
+        private final PendingEInvoiceQueue.PendingEInvoiceStatus to;
+
+        public StatusChange(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus from, PendingEInvoiceQueue.PendingEInvoiceStatus to) {
+            this.ubn = ubn;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Delta {
+
+        private final String ubn;
+
+        private final PendingEInvoiceQueue.PendingEInvoiceStatus status;
+
+        private long count;
+
+        Delta(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+            this.ubn = ubn;
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.nextpos.einvoice.common.invoice;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Number of pending e-invoice queue entries per (ubn, status), kept up to date by every write that changes a status.
+ */
+@Document
+@Data
+@NoArgsConstructor
+public class PendingInvoiceStatusCounter {
+
+    /**
+     * ubn:status
+     */
+    @Id
+    private String id;
+
+    private String ubn;
+
+    private PendingEInvoiceQueue.PendingEInvoiceStatus status;
+
+    private long invoiceCount;
+
+    public static String toId(String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+        return ubn + ":" + status;
+    }
+}
@@ -0,0 +1,22 @@
+package io.nextpos.einvoice.common.invoice;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Data
+public class QRCodeVerificationReport {
+
+    private final Path reportFile;
+
+    private long verifiedCount;
+
+    private long mismatchCount;
+
+    private Duration elapsed;
+
+    public double getInvoicesPerSecond() {
+        return elapsed == null || elapsed.isZero() ? 0 : verifiedCount * 1_000_000_000d / elapsed.toNanos();
+    }
+}
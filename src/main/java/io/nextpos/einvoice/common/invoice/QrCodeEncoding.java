@@ -0,0 +1,39 @@
+package io.nextpos.einvoice.common.invoice;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of the item details in QR code 1 and QR code 2, declared by the last parameter of QR code 1 before the item details.
+ */
+public enum QrCodeEncoding {
+
+    BIG5('0', Charset.forName("Big5")),
+
+    UTF8('1', StandardCharsets.UTF_8),
+
+    /**
+     * Never chosen by the item encoder as it is always larger than Big5 or UTF-8.
+     */
+    BASE64('2', StandardCharsets.US_ASCII);
+
+    private final char code;
+
+    private final Charset charset;
+
+    QrCodeEncoding(char code, Charset charset) {
+        this.code = code;
+        this.charset = charset;
+    }
+
+    public char getCode() {
+        return code;
+    }
+
+    /**
+     * Charset of the QR code content bytes.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+}
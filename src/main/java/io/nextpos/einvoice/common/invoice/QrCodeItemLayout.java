@@ -0,0 +1,22 @@
+package io.nextpos.einvoice.common.invoice;
+
+import lombok.Data;
+
+/**
+ * How the item details of an invoice are split between QR code 1 and QR code 2. Items that fit into neither are left out.
+ */
+@Data
+public class QrCodeItemLayout {
+
+    private final QrCodeEncoding encoding;
+
+    private final int qrCode1ItemCount;
+
+    private final int qrCode2ItemCount;
+
+    private final int totalItemCount;
+
+    public int getRecordedItemCount() {
+        return qrCode1ItemCount + qrCode2ItemCount;
+    }
+}
@@ -0,0 +1,19 @@
+package io.nextpos.einvoice.common.invoice;
+
+/**
+ * Outcome of a bulk status transition for one queue entry.
+ */
+public enum StatusTransitionOutcome {
+
+    /**
+     * Moved from the expected status to the target status.
+     */
+    TRANSITIONED,
+
+    /**
+     * Left unchanged because its status was not the expected one.
+     */
+    STATUS_MISMATCH,
+
+    NOT_FOUND
+}
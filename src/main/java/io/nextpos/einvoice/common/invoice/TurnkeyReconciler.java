@@ -0,0 +1,301 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Applies Turnkey processing results to the pending e-invoice queue.
+ * <p>
+ * Results are read from the high-water mark of the source onwards and joined, by invoiceIdentifier, against an in-memory index of the queue entries
+ * that are still waiting for a result. Each batch of results is applied with one unordered bulk write, guarded on the status the entry had when indexed,
+ * after which the high-water mark moves past the batch.
+ * <p>
+ * A result can arrive before its entry is marked PROCESSED, since Turnkey picks up a MIG file as soon as it is published. Results that match no
+ * queue entry at all therefore hold the high-water mark before the first of them, so they are read again by the next run. The hold is recorded
+ * on the mark with the last sequence read at the time, and once it is older than the configured hold timeout, unmatched results up to that
+ * sequence are skipped so the mark can move on.
+ */
+@Component
+public class TurnkeyReconciler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TurnkeyReconciler.class);
+
+    private static final Set<PendingEInvoiceQueue.PendingEInvoiceStatus> OUTSTANDING_STATUSES = EnumSet.of(
+            PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED,
+            PendingEInvoiceQueue.PendingEInvoiceStatus.UPLOADED);
+
+    private final MongoTemplate mongoTemplate;
+
+    private final PendingInvoiceStatsTracker pendingInvoiceStatsTracker;
+
+    private final int batchSize;
+
+    private final Duration holdTimeout;
+
+    @Autowired
+    public TurnkeyReconciler(MongoTemplate mongoTemplate, PendingInvoiceStatsTracker pendingInvoiceStatsTracker, EInvoiceProperties properties) {
+        this.mongoTemplate = mongoTemplate;
+        this.pendingInvoiceStatsTracker = pendingInvoiceStatsTracker;
+        this.batchSize = properties.getTurnkey().getReconciliationBatchSize();
+        this.holdTimeout = properties.getTurnkey().getReconciliationHoldTimeout();
+    }
+
+    public TurnkeyReconciliationResult reconcile(TurnkeyResultSource resultSource) {
+
+        final TurnkeyReconciliationResult reconciliationResult = new TurnkeyReconciliationResult(resultSource.getName());
+        final Map<String, OutstandingEntry> outstandingEntries = indexOutstandingEntries();
+        final TurnkeyReconciliationMark mark = mongoTemplate.findById(resultSource.getName(), TurnkeyReconciliationMark.class);
+        final boolean holdTimedOut = mark != null && mark.getHeldSince() != null && mark.getHeldSince().toInstant().plus(holdTimeout).isBefore(Instant.now());
+        final long skippedThroughSequence = holdTimedOut ? mark.getHeldThroughSequence() : Long.MIN_VALUE;
+        long highWaterMark = mark != null ? mark.getSequence() : 0;
+        long fetchedSequence = highWaterMark;
+        boolean held = false;
+        List<TurnkeyResult> results;
+
+        do {
+            results = resultSource.fetchResults(fetchedSequence, batchSize);
+
+            if (results.isEmpty()) {
+                break;
+            }
+
+            reconciliationResult.setResultCount(reconciliationResult.getResultCount() + results.size());
+            final int firstUnmatchedIndex = applyResults(results, outstandingEntries, skippedThroughSequence, reconciliationResult);
+            fetchedSequence = results.get(results.size() - 1).getSequence();
+
+            if (!held) {
+                held = firstUnmatchedIndex >= 0;
+                final int lastSettledIndex = held ? firstUnmatchedIndex - 1 : results.size() - 1;
+
+                if (lastSettledIndex >= 0) {
+                    highWaterMark = results.get(lastSettledIndex).getSequence();
+                    saveHighWaterMark(resultSource.getName(), highWaterMark);
+                }
+            }
+        } while (results.size() == batchSize);
+
+        if (held && (holdTimedOut || mark == null || mark.getHeldSince() == null)) {
+            saveHold(resultSource.getName(), new Date(), fetchedSequence);
+        } else if (!held && mark != null && mark.getHeldSince() != null) {
+            saveHold(resultSource.getName(), null, 0);
+        }
+
+        reconciliationResult.setHighWaterMark(highWaterMark);
+
+        LOGGER.info("Reconciled Turnkey results: {}", reconciliationResult);
+
+        return reconciliationResult;
+    }
+
+    public long getHighWaterMark(String sourceName) {
+
+        final TurnkeyReconciliationMark mark = mongoTemplate.findById(sourceName, TurnkeyReconciliationMark.class);
+
+        return mark != null ? mark.getSequence() : 0;
+    }
+
+    /**
+     * Only the last result per invoiceIdentifier is applied, since unordered writes to the same entry could otherwise land in any order.
+     * Results that match no queue entry are skipped up to skippedThroughSequence, the end of a hold that has timed out.
+     *
+     * @return index of the first result that matches no queue entry and is not skipped, or -1.
+     */
+    private int applyResults(List<TurnkeyResult> results, Map<String, OutstandingEntry> outstandingEntries, long skippedThroughSequence, TurnkeyReconciliationResult reconciliationResult) {
+
+        final Set<String> unmatchedIdentifiers = indexUnmatchedEntries(results, outstandingEntries);
+        final Map<String, TurnkeyResult> latestResults = new LinkedHashMap<>();
+        int firstUnmatchedIndex = -1;
+
+        for (int i = 0; i < results.size(); i++) {
+            final TurnkeyResult result = results.get(i);
+
+            if (unmatchedIdentifiers.contains(result.getInvoiceIdentifier()) && result.getSequence() <= skippedThroughSequence) {
+                LOGGER.warn("Turnkey result matched no queue entry within the hold timeout and is skipped: {}", result);
+                reconciliationResult.setSkippedCount(reconciliationResult.getSkippedCount() + 1);
+                continue;
+            }
+
+            if (unmatchedIdentifiers.contains(result.getInvoiceIdentifier())) {
+                LOGGER.debug("Turnkey result matches no queue entry yet: {}", result);
+                reconciliationResult.setHeldCount(reconciliationResult.getHeldCount() + 1);
+
+                if (firstUnmatchedIndex < 0) {
+                    firstUnmatchedIndex = i;
+                }
+
+                continue;
+            }
+
+            final OutstandingEntry outstandingEntry = outstandingEntries.get(result.getInvoiceIdentifier());
+
+            if (outstandingEntry == null) {
+                reconciliationResult.setSkippedCount(reconciliationResult.getSkippedCount() + 1);
+                continue;
+            }
+
+            final TurnkeyResult pendingResult = latestResults.get(result.getInvoiceIdentifier());
+            final PendingEInvoiceQueue.PendingEInvoiceStatus currentStatus = pendingResult != null ? pendingResult.getStatus() : outstandingEntry.status;
+
+            if (!isForward(currentStatus, result.getStatus())) {
+                reconciliationResult.setSkippedCount(reconciliationResult.getSkippedCount() + 1);
+                continue;
+            }
+
+            latestResults.put(result.getInvoiceIdentifier(), result);
+        }
+
+        if (latestResults.isEmpty()) {
+            return firstUnmatchedIndex;
+        }
+
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PendingEInvoiceQueue.class);
+        final Map<String, PendingInvoiceStatsTracker.StatusChange> statusChanges = new HashMap<>();
+        final String transitionId = UUID.randomUUID().toString();
+        final Date modifiedDate = new Date();
+
+        for (TurnkeyResult result : latestResults.values()) {
+            final OutstandingEntry outstandingEntry = outstandingEntries.get(result.getInvoiceIdentifier());
+            final Query query = Query.query(where("_id").is(outstandingEntry.id).and("status").is(outstandingEntry.status));
+
+            bulkOperations.updateOne(query, new Update().set("status", result.getStatus()).set("transitionId", transitionId).set("modifiedDate", modifiedDate));
+            statusChanges.put(outstandingEntry.id, new PendingInvoiceStatsTracker.StatusChange(outstandingEntry.ubn, outstandingEntry.status, result.getStatus()));
+
+            if (OUTSTANDING_STATUSES.contains(result.getStatus())) {
+                outstandingEntry.status = result.getStatus();
+            } else {
+                outstandingEntries.remove(result.getInvoiceIdentifier());
+            }
+        }
+
+        final int modifiedCount = bulkOperations.execute().getModifiedCount();
+        reconciliationResult.setUpdatedCount(reconciliationResult.getUpdatedCount() + modifiedCount);
+
+        if (modifiedCount < statusChanges.size()) {
+            final Query query = Query.query(where("_id").in(statusChanges.keySet()).and("transitionId").is(transitionId));
+            query.fields().include("_id");
+
+            final Set<String> modifiedIds = mongoTemplate.find(query, PendingEInvoiceQueue.class).stream()
+                    .map(PendingEInvoiceQueue::getId)
+                    .collect(Collectors.toSet());
+
+            statusChanges.keySet().retainAll(modifiedIds);
+        }
+
+        pendingInvoiceStatsTracker.recordTransitions(statusChanges.values());
+
+        return firstUnmatchedIndex;
+    }
+
+    /**
+     * Looks up the results that are not in the index with one query. Entries that were marked PROCESSED after the index was built are added
+     * to it, entries that already have a final status are left out so their results are skipped.
+     *
+     * @return invoice identifiers that match no queue entry.
+     */
+    private Set<String> indexUnmatchedEntries(List<TurnkeyResult> results, Map<String, OutstandingEntry> outstandingEntries) {
+
+        final Set<String> unmatchedIdentifiers = results.stream()
+                .map(TurnkeyResult::getInvoiceIdentifier)
+                .filter(invoiceIdentifier -> !outstandingEntries.containsKey(invoiceIdentifier))
+                .collect(Collectors.toSet());
+
+        if (unmatchedIdentifiers.isEmpty()) {
+            return unmatchedIdentifiers;
+        }
+
+        final Query query = Query.query(where("invoiceIdentifier").in(unmatchedIdentifiers));
+        query.fields().include("ubn", "invoiceIdentifier", "status");
+
+        for (PendingEInvoiceQueue pendingEInvoiceQueue : mongoTemplate.find(query, PendingEInvoiceQueue.class)) {
+            unmatchedIdentifiers.remove(pendingEInvoiceQueue.getInvoiceIdentifier());
+
+            if (OUTSTANDING_STATUSES.contains(pendingEInvoiceQueue.getStatus())) {
+                outstandingEntries.put(pendingEInvoiceQueue.getInvoiceIdentifier(), new OutstandingEntry(pendingEInvoiceQueue.getId(), pendingEInvoiceQueue.getUbn(), pendingEInvoiceQueue.getStatus()));
+            }
+        }
+
+        return unmatchedIdentifiers;
+    }
+
+    private boolean isForward(PendingEInvoiceQueue.PendingEInvoiceStatus currentStatus, PendingEInvoiceQueue.PendingEInvoiceStatus resultStatus) {
+
+        switch (resultStatus) {
+            case UPLOADED:
+                return currentStatus == PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED;
+            case CONFIRMED:
+            case ERROR:
+                return OUTSTANDING_STATUSES.contains(currentStatus);
+            default:
+                return false;
+        }
+    }
+
+    private Map<String, OutstandingEntry> indexOutstandingEntries() {
+
+        final Query query = Query.query(where("status").in(OUTSTANDING_STATUSES).and("invoiceIdentifier").ne(null)).cursorBatchSize(batchSize);
+        query.fields().include("ubn", "invoiceIdentifier", "status");
+
+        final Map<String, OutstandingEntry> outstandingEntries = new HashMap<>();
+
+        try (CloseableIterator<PendingEInvoiceQueue> pendingEInvoices = mongoTemplate.stream(query, PendingEInvoiceQueue.class)) {
+            while (pendingEInvoices.hasNext()) {
+                final PendingEInvoiceQueue pendingEInvoiceQueue = pendingEInvoices.next();
+                outstandingEntries.put(pendingEInvoiceQueue.getInvoiceIdentifier(), new OutstandingEntry(pendingEInvoiceQueue.getId(), pendingEInvoiceQueue.getUbn(), pendingEInvoiceQueue.getStatus()));
+            }
+        }
+
+        return outstandingEntries;
+    }
+
+    private void saveHighWaterMark(String sourceName, long sequence) {
+
+        final Update updateOperation = new Update().max("sequence", sequence).set("modifiedDate", new Date());
+        mongoTemplate.upsert(Query.query(where("_id").is(sourceName)), updateOperation, TurnkeyReconciliationMark.class);
+    }
+
+    /**
+     * @param heldSince null clears the hold.
+     */
+    private void saveHold(String sourceName, Date heldSince, long heldThroughSequence) {
+
+        final Update updateOperation = new Update().set("heldSince", heldSince).set("heldThroughSequence", heldThroughSequence);
+        mongoTemplate.upsert(Query.query(where("_id").is(sourceName)), updateOperation, TurnkeyReconciliationMark.class);
+    }
+
+    private static class OutstandingEntry {
+
+        private final String id;
+
+        private final String ubn;
+
+        private PendingEInvoiceQueue.PendingEInvoiceStatus status;
+
+        OutstandingEntry(String id, String ubn, PendingEInvoiceQueue.PendingEInvoiceStatus status) {
+            this.id = id;
+            this.ubn = ubn;
+            this.status = status;
+        }
+    }
+}
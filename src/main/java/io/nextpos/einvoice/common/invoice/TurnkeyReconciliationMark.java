@@ -0,0 +1,37 @@
+package io.nextpos.einvoice.common.invoice;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * High-water mark of a Turnkey result source, i.e. the sequence of the last reconciled result.
+ */
+@Document
+@Data
+@NoArgsConstructor
+public class TurnkeyReconciliationMark {
+
+    /**
+     * Name of the result source.
+     */
+    @Id
+    private String id;
+
+    private long sequence;
+
+    /**
+     * When results that match no queue entry started to hold the high-water mark, or null if it is not held.
+     */
+    private Date heldSince;
+
+    /**
+     * Last sequence read by the run that started the hold. Unmatched results up to it are skipped once the hold has timed out.
+     */
+    private long heldThroughSequence;
+
+    private Date modifiedDate;
+}
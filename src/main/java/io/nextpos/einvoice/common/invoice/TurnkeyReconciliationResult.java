@@ -0,0 +1,29 @@
+package io.nextpos.einvoice.common.invoice;
+
+import lombok.Data;
+
+@Data
+public class TurnkeyReconciliationResult {
+
+    private final String sourceName;
+
+    private long resultCount;
+
+    /**
+     * Queue entries whose status was changed.
+     */
+    private long updatedCount;
+
+    /**
+     * Results whose queue entry already has a final status, that would move an entry back to an earlier status, or that matched no queue entry
+     * for longer than the hold timeout.
+     */
+    private long skippedCount;
+
+    /**
+     * Results that match no queue entry yet. The high-water mark is held before the first of them.
+     */
+    private long heldCount;
+
+    private long highWaterMark;
+}
@@ -0,0 +1,24 @@
+package io.nextpos.einvoice.common.invoice;
+
+import lombok.Data;
+
+/**
+ * Processing result of a MIG file as recorded by Turnkey.
+ */
+@Data
+public class TurnkeyResult {
+
+    /**
+     * Increases with every result recorded by the source, used as the high-water mark of reconciliation.
+     */
+    private final long sequence;
+
+    private final String invoiceIdentifier;
+
+    /**
+     * UPLOADED, CONFIRMED or ERROR
+     */
+    private final PendingEInvoiceQueue.PendingEInvoiceStatus status;
+
+    private final String message;
+}
@@ -0,0 +1,19 @@
+package io.nextpos.einvoice.common.invoice;
+
+import java.util.List;
+
+/**
+ * Reads Turnkey processing results incrementally, e.g. from the Turnkey database or from a file export.
+ */
+public interface TurnkeyResultSource {
+
+    /**
+     * Identifies the high-water mark of this source.
+     */
+    String getName();
+
+    /**
+     * @return up to limit results with a sequence greater than afterSequence, in sequence order.
+     */
+    List<TurnkeyResult> fetchResults(long afterSequence, int limit);
+}
@@ -0,0 +1,525 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Publishes MIG files of pending e-invoices to the Turnkey upload directory.
+ * <p>
+ * Files are written to a staging directory in groups of the configured flush size. Each group is synced to disk before its files are moved
+ * into the upload directory with atomic renames, so Turnkey never picks up a partially written file. The published queue entries are then marked
+ * PROCESSED with one unordered bulk write.
+ * <p>
+ * Entries that were moved on or claimed by another worker since they were loaded are skipped before any file is written. PENDING entries are
+ * claimed by the sink first, like claimBatch does, so that a worker cannot publish them at the same time. Only one entry per invoice identifier is
+ * published per group, as they would share a file. An entry whose file cannot be written or moved is put back to PENDING if the sink claimed it,
+ * and otherwise keeps its claim until its lease expires.
+ */
+@Component
+public class TurnkeyUploadSink {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TurnkeyUploadSink.class);
+
+    private static final String SOURCE_DIRECTORY = "SRC";
+
+    private static final String STAGING_DIRECTORY = ".staging";
+
+    private static final String FILE_EXTENSION = ".xml";
+
+    /**
+     * claimedBy of the PENDING entries the sink claims for publishing.
+     */
+    static final String CLAIMANT = "turnkey-upload-sink";
+
+    private static final List<PendingEInvoiceQueue.PendingEInvoiceStatus> PUBLISHABLE_STATUSES = List.of(
+            PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING,
+            PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED);
+
+    private final MigWriter migWriter;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository;
+
+    private final PendingInvoiceStatsTracker pendingInvoiceStatsTracker;
+
+    private final EInvoiceProperties.Turnkey settings;
+
+    @Autowired
+    public TurnkeyUploadSink(MigWriter migWriter, MongoTemplate mongoTemplate, PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository,
+                             PendingInvoiceStatsTracker pendingInvoiceStatsTracker, EInvoiceProperties properties) {
+        this.migWriter = migWriter;
+        this.mongoTemplate = mongoTemplate;
+        this.pendingEInvoiceQueueRepository = pendingEInvoiceQueueRepository;
+        this.pendingInvoiceStatsTracker = pendingInvoiceStatsTracker;
+        this.settings = properties.getTurnkey();
+    }
+
+    /**
+     * @return number of queue entries marked PROCESSED.
+     */
+    public int publish(Collection<PendingEInvoiceQueue> pendingEInvoices) {
+
+        if (settings.getUploadDirectory() == null) {
+            throw new IllegalStateException("Turnkey upload directory is not configured: einvoice.turnkey.upload-directory");
+        }
+
+        final Path stagingDirectory = getStagingDirectory();
+
+        try {
+            Files.createDirectories(stagingDirectory);
+
+            for (PendingEInvoiceQueue.PendingEInvoiceType invoiceType : PendingEInvoiceQueue.PendingEInvoiceType.values()) {
+                Files.createDirectories(getTargetDirectory(invoiceType));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Turnkey directories cannot be created: " + settings.getUploadDirectory(), e);
+        }
+
+        final Iterator<PendingEInvoiceQueue> iterator = pendingEInvoices.iterator();
+        final List<PendingEInvoiceQueue> batch = new ArrayList<>(settings.getFlushSize());
+        int processedCount = 0;
+
+        while (iterator.hasNext()) {
+            batch.add(iterator.next());
+
+            if (batch.size() == settings.getFlushSize() || !iterator.hasNext()) {
+                processedCount += publishBatch(batch, stagingDirectory);
+                batch.clear();
+            }
+        }
+
+        LOGGER.info("Published {} of {} pending e-invoices to {}", processedCount, pendingEInvoices.size(), settings.getUploadDirectory());
+
+        return processedCount;
+    }
+
+    /**
+     * Turnkey looks up processing results by this identifier, e.g. C0401AW00002350.
+     */
+    public static String toInvoiceIdentifier(PendingEInvoiceQueue pendingEInvoiceQueue) {
+        return pendingEInvoiceQueue.getInvoiceType().getMessageType() + pendingEInvoiceQueue.getElectronicInvoice().getInternalInvoiceNumber();
+    }
+
+    private int publishBatch(List<PendingEInvoiceQueue> batch, Path stagingDirectory) {
+
+        pendingEInvoiceQueueRepository.resolveElectronicInvoices(batch);
+
+        final List<StagedFile> claimedFiles = claimEntries(findPublishableEntries(batch));
+        final List<StagedFile> stagedFiles = extendLeases(stageFiles(claimedFiles, stagingDirectory));
+        final List<StagedFile> publishedFiles = new ArrayList<>(stagedFiles.size());
+        final Set<Path> targetDirectories = new LinkedHashSet<>();
+
+        for (StagedFile stagedFile : stagedFiles) {
+            final Path targetDirectory = getTargetDirectory(stagedFile.pendingEInvoiceQueue.getInvoiceType());
+
+            try {
+                Files.move(stagedFile.path, targetDirectory.resolve(stagedFile.path.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                publishedFiles.add(stagedFile);
+                targetDirectories.add(targetDirectory);
+            } catch (IOException e) {
+                LOGGER.error("MIG file cannot be moved to the upload directory: {}", stagedFile.path, e);
+                deleteQuietly(stagedFile.path);
+            }
+        }
+
+        targetDirectories.forEach(this::syncDirectory);
+
+        final int processedCount = markAsProcessed(publishedFiles);
+
+        claimedFiles.removeAll(publishedFiles);
+        releaseClaims(claimedFiles);
+
+        return processedCount;
+    }
+
+    /**
+     * Keeps the entries that are still stored with the status they were loaded with, read back with one query. A CLAIMED entry must also
+     * still hold the claim it was loaded with and an unexpired lease, otherwise it belongs to whichever worker claimed it since.
+     */
+    private List<PendingEInvoiceQueue> findPublishableEntries(List<PendingEInvoiceQueue> batch) {
+
+        final List<PendingEInvoiceQueue> candidates = batch.stream()
+                .filter(pending -> PUBLISHABLE_STATUSES.contains(pending.getStatus()))
+                .collect(Collectors.toList());
+
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+
+        final Query query = Query.query(where("_id").in(candidates.stream().map(PendingEInvoiceQueue::getId).collect(Collectors.toList())));
+        query.fields().include("status", "claimId", "leaseExpiresAt");
+
+        final Map<String, PendingEInvoiceQueue> storedEntries = mongoTemplate.find(query, PendingEInvoiceQueue.class).stream()
+                .collect(Collectors.toMap(PendingEInvoiceQueue::getId, Function.identity()));
+        final Date now = new Date();
+
+        final List<PendingEInvoiceQueue> publishableEntries = candidates.stream()
+                .filter(pending -> isStoredAsLoaded(storedEntries.get(pending.getId()), pending, now))
+                .collect(Collectors.toList());
+
+        if (publishableEntries.size() < batch.size()) {
+            LOGGER.info("Skipped {} of {} pending e-invoices that are no longer publishable", batch.size() - publishableEntries.size(), batch.size());
+        }
+
+        return publishableEntries;
+    }
+
+    private boolean isStoredAsLoaded(PendingEInvoiceQueue storedEntry, PendingEInvoiceQueue loadedEntry, Date now) {
+
+        if (storedEntry == null || storedEntry.getStatus() != loadedEntry.getStatus()) {
+            return false;
+        }
+
+        if (storedEntry.getStatus() == PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED) {
+            return storedEntry.getClaimId() != null && storedEntry.getClaimId().equals(loadedEntry.getClaimId())
+                    && storedEntry.getLeaseExpiresAt() != null && storedEntry.getLeaseExpiresAt().after(now);
+        }
+
+        return true;
+    }
+
+    /**
+     * Claims the PENDING entries with one update guarded on their status, under a claim id of this batch, and keeps those that were claimed
+     * along with the entries that were loaded CLAIMED.
+     */
+    private List<StagedFile> claimEntries(List<PendingEInvoiceQueue> publishableEntries) {
+
+        final List<StagedFile> claimedFiles = new ArrayList<>(publishableEntries.size());
+        final List<String> pendingIds = new ArrayList<>();
+
+        for (PendingEInvoiceQueue pendingEInvoiceQueue : publishableEntries) {
+            if (pendingEInvoiceQueue.getStatus() == PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED) {
+                claimedFiles.add(new StagedFile(pendingEInvoiceQueue, pendingEInvoiceQueue.getClaimId(), false));
+            } else {
+                pendingIds.add(pendingEInvoiceQueue.getId());
+            }
+        }
+
+        if (pendingIds.isEmpty()) {
+            return claimedFiles;
+        }
+
+        final String claimId = UUID.randomUUID().toString();
+        final Date now = new Date();
+        final Update updateOperation = new Update().set("status", PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED)
+                .set("claimedBy", CLAIMANT)
+                .set("claimId", claimId)
+                .set("leaseExpiresAt", Date.from(now.toInstant().plus(settings.getPublishLease())))
+                .set("modifiedDate", now);
+
+        final Query claimQuery = Query.query(where("_id").in(pendingIds).and("status").is(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING));
+        final long modifiedCount = mongoTemplate.updateMulti(claimQuery, updateOperation, PendingEInvoiceQueue.class).getModifiedCount();
+
+        final Set<String> claimedIds = new HashSet<>(pendingIds);
+
+        if (modifiedCount < pendingIds.size()) {
+            final Query query = Query.query(where("_id").in(pendingIds).and("claimId").is(claimId));
+            query.fields().include("_id");
+
+            claimedIds.retainAll(mongoTemplate.find(query, PendingEInvoiceQueue.class).stream()
+                    .map(PendingEInvoiceQueue::getId)
+                    .collect(Collectors.toSet()));
+
+            LOGGER.info("Skipped {} of {} pending e-invoices that were claimed by a worker before they could be published", pendingIds.size() - claimedIds.size(), pendingIds.size());
+        }
+
+        final List<PendingInvoiceStatsTracker.StatusChange> statusChanges = new ArrayList<>(claimedIds.size());
+
+        for (PendingEInvoiceQueue pendingEInvoiceQueue : publishableEntries) {
+            if (claimedIds.contains(pendingEInvoiceQueue.getId())) {
+                claimedFiles.add(new StagedFile(pendingEInvoiceQueue, claimId, true));
+                statusChanges.add(new PendingInvoiceStatsTracker.StatusChange(pendingEInvoiceQueue.getUbn(),
+                        PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING, PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED));
+            }
+        }
+
+        pendingInvoiceStatsTracker.recordTransitions(statusChanges);
+
+        return claimedFiles;
+    }
+
+    /**
+     * Writes every file of the batch before syncing any of them, so the file system can flush the batch together.
+     * An entry that cannot be written, e.g. because its electronic invoice is missing, is skipped on its own, as is an entry whose invoice identifier
+     * is already staged by another entry of the batch.
+     */
+    private List<StagedFile> stageFiles(List<StagedFile> claimedFiles, Path stagingDirectory) {
+
+        final List<StagedFile> stagedFiles = new ArrayList<>(claimedFiles.size());
+        final Set<String> invoiceIdentifiers = new HashSet<>();
+
+        try {
+            for (StagedFile stagedFile : claimedFiles) {
+                final PendingEInvoiceQueue pendingEInvoiceQueue = stagedFile.pendingEInvoiceQueue;
+
+                try {
+                    stagedFile.invoiceIdentifier = toInvoiceIdentifier(pendingEInvoiceQueue);
+
+                    if (!invoiceIdentifiers.add(stagedFile.invoiceIdentifier)) {
+                        LOGGER.warn("Pending e-invoice {} is skipped as {} is already published by another entry of the batch", pendingEInvoiceQueue.getId(), stagedFile.invoiceIdentifier);
+                        continue;
+                    }
+
+                    stagedFile.path = stagingDirectory.resolve(stagedFile.invoiceIdentifier + FILE_EXTENSION);
+                    stagedFile.channel = FileChannel.open(stagedFile.path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                    stagedFiles.add(stagedFile);
+                    migWriter.write(pendingEInvoiceQueue, Channels.newOutputStream(stagedFile.channel));
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("MIG file cannot be written for pending e-invoice: {}", pendingEInvoiceQueue.getId(), e);
+                    stagedFile.failed = true;
+                }
+            }
+
+            for (StagedFile stagedFile : stagedFiles) {
+                if (!stagedFile.failed) {
+                    try {
+                        stagedFile.channel.force(false);
+                    } catch (IOException e) {
+                        LOGGER.error("MIG file cannot be synced: {}", stagedFile.path, e);
+                        stagedFile.failed = true;
+                    }
+                }
+            }
+        } finally {
+            for (StagedFile stagedFile : stagedFiles) {
+                try {
+                    stagedFile.channel.close();
+                } catch (IOException e) {
+                    LOGGER.error("MIG file cannot be closed: {}", stagedFile.path, e);
+                    stagedFile.failed = true;
+                }
+            }
+        }
+
+        stagedFiles.removeIf(stagedFile -> {
+            if (stagedFile.failed) {
+                deleteQuietly(stagedFile.path);
+            }
+
+            return stagedFile.failed;
+        });
+
+        return stagedFiles;
+    }
+
+    /**
+     * Extends the leases of the staged entries right before their files are moved, guarded on their claim and an unexpired lease.
+     * Entries that lost their claim while their files were written are dropped along with their files.
+     */
+    private List<StagedFile> extendLeases(List<StagedFile> stagedFiles) {
+
+        if (stagedFiles.isEmpty()) {
+            return stagedFiles;
+        }
+
+        final Map<String, StagedFile> claimedFiles = stagedFiles.stream()
+                .collect(Collectors.toMap(stagedFile -> stagedFile.pendingEInvoiceQueue.getId(), Function.identity()));
+
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PendingEInvoiceQueue.class);
+        final Date now = new Date();
+        final Date leaseExpiresAt = Date.from(now.toInstant().plus(settings.getPublishLease()));
+
+        for (StagedFile claimedFile : claimedFiles.values()) {
+            bulkOperations.updateOne(Query.query(claimCriteria(claimedFile).and("leaseExpiresAt").gt(now)), new Update().max("leaseExpiresAt", leaseExpiresAt));
+        }
+
+        if (bulkOperations.execute().getMatchedCount() < claimedFiles.size()) {
+            final Query query = Query.query(where("_id").in(claimedFiles.keySet())
+                    .and("status").is(PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED)
+                    .and("leaseExpiresAt").gte(leaseExpiresAt));
+            query.fields().include("claimId");
+
+            final Set<String> heldIds = mongoTemplate.find(query, PendingEInvoiceQueue.class).stream()
+                    .filter(stored -> stored.getClaimId().equals(claimedFiles.get(stored.getId()).claimId))
+                    .map(PendingEInvoiceQueue::getId)
+                    .collect(Collectors.toSet());
+
+            stagedFiles.removeIf(stagedFile -> {
+                final boolean lost = !heldIds.contains(stagedFile.pendingEInvoiceQueue.getId());
+
+                if (lost) {
+                    LOGGER.warn("Lease of pending e-invoice {} was lost before its MIG file was published", stagedFile.pendingEInvoiceQueue.getId());
+                    deleteQuietly(stagedFile.path);
+                }
+
+                return lost;
+            });
+        }
+
+        return stagedFiles;
+    }
+
+    /**
+     * Each update is guarded on the claim the entry is published under, so an entry claimed again by another worker is left to that worker.
+     * Only the entries that were updated, read back by the transition id of this call if some were not, are marked PROCESSED in memory and counted.
+     */
+    private int markAsProcessed(List<StagedFile> publishedFiles) {
+
+        if (publishedFiles.isEmpty()) {
+            return 0;
+        }
+
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, PendingEInvoiceQueue.class);
+        final String transitionId = UUID.randomUUID().toString();
+        final Date modifiedDate = new Date();
+
+        for (StagedFile publishedFile : publishedFiles) {
+            final Update updateOperation = new Update().set("status", PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED)
+                    .set("invoiceIdentifier", publishedFile.invoiceIdentifier)
+                    .set("transitionId", transitionId)
+                    .set("modifiedDate", modifiedDate)
+                    .unset("claimedBy")
+                    .unset("claimId")
+                    .unset("leaseExpiresAt");
+
+            bulkOperations.updateOne(Query.query(claimCriteria(publishedFile)), updateOperation);
+        }
+
+        final int modifiedCount = bulkOperations.execute().getModifiedCount();
+        final List<StagedFile> processedFiles = new ArrayList<>(publishedFiles);
+
+        if (modifiedCount < publishedFiles.size()) {
+            final Query query = Query.query(where("_id").in(publishedFiles.stream().map(f -> f.pendingEInvoiceQueue.getId()).collect(Collectors.toList()))
+                    .and("transitionId").is(transitionId));
+            query.fields().include("_id");
+
+            final Set<String> modifiedIds = mongoTemplate.find(query, PendingEInvoiceQueue.class).stream()
+                    .map(PendingEInvoiceQueue::getId)
+                    .collect(Collectors.toSet());
+
+            processedFiles.removeIf(publishedFile -> !modifiedIds.contains(publishedFile.pendingEInvoiceQueue.getId()));
+        }
+
+        final List<PendingInvoiceStatsTracker.StatusChange> statusChanges = new ArrayList<>(processedFiles.size());
+
+        for (StagedFile processedFile : processedFiles) {
+            final PendingEInvoiceQueue pendingEInvoiceQueue = processedFile.pendingEInvoiceQueue;
+            pendingEInvoiceQueue.markAsProcessed();
+            pendingEInvoiceQueue.setInvoiceIdentifier(processedFile.invoiceIdentifier);
+
+            statusChanges.add(new PendingInvoiceStatsTracker.StatusChange(pendingEInvoiceQueue.getUbn(),
+                    PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED, PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED));
+        }
+
+        pendingInvoiceStatsTracker.recordTransitions(statusChanges);
+
+        return modifiedCount;
+    }
+
+    /**
+     * Puts the entries the sink claimed but did not publish back to PENDING, one guarded update each so that only released entries are counted.
+     */
+    private void releaseClaims(List<StagedFile> unpublishedFiles) {
+
+        final List<PendingInvoiceStatsTracker.StatusChange> statusChanges = new ArrayList<>();
+        final Update updateOperation = new Update().set("status", PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING)
+                .set("modifiedDate", new Date())
+                .unset("claimedBy")
+                .unset("claimId")
+                .unset("leaseExpiresAt");
+
+        for (StagedFile unpublishedFile : unpublishedFiles) {
+            if (unpublishedFile.claimedBySink
+                    && mongoTemplate.updateFirst(Query.query(claimCriteria(unpublishedFile)), updateOperation, PendingEInvoiceQueue.class).getModifiedCount() == 1) {
+
+                statusChanges.add(new PendingInvoiceStatsTracker.StatusChange(unpublishedFile.pendingEInvoiceQueue.getUbn(),
+                        PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING));
+            }
+        }
+
+        pendingInvoiceStatsTracker.recordTransitions(statusChanges);
+    }
+
+    private Criteria claimCriteria(StagedFile stagedFile) {
+        return where("_id").is(stagedFile.pendingEInvoiceQueue.getId())
+                .and("status").is(PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED)
+                .and("claimId").is(stagedFile.claimId);
+    }
+
+    /**
+     * Makes the renames durable. Not every platform can open a directory for this, e.g. Windows, in which case it is skipped.
+     */
+    private void syncDirectory(Path directory) {
+
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOGGER.debug("Directory cannot be synced: {}", directory, e);
+        }
+    }
+
+    private void deleteQuietly(Path path) {
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warn("Staged MIG file cannot be deleted: {}", path, e);
+        }
+    }
+
+    private Path getStagingDirectory() {
+        return settings.getStagingDirectory() != null ? settings.getStagingDirectory() : settings.getUploadDirectory().resolve(STAGING_DIRECTORY);
+    }
+
+    private Path getTargetDirectory(PendingEInvoiceQueue.PendingEInvoiceType invoiceType) {
+        return settings.getUploadDirectory().resolve(invoiceType.getMessageType()).resolve(SOURCE_DIRECTORY);
+    }
+
+    private static class StagedFile {
+
+        private final PendingEInvoiceQueue pendingEInvoiceQueue;
+
+        /**
+         * Claim the entry is published under, either the one it was loaded with or the one of the sink.
+         */
+        private final String claimId;
+
+        private final boolean claimedBySink;
+
+        private String invoiceIdentifier;
+
+        private Path path;
+
+        private FileChannel channel;
+
+        private boolean failed;
+
+        StagedFile(PendingEInvoiceQueue pendingEInvoiceQueue, String claimId, boolean claimedBySink) {
+            this.pendingEInvoiceQueue = pendingEInvoiceQueue;
+            this.claimId = claimId;
+            this.claimedBySink = claimedBySink;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+/**
+ * Invoice number such as AW-00002350, packed into a long as (prefix code * 100000000 + sequence) where the prefix code is the
+ * base 26 value of the two prefix letters. Packed values sort the same way as the invoice numbers they represent.
+ * <p>
+ * The static methods work on the packed value directly and format into caller supplied buffers, so hot paths need neither
+ * this wrapper nor intermediate strings.
+ */
+public final class InvoiceNumber implements Comparable<InvoiceNumber> {
+
+    public static final int SEQUENCE_DIGITS = 8;
+
+    /**
+     * Length of the official invoice number, e.g. AW-00002350
+     */
+    public static final int LENGTH = 11;
+
+    /**
+     * Length of the invoice number without the hyphen separator, e.g. AW00002350
+     */
+    public static final int INTERNAL_LENGTH = 10;
+
+    private static final long SEQUENCE_MODULUS = 100_000_000L;
+
+    private static final char SEPARATOR = '-';
+
+    private final long value;
+
+    private InvoiceNumber(long value) {
+        this.value = value;
+    }
+
+    public static InvoiceNumber of(long value) {
+        return new InvoiceNumber(value);
+    }
+
+    public static InvoiceNumber of(String prefix, int sequence) {
+        return new InvoiceNumber(pack(prefix, sequence));
+    }
+
+    /**
+     * Accepts both the official (AW-00002350) and the internal (AW00002350) form.
+     */
+    public static InvoiceNumber valueOf(CharSequence invoiceNumber) {
+        return new InvoiceNumber(parse(invoiceNumber));
+    }
+
+    public static long pack(String prefix, int sequence) {
+
+        if (prefix == null || prefix.length() != 2) {
+            throw new IllegalArgumentException("Invoice number prefix must be two capitalized letters: " + prefix);
+        }
+
+        return pack(prefix.charAt(0), prefix.charAt(1), sequence);
+    }
+
+    public static long pack(char prefix1, char prefix2, int sequence) {
+
+        if (!isPrefixLetter(prefix1) || !isPrefixLetter(prefix2)) {
+            throw new IllegalArgumentException("Invoice number prefix must be two capitalized letters: " + prefix1 + prefix2);
+        }
+
+        if (sequence < 0 || sequence >= SEQUENCE_MODULUS) {
+            throw new IllegalArgumentException("Invoice number sequence must have at most eight digits: " + sequence);
+        }
+
+        return ((prefix1 - 'A') * 26 + (prefix2 - 'A')) * SEQUENCE_MODULUS + sequence;
+    }
+
+    public static long parse(CharSequence invoiceNumber) {
+
+        final int length = invoiceNumber.length();
+        final int sequenceStart;
+
+        if (length == LENGTH && invoiceNumber.charAt(2) == SEPARATOR) {
+            sequenceStart = 3;
+        } else if (length == INTERNAL_LENGTH) {
+            sequenceStart = 2;
+        } else {
+            throw new IllegalArgumentException("Invalid invoice number: " + invoiceNumber);
+        }
+
+        return pack(invoiceNumber.charAt(0), invoiceNumber.charAt(1), parseSequence(invoiceNumber, sequenceStart, length));
+    }
+
+    /**
+     * Parses an eight digit sequence such as the rangeFrom and rangeTo of a number range.
+     */
+    public static int parseSequence(CharSequence digits) {
+        return parseSequence(digits, 0, digits.length());
+    }
+
+    private static int parseSequence(CharSequence digits, int start, int end) {
+
+        if (end - start != SEQUENCE_DIGITS) {
+            throw new IllegalArgumentException("Invoice number sequence must have eight digits: " + digits);
+        }
+
+        int sequence = 0;
+
+        for (int i = start; i < end; i++) {
+            final char c = digits.charAt(i);
+
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invoice number sequence must have eight digits: " + digits);
+            }
+
+            sequence = sequence * 10 + (c - '0');
+        }
+
+        return sequence;
+    }
+
+    public static int sequence(long value) {
+        return (int) (value % SEQUENCE_MODULUS);
+    }
+
+    public static char prefix1(long value) {
+        return (char) ('A' + (value / SEQUENCE_MODULUS) / 26);
+    }
+
+    public static char prefix2(long value) {
+        return (char) ('A' + (value / SEQUENCE_MODULUS) % 26);
+    }
+
+    /**
+     * Writes the invoice number at offset and returns the number of chars written.
+     *
+     * @param withSeparator writes the official form (AW-00002350) if true, the internal form (AW00002350) otherwise.
+     */
+    public static int formatTo(long value, boolean withSeparator, char[] buffer, int offset) {
+
+        int position = offset;
+        buffer[position++] = prefix1(value);
+        buffer[position++] = prefix2(value);
+
+        if (withSeparator) {
+            buffer[position++] = SEPARATOR;
+        }
+
+        int sequence = sequence(value);
+
+        for (int i = position + SEQUENCE_DIGITS - 1; i >= position; i--) {
+            buffer[i] = (char) ('0' + sequence % 10);
+            sequence /= 10;
+        }
+
+        return position + SEQUENCE_DIGITS - offset;
+    }
+
+    /**
+     * Writes the invoice number as ASCII bytes at offset and returns the number of bytes written.
+     */
+    public static int formatTo(long value, boolean withSeparator, byte[] buffer, int offset) {
+
+        int position = offset;
+        buffer[position++] = (byte) prefix1(value);
+        buffer[position++] = (byte) prefix2(value);
+
+        if (withSeparator) {
+            buffer[position++] = SEPARATOR;
+        }
+
+        int sequence = sequence(value);
+
+        for (int i = position + SEQUENCE_DIGITS - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + sequence % 10);
+            sequence /= 10;
+        }
+
+        return position + SEQUENCE_DIGITS - offset;
+    }
+
+    public static String format(long value) {
+
+        final char[] buffer = new char[LENGTH];
+        formatTo(value, true, buffer, 0);
+
+        return new String(buffer);
+    }
+
+    public static String format(String prefix, int sequence) {
+        return format(pack(prefix, sequence));
+    }
+
+    public static String formatSequence(int sequence) {
+
+        final char[] buffer = new char[SEQUENCE_DIGITS];
+
+        for (int i = SEQUENCE_DIGITS - 1; i >= 0; i--) {
+            buffer[i] = (char) ('0' + sequence % 10);
+            sequence /= 10;
+        }
+
+        return new String(buffer);
+    }
+
+    /**
+     * Strips the hyphen separator, e.g. AW-00002350 becomes AW00002350.
+     */
+    public static String toInternalInvoiceNumber(String invoiceNumber) {
+
+        if (invoiceNumber.length() == LENGTH && invoiceNumber.charAt(2) == SEPARATOR) {
+            final char[] buffer = new char[INTERNAL_LENGTH];
+            invoiceNumber.getChars(0, 2, buffer, 0);
+            invoiceNumber.getChars(3, LENGTH, buffer, 2);
+
+            return new String(buffer);
+        }
+
+        return invoiceNumber.replace("-", "");
+    }
+
+    private static boolean isPrefixLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public String getPrefix() {
+        return String.valueOf(new char[]{prefix1(value), prefix2(value)});
+    }
+
+    public int getSequence() {
+        return sequence(value);
+    }
+
+    public String toInternalString() {
+
+        final char[] buffer = new char[INTERNAL_LENGTH];
+        formatTo(value, false, buffer, 0);
+
+        return new String(buffer);
+    }
+
+    @Override
+    public int compareTo(InvoiceNumber other) {
+        return Long.compare(value, other.value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof InvoiceNumber && value == ((InvoiceNumber) o).value);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(value);
+    }
+
+    @Override
+    public String toString() {
+        return format(value);
+    }
+}
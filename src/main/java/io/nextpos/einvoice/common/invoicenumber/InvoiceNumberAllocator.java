@@ -0,0 +1,298 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import com.mongodb.client.result.UpdateResult;
+import io.nextpos.einvoice.common.shared.InvoiceObjectNotFoundException;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Atomic operations that take numbers out of (and put them back into) an invoice number range. None of them rely on an in-process lock.
+ * <p>
+ * The document observed by a successful allocation, with the allocation applied, replaces the cached invoice number range.
+ */
+@Component
+public class InvoiceNumberAllocator {
+
+    private static final int MAX_INCREMENT_ATTEMPTS = 5;
+
+    private final InvoiceNumberRangeRepository invoiceNumberRangeRepository;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final InvoiceNumberRangeCache invoiceNumberRangeCache;
+
+    @Autowired
+    public InvoiceNumberAllocator(InvoiceNumberRangeRepository invoiceNumberRangeRepository, MongoTemplate mongoTemplate, InvoiceNumberRangeCache invoiceNumberRangeCache) {
+        this.invoiceNumberRangeRepository = invoiceNumberRangeRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.invoiceNumberRangeCache = invoiceNumberRangeCache;
+    }
+
+    /**
+     * Takes up to count numbers from the first dispensable number range. The returned block is smaller than count when the number range runs out.
+     */
+    public NumberBlock allocateNumbers(String ubn, String rangeIdentifier, int count) {
+
+        if (count < 1) {
+            throw new IllegalArgumentException("Number count must be positive: " + count);
+        }
+
+        if (count == 1) {
+            final NumberBlock numberBlock = allocateNumberWithFindAndModify(ubn, rangeIdentifier);
+
+            if (numberBlock != null) {
+                return numberBlock;
+            }
+        }
+
+        return allocateNumbersWithCompareAndSet(ubn, rangeIdentifier, count, null);
+    }
+
+    /**
+     * Takes up to count numbers like allocateNumbers and records them as a lease of the given owner on the invoice number range, with the same write.
+     * The lease keeps the invoice number range from being reported and FINISHED until it is released or expires.
+     */
+    public NumberBlock leaseNumbers(String ubn, String rangeIdentifier, int count, String owner, Date expiresAt) {
+
+        if (count < 1) {
+            throw new IllegalArgumentException("Number count must be positive: " + count);
+        }
+
+        final InvoiceNumberRange.NumberLease lease = new InvoiceNumberRange.NumberLease(UUID.randomUUID().toString(), owner, null, 0, 0, expiresAt);
+
+        return allocateNumbersWithCompareAndSet(ubn, rangeIdentifier, count, lease);
+    }
+
+    /**
+     * @return false if the lease no longer exists, because it expired and its invoice number range was FINISHED, in which case its numbers
+     * must not be handed out any more.
+     */
+    public boolean renewLease(NumberBlock numberBlock, Date expiresAt) {
+
+        final Query query = Query.query(where("ubn").is(numberBlock.getUbn()).and("rangeIdentifier").is(numberBlock.getRangeIdentifier())
+                .and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE)
+                .and("leases").elemMatch(where("leaseId").is(numberBlock.getLeaseId())));
+
+        return mongoTemplate.updateFirst(query, new Update().set("leases.$.expiresAt", expiresAt), InvoiceNumberRange.class).getModifiedCount() == 1;
+    }
+
+    /**
+     * Puts the unused tail of a block back into its number range, or records it as unused numbers if that is no longer possible.
+     * The lease of a leased block ends with the same write.
+     */
+    public void releaseNumbers(NumberBlock numberBlock, int firstUnusedNumber) {
+
+        if (!returnNumbers(numberBlock, firstUnusedNumber)) {
+            recordUnusedNumbers(numberBlock, firstUnusedNumber);
+        }
+
+        invoiceNumberRangeCache.evict(numberBlock.getUbn(), numberBlock.getRangeIdentifier());
+    }
+
+    /**
+     * Puts the unused tail of a block back into its number range. This only succeeds if no numbers were taken from the number range after the block,
+     * and never once the invoice number range has been reported and FINISHED.
+     */
+    public boolean returnNumbers(NumberBlock numberBlock, int firstUnusedNumber) {
+
+        final int unusedCount = numberBlock.getLastNumber() - firstUnusedNumber + 1;
+
+        if (unusedCount <= 0) {
+            endLease(numberBlock);
+            return true;
+        }
+
+        final Query query = Query.query(where("ubn").is(numberBlock.getUbn()).and("rangeIdentifier").is(numberBlock.getRangeIdentifier())
+                .and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE)
+                .and("numberRanges").elemMatch(where("rangeFrom").is(numberBlock.getRangeFrom()).and("currentIncrement").is(numberBlock.getLastNumber())));
+
+        final Update updateOperation = new Update().set("numberRanges.$.currentIncrement", firstUnusedNumber - 1)
+                .inc("numberRanges.$.remainingNumbers", unusedCount)
+                .inc("remainingNumbers", unusedCount)
+                .set("numberRanges.$.finished", false);
+
+        if (firstUnusedNumber == InvoiceNumber.parseSequence(numberBlock.getRangeFrom())) {
+            updateOperation.set("numberRanges.$.started", false);
+        }
+
+        pullLease(updateOperation, numberBlock);
+
+        return mongoTemplate.updateFirst(query, updateOperation, InvoiceNumberRange.class).getModifiedCount() == 1;
+    }
+
+    /**
+     * Records the unused tail of a block on its number range so it can be reported as unused numbers.
+     *
+     * @throws IllegalStateException if the invoice number range has been FINISHED, as its report would not include the numbers.
+     */
+    public void recordUnusedNumbers(NumberBlock numberBlock, int firstUnusedNumber) {
+
+        if (firstUnusedNumber > numberBlock.getLastNumber()) {
+            endLease(numberBlock);
+            return;
+        }
+
+        final Query query = Query.query(where("ubn").is(numberBlock.getUbn()).and("rangeIdentifier").is(numberBlock.getRangeIdentifier())
+                .and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE)
+                .and("numberRanges.rangeFrom").is(numberBlock.getRangeFrom()));
+
+        final InvoiceNumberRange.UnusedNumbers unusedNumbers = new InvoiceNumberRange.UnusedNumbers(firstUnusedNumber, numberBlock.getLastNumber());
+        final Update updateOperation = new Update().push("numberRanges.$.unusedNumbers", unusedNumbers);
+        pullLease(updateOperation, numberBlock);
+
+        if (mongoTemplate.updateFirst(query, updateOperation, InvoiceNumberRange.class).getModifiedCount() != 1) {
+            final String message = String.format("Unused invoice numbers cannot be recorded as the invoice number range is no longer active: ubn=%s, rangeIdentifier=%s, prefix=%s, numbers=%d-%d",
+                    numberBlock.getUbn(), numberBlock.getRangeIdentifier(), numberBlock.getPrefix(), firstUnusedNumber, numberBlock.getLastNumber());
+            throw new IllegalStateException(message);
+        }
+    }
+
+    private void endLease(NumberBlock numberBlock) {
+
+        if (numberBlock.getLeaseId() == null) {
+            return;
+        }
+
+        final Query query = Query.query(where("ubn").is(numberBlock.getUbn()).and("rangeIdentifier").is(numberBlock.getRangeIdentifier()));
+        final Update updateOperation = new Update();
+        pullLease(updateOperation, numberBlock);
+
+        mongoTemplate.updateFirst(query, updateOperation, InvoiceNumberRange.class);
+    }
+
+    private void pullLease(Update updateOperation, NumberBlock numberBlock) {
+
+        if (numberBlock.getLeaseId() != null) {
+            updateOperation.pull("leases", new Document("leaseId", numberBlock.getLeaseId()));
+        }
+    }
+
+    /**
+     * Increments the first number range that has remaining numbers with one findAndModify.
+     * The pre-image is requested so the matched number range can be identified as the first one satisfying the query, which is how
+     * the positional operator picks it.
+     * <p>
+     * The update cannot tell whether it takes the last number of a number range, so documents with a number range that has a single number left
+     * do not match and take the compare-and-set path instead, which marks the number range finished with the same write.
+     */
+    private NumberBlock allocateNumberWithFindAndModify(String ubn, String rangeIdentifier) {
+
+        final Query query = Query.query(new Criteria().andOperator(
+                where("ubn").is(ubn).and("rangeIdentifier").is(rangeIdentifier),
+                where("numberRanges").elemMatch(where("remainingNumbers").gt(0).and("disabled").is(false)),
+                where("numberRanges").not().elemMatch(where("remainingNumbers").is(1).and("disabled").is(false))));
+
+        final Update updateOperation = new Update().inc("numberRanges.$.currentIncrement", 1)
+                .inc("numberRanges.$.remainingNumbers", -1)
+                .inc("remainingNumbers", -1)
+                .set("numberRanges.$.started", true);
+
+        final InvoiceNumberRange invoiceNumberRange = mongoTemplate.findAndModify(query, updateOperation, InvoiceNumberRange.class);
+
+        if (invoiceNumberRange == null) {
+            return null;
+        }
+
+        final InvoiceNumberRange.NumberRange numberRange = invoiceNumberRange.getNumberRanges().stream()
+                .filter(r -> r.getRemainingNumbers() > 0 && !r.isDisabled())
+                .findFirst().orElseThrow(() -> {
+                    throw new IllegalStateException("Incremented number range cannot be identified: " + invoiceNumberRange.getId());
+                });
+
+        numberRange.increment(1);
+        invoiceNumberRange.setRemainingNumbers(invoiceNumberRange.getRemainingNumbers() - 1);
+        invoiceNumberRangeCache.put(invoiceNumberRange);
+
+        return toNumberBlock(invoiceNumberRange, numberRange, 1);
+    }
+
+    /**
+     * Used for blocks and when no number range matches the remainingNumbers guard, which is either because the numbers have run out,
+     * because a number range is down to its last number or because the document predates remainingNumbers. The whole document is guarded on the observed increments and
+     * remainingNumbers is written for every number range, and as their total, so subsequent calls can take the single operation path.
+     * A lease is only recorded on an ACTIVE invoice number range.
+     */
+    private NumberBlock allocateNumbersWithCompareAndSet(String ubn, String rangeIdentifier, int count, InvoiceNumberRange.NumberLease lease) {
+
+        for (int attempt = 0; attempt < MAX_INCREMENT_ATTEMPTS; attempt++) {
+            final InvoiceNumberRange invoiceNumberRange = invoiceNumberRangeRepository.findByUbnAndRangeIdentifier(ubn, rangeIdentifier).orElseThrow(() -> {
+                final String message = String.format("Invoice number range cannot be found: ubn=%s, rangeIdentifier=%s", ubn, rangeIdentifier);
+                throw new InvoiceObjectNotFoundException(message);
+            });
+
+            final InvoiceNumberRange.NumberRange dispensableNumberRange = invoiceNumberRange.findDispensableNumberRange();
+            final int allocatedCount = Math.min(count, dispensableNumberRange.getRemainingNumberInRange());
+
+            final List<InvoiceNumberRange.NumberRange> numberRanges = invoiceNumberRange.getNumberRanges();
+            Criteria criteria = where("_id").is(invoiceNumberRange.getId());
+            final Update updateOperation = new Update();
+
+            for (int i = 0; i < numberRanges.size(); i++) {
+                final InvoiceNumberRange.NumberRange numberRange = numberRanges.get(i);
+                final String path = "numberRanges." + i;
+                criteria = criteria.and(path + ".rangeFrom").is(numberRange.getRangeFrom())
+                        .and(path + ".currentIncrement").is(numberRange.getCurrentIncrement());
+
+                if (numberRange == dispensableNumberRange) {
+                    numberRange.increment(allocatedCount);
+                    updateOperation.set(path + ".currentIncrement", numberRange.getCurrentIncrement())
+                            .set(path + ".started", true)
+                            .set(path + ".finished", numberRange.isFinished());
+                }
+
+                updateOperation.set(path + ".remainingNumbers", numberRange.getRemainingNumberInRange());
+            }
+
+            invoiceNumberRange.setRemainingNumbers(invoiceNumberRange.calculateRemainingNumbers());
+            updateOperation.set("remainingNumbers", invoiceNumberRange.getRemainingNumbers());
+
+            final NumberBlock numberBlock = toNumberBlock(invoiceNumberRange, dispensableNumberRange, allocatedCount);
+
+            if (lease != null) {
+                lease.setRangeFrom(numberBlock.getRangeFrom());
+                lease.setNumberFrom(numberBlock.getFirstNumber());
+                lease.setNumberTo(numberBlock.getLastNumber());
+                criteria = criteria.and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE);
+                updateOperation.push("leases", lease);
+                numberBlock.setLeaseId(lease.getLeaseId());
+            }
+
+            final UpdateResult result = mongoTemplate.updateFirst(Query.query(criteria), updateOperation, InvoiceNumberRange.class);
+
+            if (result.getModifiedCount() == 1) {
+                if (lease != null) {
+                    invoiceNumberRange.getLeases().add(lease);
+                }
+
+                invoiceNumberRangeCache.put(invoiceNumberRange);
+
+                return numberBlock;
+            }
+        }
+
+        throw new RuntimeException("Number increment operation failed");
+    }
+
+    private NumberBlock toNumberBlock(InvoiceNumberRange invoiceNumberRange, InvoiceNumberRange.NumberRange incrementedNumberRange, int count) {
+
+        final int lastNumber = incrementedNumberRange.getCurrentIncrement();
+
+        return new NumberBlock(invoiceNumberRange.getUbn(),
+                invoiceNumberRange.getRangeIdentifier(),
+                incrementedNumberRange.getPrefix(),
+                incrementedNumberRange.getRangeFrom(),
+                lastNumber - count + 1,
+                lastNumber);
+    }
+}
@@ -0,0 +1,265 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Leases a block of invoice numbers per ubn to this node and hands them out from memory until the block runs out.
+ * <p>
+ * Leases are recorded on the invoice number range with this node as owner and an expiry of the configured lease time to live, and are renewed
+ * once half of it has passed. An invoice number range is not reported and FINISHED while it has an unexpired lease, on any node.
+ * <p>
+ * Unused numbers are put back into the number range when the lease is released, or recorded as unused numbers on the number range if other nodes
+ * have taken numbers since. Leases are released on shutdown, before their period is closed on this node, once the current period has moved on,
+ * and after they have been idle for the configured lease idle timeout, at which point the ubn is forgotten.
+ * Numbers leased by a node that dies without shutting down are not released and are reported as used once the lease has expired, so they show up as gaps.
+ * A lease that could not be renewed because its invoice number range has been FINISHED is dropped without handing out further numbers.
+ */
+@Component
+public class InvoiceNumberLeaseDispenser implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvoiceNumberLeaseDispenser.class);
+
+    private static final String LEASE_OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final InvoiceNumberAllocator invoiceNumberAllocator;
+
+    private final EInvoiceProperties properties;
+
+    private final ConcurrentMap<String, LeaseSlot> leaseSlots = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * Range identifier of the most recent eviction, so that the first dispense of a new period releases the leases of the previous one.
+     */
+    private volatile String evictedRangeIdentifier;
+
+    private volatile long nextEvictionNanos = System.nanoTime();
+
+    @Autowired
+    public InvoiceNumberLeaseDispenser(InvoiceNumberAllocator invoiceNumberAllocator, EInvoiceProperties properties) {
+        this.invoiceNumberAllocator = invoiceNumberAllocator;
+        this.properties = properties;
+    }
+
+    public String dispenseInvoiceNumber(String ubn, String rangeIdentifier) {
+
+        evictStaleLeasesIfDue(rangeIdentifier);
+
+        while (true) {
+            final LeaseSlot leaseSlot = leaseSlots.computeIfAbsent(ubn, k -> new LeaseSlot());
+            final Lease lease = leaseSlot.lease;
+
+            if (lease != null && lease.isFor(rangeIdentifier) && System.nanoTime() - lease.renewAtNanos < 0) {
+                final int number = lease.nextNumber();
+
+                if (number >= 0) {
+                    leaseSlot.lastUsedNanos = System.nanoTime();
+                    return InvoiceNumberRange.formatInvoiceNumber(lease.numberBlock.getPrefix(), number);
+                }
+            }
+
+            synchronized (leaseSlot) {
+                if (!leaseSlot.evicted && leaseSlot.lease == lease) {
+                    if (lease != null && lease.isFor(rangeIdentifier) && lease.hasRemainingNumbers() && renewLease(lease)) {
+                        continue;
+                    }
+
+                    if (lease != null) {
+                        releaseLease(lease);
+                    }
+
+                    final EInvoiceProperties.Dispensing dispensing = properties.getDispensing();
+                    final NumberBlock numberBlock = invoiceNumberAllocator.leaseNumbers(ubn, rangeIdentifier, dispensing.getLeaseBlockSize(), LEASE_OWNER, leaseExpiry());
+                    leaseSlot.lease = new Lease(numberBlock, renewAtNanos());
+                    leaseSlot.lastUsedNanos = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases the leases taken from the given period. Runs before the period is closed, so that leased numbers that were never issued are
+     * reported as unused rather than as used.
+     */
+    public void releaseLeases(String rangeIdentifier) {
+        evictLeases(leaseSlot -> leaseSlot.lease == null || leaseSlot.lease.isFor(rangeIdentifier));
+    }
+
+    @Override
+    public void destroy() {
+        evictLeases(leaseSlot -> true);
+    }
+
+    /**
+     * Releases leases of other periods and idle leases, at most once per lease idle timeout unless the period has changed.
+     */
+    private void evictStaleLeasesIfDue(String rangeIdentifier) {
+
+        final long now = System.nanoTime();
+
+        if (rangeIdentifier.equals(evictedRangeIdentifier) && now - nextEvictionNanos < 0) {
+            return;
+        }
+
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            final long idleTimeoutNanos = properties.getDispensing().getLeaseIdleTimeout().toNanos();
+            evictedRangeIdentifier = rangeIdentifier;
+            nextEvictionNanos = now + idleTimeoutNanos;
+
+            evictLeases(leaseSlot -> leaseSlot.lease == null || !leaseSlot.lease.isFor(rangeIdentifier) || now - leaseSlot.lastUsedNanos >= idleTimeoutNanos);
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Evicted slots are removed from the map and never lease again, so a thread still holding one looks up a new slot instead.
+     */
+    private void evictLeases(Predicate<LeaseSlot> predicate) {
+
+        leaseSlots.forEach((ubn, leaseSlot) -> {
+            synchronized (leaseSlot) {
+                if (leaseSlot.evicted || !predicate.test(leaseSlot)) {
+                    return;
+                }
+
+                leaseSlot.evicted = true;
+                leaseSlots.remove(ubn, leaseSlot);
+
+                if (leaseSlot.lease != null) {
+                    releaseLease(leaseSlot.lease);
+                    leaseSlot.lease = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Extends the lease, or seals it if it no longer exists on the invoice number range.
+     */
+    private boolean renewLease(Lease lease) {
+
+        final NumberBlock numberBlock = lease.numberBlock;
+
+        if (invoiceNumberAllocator.renewLease(numberBlock, leaseExpiry())) {
+            lease.renewAtNanos = renewAtNanos();
+            return true;
+        }
+
+        lease.lost = true;
+        final int firstUnusedNumber = lease.seal();
+
+        LOGGER.warn("Invoice number lease has been lost, its unused numbers will be reported as used[ubn={}, prefix={}]: {}-{}",
+                numberBlock.getUbn(), numberBlock.getPrefix(), firstUnusedNumber, numberBlock.getLastNumber());
+
+        return false;
+    }
+
+    private Date leaseExpiry() {
+        return new Date(System.currentTimeMillis() + properties.getDispensing().getLeaseTimeToLive().toMillis());
+    }
+
+    private long renewAtNanos() {
+        return System.nanoTime() + properties.getDispensing().getLeaseTimeToLive().toNanos() / 2;
+    }
+
+    /**
+     * Failures are logged rather than thrown so the slot can move on to a new lease. The numbers that could not be released are reported as used.
+     */
+    private void releaseLease(Lease lease) {
+
+        if (lease.lost) {
+            return;
+        }
+
+        final NumberBlock numberBlock = lease.numberBlock;
+        final int firstUnusedNumber = lease.seal();
+
+        try {
+            invoiceNumberAllocator.releaseNumbers(numberBlock, firstUnusedNumber);
+        } catch (Exception e) {
+            LOGGER.error("Unable to release invoice number lease[ubn={}]: {}", numberBlock.getUbn(), e.getMessage(), e);
+            return;
+        }
+
+        if (firstUnusedNumber > numberBlock.getLastNumber()) {
+            return;
+        }
+
+        LOGGER.info("Released unused invoice numbers[ubn={}, prefix={}]: {}-{}", numberBlock.getUbn(), numberBlock.getPrefix(), firstUnusedNumber, numberBlock.getLastNumber());
+    }
+
+    private static class LeaseSlot {
+
+        private volatile Lease lease;
+
+        private volatile long lastUsedNanos;
+
+        /**
+         * Guarded by the slot itself.
+         */
+        private boolean evicted;
+    }
+
+    private static class Lease {
+
+        private final NumberBlock numberBlock;
+
+        private final AtomicInteger nextNumber;
+
+        private volatile long renewAtNanos;
+
+        /**
+         * Guarded by the slot.
+         */
+        private boolean lost;
+
+        Lease(NumberBlock numberBlock, long renewAtNanos) {
+            this.numberBlock = numberBlock;
+            this.nextNumber = new AtomicInteger(numberBlock.getFirstNumber());
+            this.renewAtNanos = renewAtNanos;
+        }
+
+        boolean isFor(String rangeIdentifier) {
+            return numberBlock.getRangeIdentifier().equals(rangeIdentifier);
+        }
+
+        /**
+         * Returns -1 when the block has run out.
+         */
+        int nextNumber() {
+            final int number = nextNumber.getAndIncrement();
+            return number <= numberBlock.getLastNumber() ? number : -1;
+        }
+
+        boolean hasRemainingNumbers() {
+            return nextNumber.get() <= numberBlock.getLastNumber();
+        }
+
+        /**
+         * Stops the lease from handing out further numbers and returns the first number that was never handed out.
+         */
+        int seal() {
+            final int number = nextNumber.getAndSet(numberBlock.getLastNumber() + 1);
+            return Math.min(number, numberBlock.getLastNumber() + 1);
+        }
+    }
+}
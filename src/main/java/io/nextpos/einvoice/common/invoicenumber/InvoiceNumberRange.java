@@ -2,30 +2,28 @@ package io.nextpos.einvoice.common.invoicenumber;
 
 import io.nextpos.einvoice.common.shared.EInvoiceBaseObject;
 import io.nextpos.einvoice.common.shared.InvoiceObjectNotFoundException;
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
 import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import org.apache.commons.lang3.tuple.Pair;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
-import org.springframework.format.number.NumberStyleFormatter;
 
-import java.time.LocalDate;
 import java.time.LocalDateTime;
-import java.time.ZoneId;
-import java.time.chrono.MinguoDate;
-import java.time.temporal.ChronoField;
-import java.time.temporal.ChronoUnit;
-import java.time.temporal.TemporalAdjusters;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 @Document
-@CompoundIndexes({@CompoundIndex(name = "unique_ubn_range_identifier_index", def = "{'ubn': 1, 'rangeIdentifier': 1}", unique = true)})
+@CompoundIndexes({@CompoundIndex(name = "unique_ubn_range_identifier_index", def = "{'ubn': 1, 'rangeIdentifier': 1}", unique = true),
+        @CompoundIndex(name = "range_identifier_remaining_numbers_index", def = "{'rangeIdentifier': 1, 'remainingNumbers': 1}")})
 @Data
 @EqualsAndHashCode(callSuper = true)
 @NoArgsConstructor(access = AccessLevel.PRIVATE)
@@ -45,6 +43,25 @@ public class InvoiceNumberRange extends EInvoiceBaseObject {
 
     private List<NumberRange> numberRanges = new ArrayList<>();
 
+    /**
+     * Remaining numbers across all number ranges that are not disabled. Adjusted by the same update that dispenses or returns numbers,
+     * so capacity can be queried without loading number ranges.
+     */
+    private int remainingNumbers;
+
+    /**
+     * Blocks of numbers leased to nodes in LEASING mode that have not been released yet. Their unused part is only known once they are
+     * released, so the invoice number range is not reported and FINISHED while one of them has not expired.
+     */
+    private List<NumberLease> leases = new ArrayList<>();
+
+    /**
+     * Number ranges before this index are finished or disabled, so the search for a dispensable number range can start from here.
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient int dispensableIndex;
+
     public InvoiceNumberRange(String ubn, String rangeIdentifier, String prefix, String rangeFrom, String rangeTo) {
         this.ubn = ubn;
         this.rangeIdentifier = rangeIdentifier;
@@ -53,26 +70,44 @@ public class InvoiceNumberRange extends EInvoiceBaseObject {
         this.addNumberRange(prefix, rangeFrom, rangeTo);
     }
 
+    /**
+     * Deep copy, so that an instance handed out by the cache shares no mutable state with other callers.
+     */
+    public InvoiceNumberRange copy() {
+
+        final InvoiceNumberRange copy = new InvoiceNumberRange();
+        copy.id = id;
+        copy.ubn = ubn;
+        copy.rangeIdentifier = rangeIdentifier;
+        copy.status = status;
+        copy.remainingNumbers = remainingNumbers;
+        copy.dispensableIndex = dispensableIndex;
+        copy.setCreatedDate(getCreatedDate());
+        copy.setModifiedDate(getModifiedDate());
+        copy.setInvoiceIdentifier(getInvoiceIdentifier());
+
+        numberRanges.forEach(nr -> copy.numberRanges.add(nr.copy()));
+        leases.forEach(l -> copy.leases.add(new NumberLease(l.getLeaseId(), l.getOwner(), l.getRangeFrom(), l.getNumberFrom(), l.getNumberTo(), l.getExpiresAt())));
+
+        return copy;
+    }
+
     /**
      * Returns the date range of this invoice number range as LocalDateTime.
      */
     public Pair<LocalDateTime, LocalDateTime> getLocalDateTimeRange() {
 
-        final int minguoYear = Integer.parseInt(rangeIdentifier.substring(0, 3));
-        final int startMonth = Integer.parseInt(rangeIdentifier.substring(3, 5));
-
-        final MinguoDate startDate = MinguoDate.now(ZoneId.of("Asia/Taipei")).with(ChronoField.YEAR, minguoYear)
-                .with(ChronoField.MONTH_OF_YEAR, startMonth)
-                .with(ChronoField.DAY_OF_MONTH, 1);
+        final InvoicePeriodCalendar.BimonthlyPeriod period = InvoicePeriodCalendar.getPeriod(rangeIdentifier);
 
-        final MinguoDate endDate = startDate.plus(1, ChronoUnit.MONTHS).with(TemporalAdjusters.lastDayOfMonth());
-
-        return Pair.of(LocalDate.from(startDate).atStartOfDay(),
-                LocalDate.from(endDate).atTime(23, 59, 59));
+        return Pair.of(period.getStartDateTime(), period.getEndDateTime());
     }
 
     public String getShortRangeIdentifier() {
-        return rangeIdentifier.substring(0, 3) + rangeIdentifier.substring(5);
+        return InvoicePeriodCalendar.getPeriod(rangeIdentifier).getShortRangeIdentifier();
+    }
+
+    public static String formatInvoiceNumber(String prefix, int number) {
+        return InvoiceNumber.format(prefix, number);
     }
 
     public void addNumberRange(String prefix, String rangeFrom, String rangeTo) {
@@ -82,11 +117,17 @@ public class InvoiceNumberRange extends EInvoiceBaseObject {
     }
 
     public NumberRange findDispensableNumberRange() {
-        return numberRanges.stream()
-                .filter(r -> !r.isFinished() && !r.isDisabled())
-                .findFirst().orElseThrow(() -> {
-                    throw new RuntimeException("There is no dispensable number range");
-                });
+
+        for (int i = dispensableIndex; i < numberRanges.size(); i++) {
+            final NumberRange numberRange = numberRanges.get(i);
+
+            if (!numberRange.isFinished() && !numberRange.isDisabled() && numberRange.getRemainingNumberInRange() > 0) {
+                dispensableIndex = i;
+                return numberRange;
+            }
+        }
+
+        throw new RuntimeException("There is no dispensable number range");
     }
 
     /**
@@ -112,6 +153,28 @@ public class InvoiceNumberRange extends EInvoiceBaseObject {
         }
 
         numberRanges.removeIf(nr -> nr.getRangeFrom().equals(id));
+        dispensableIndex = 0;
+    }
+
+    /**
+     * Brings the persisted remaining numbers of each number range, and their total, in line with the current increments.
+     */
+    public void updateRemainingNumbers() {
+        numberRanges.forEach(nr -> nr.setRemainingNumbers(nr.getRemainingNumberInRange()));
+        remainingNumbers = calculateRemainingNumbers();
+    }
+
+    public int calculateRemainingNumbers() {
+
+        int total = 0;
+
+        for (NumberRange numberRange : numberRanges) {
+            if (!numberRange.isDisabled()) {
+                total += numberRange.getRemainingNumberInRange();
+            }
+        }
+
+        return total;
     }
 
     public NumberRange findNumberRangeById(String id) {
@@ -136,6 +199,11 @@ public class InvoiceNumberRange extends EInvoiceBaseObject {
 
         private int currentIncrement;
 
+        /**
+         * Persisted copy of getRemainingNumberInRange(). Dispensing guards on this field so that concurrent nodes never go past rangeTo.
+         */
+        private int remainingNumbers;
+
         /**
          * Indicates that the number range has started issuing invoice numbers.
          */
@@ -152,25 +220,115 @@ public class InvoiceNumberRange extends EInvoiceBaseObject {
          */
         private boolean disabled;
 
+        /**
+         * Numbers that were leased to a node but never issued. They need to be reported to big platform as unused numbers.
+         */
+        private List<UnusedNumbers> unusedNumbers = new ArrayList<>();
+
+        /**
+         * Parsed rangeFrom and rangeTo, kept in sync by the constructor and setters.
+         */
+        @Setter(AccessLevel.NONE)
+        private transient int rangeFromNumber;
+
+        @Setter(AccessLevel.NONE)
+        private transient int rangeToNumber;
+
         public NumberRange(String prefix, String rangeFrom, String rangeTo) {
             this.prefix = prefix;
+            this.setRangeFrom(rangeFrom);
+            this.setRangeTo(rangeTo);
+            this.currentIncrement = rangeFromNumber - 1;
+            this.remainingNumbers = getRemainingNumberInRange();
+        }
+
+        NumberRange copy() {
+
+            final NumberRange copy = new NumberRange(prefix, rangeFrom, rangeTo);
+            copy.currentIncrement = currentIncrement;
+            copy.remainingNumbers = remainingNumbers;
+            copy.started = started;
+            copy.finished = finished;
+            copy.disabled = disabled;
+
+            unusedNumbers.forEach(u -> copy.unusedNumbers.add(new UnusedNumbers(u.getNumberFrom(), u.getNumberTo())));
+
+            return copy;
+        }
+
+        public void setRangeFrom(String rangeFrom) {
             this.rangeFrom = rangeFrom;
+            this.rangeFromNumber = Integer.parseInt(rangeFrom);
+        }
+
+        public void setRangeTo(String rangeTo) {
             this.rangeTo = rangeTo;
-            this.currentIncrement = Integer.parseInt(rangeFrom) - 1;
+            this.rangeToNumber = Integer.parseInt(rangeTo);
+        }
+
+        /**
+         * Applies the outcome of dispensing the given count of numbers from this number range.
+         */
+        public void increment(int count) {
+            currentIncrement += count;
+            remainingNumbers = getRemainingNumberInRange();
+            started = true;
+            finished = remainingNumbers == 0;
         }
 
         public int getRemainingNumberInRange() {
-            return Integer.parseInt(rangeTo) - currentIncrement;
+            return rangeToNumber - currentIncrement;
         }
 
         public String getNextIncrement() {
-            NumberStyleFormatter formatter = new NumberStyleFormatter("00000000");
-            return formatter.getNumberFormat(Locale.getDefault()).format(currentIncrement + 1);
+            return InvoiceNumber.formatSequence(currentIncrement + 1);
         }
 
         public boolean isLastNumberInRange() {
-            return currentIncrement + 1 == Integer.parseInt(rangeTo);
+            return currentIncrement + 1 == rangeToNumber;
         }
+
+        /**
+         * The invoice number last dispensed from this number range, packed as described in InvoiceNumber.
+         */
+        public long getCurrentInvoiceNumber() {
+            return InvoiceNumber.pack(prefix, currentIncrement);
+        }
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class UnusedNumbers {
+
+        private int numberFrom;
+
+        private int numberTo;
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class NumberLease {
+
+        private String leaseId;
+
+        /**
+         * Node holding the lease.
+         */
+        private String owner;
+
+        /**
+         * Identifies the number range the block was taken from.
+         */
+        private String rangeFrom;
+
+        private int numberFrom;
+
+        private int numberTo;
+
+        /**
+         * Renewed by the owner while the lease is in use. The numbers of an expired lease are treated as used.
+         */
+        private Date expiresAt;
     }
 
     public enum InvoiceNumberRangeStatus {
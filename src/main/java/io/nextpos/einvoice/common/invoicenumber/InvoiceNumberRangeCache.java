@@ -0,0 +1,88 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import io.nextpos.einvoice.common.shared.BoundedCache;
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Keeps the most recently used invoice number range per (ubn, rangeIdentifier).
+ * <p>
+ * Instances are copied on the way in and out, so callers never share a cached instance and may modify what they get.
+ * Writes replace the cached instance with the saved one, and dispensing replaces it with the state observed by the dispensing operation,
+ * so numbers dispensed by other nodes show up at the latest after the configured time to live.
+ */
+@Component
+public class InvoiceNumberRangeCache {
+
+    private final BoundedCache<String, InvoiceNumberRange> cache;
+
+    @Autowired
+    public InvoiceNumberRangeCache(EInvoiceProperties properties) {
+        final EInvoiceProperties.NumberRangeCache settings = properties.getNumberRangeCache();
+        this.cache = new BoundedCache<>(settings.getMaximumSize(), settings.getTimeToLive());
+    }
+
+    public Optional<InvoiceNumberRange> getInvoiceNumberRange(String ubn, String rangeIdentifier, Supplier<Optional<InvoiceNumberRange>> loader) {
+        return getSharedInvoiceNumberRange(ubn, rangeIdentifier, loader).map(InvoiceNumberRange::copy);
+    }
+
+    /**
+     * Same as getInvoiceNumberRange(...).isPresent() without copying the cached instance.
+     */
+    public boolean hasInvoiceNumberRange(String ubn, String rangeIdentifier, Supplier<Optional<InvoiceNumberRange>> loader) {
+        return getSharedInvoiceNumberRange(ubn, rangeIdentifier, loader).isPresent();
+    }
+
+    private Optional<InvoiceNumberRange> getSharedInvoiceNumberRange(String ubn, String rangeIdentifier, Supplier<Optional<InvoiceNumberRange>> loader) {
+
+        final String key = cacheKey(ubn, rangeIdentifier);
+        final InvoiceNumberRange invoiceNumberRange = cache.get(key);
+
+        if (invoiceNumberRange != null) {
+            return Optional.of(invoiceNumberRange);
+        }
+
+        final Optional<InvoiceNumberRange> loadedInvoiceNumberRange = loader.get();
+        loadedInvoiceNumberRange.ifPresent(r -> cache.put(key, r));
+
+        return loadedInvoiceNumberRange;
+    }
+
+    public void put(InvoiceNumberRange invoiceNumberRange) {
+        cache.put(cacheKey(invoiceNumberRange.getUbn(), invoiceNumberRange.getRangeIdentifier()), invoiceNumberRange.copy());
+    }
+
+    /**
+     * Caches the saved invoice number range once the surrounding transaction commits, so a rolled back write is never served.
+     */
+    public void putAfterCommit(InvoiceNumberRange invoiceNumberRange) {
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            put(invoiceNumberRange);
+            return;
+        }
+
+        evict(invoiceNumberRange.getUbn(), invoiceNumberRange.getRangeIdentifier());
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                put(invoiceNumberRange);
+            }
+        });
+    }
+
+    public void evict(String ubn, String rangeIdentifier) {
+        cache.remove(cacheKey(ubn, rangeIdentifier));
+    }
+
+    private String cacheKey(String ubn, String rangeIdentifier) {
+        return ubn + ":" + rangeIdentifier;
+    }
+}
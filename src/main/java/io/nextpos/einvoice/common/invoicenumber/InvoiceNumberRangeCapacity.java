@@ -0,0 +1,13 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+/**
+ * Projection of InvoiceNumberRange that reads only the maintained remaining numbers, not the number ranges.
+ */
+public interface InvoiceNumberRangeCapacity {
+
+    String getUbn();
+
+    String getRangeIdentifier();
+
+    int getRemainingNumbers();
+}
@@ -2,6 +2,7 @@ package io.nextpos.einvoice.common.invoicenumber;
 
 import org.springframework.data.mongodb.repository.MongoRepository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -13,5 +14,9 @@ public interface InvoiceNumberRangeRepository extends MongoRepository<InvoiceNum
 
     List<InvoiceNumberRange> findAllByRangeIdentifierInOrderByRangeIdentifier(List<String> rangeIdentifiers);
 
+    List<InvoiceNumberRange> findAllByUbnInAndRangeIdentifier(Collection<String> ubns, String rangeIdentifier);
+
     List<InvoiceNumberRange> findAllByRangeIdentifierAndStatus(String rangeIdentifier, InvoiceNumberRange.InvoiceNumberRangeStatus status);
+
+    List<InvoiceNumberRangeCapacity> findAllByRangeIdentifierAndRemainingNumbersLessThanOrderByRemainingNumbers(String rangeIdentifier, int threshold);
 }
@@ -1,5 +1,8 @@
 package io.nextpos.einvoice.common.invoicenumber;
 
+import io.nextpos.einvoice.common.shared.LockStripeStats;
+
+import java.nio.file.Path;
 import java.time.YearMonth;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +25,12 @@ public interface InvoiceNumberRangeService {
 
     List<InvoiceNumberRange> getInvoiceNumberRangesByLastRangeIdentifier();
 
+    /**
+     * Writes the unused numbers of the last period's ACTIVE invoice number ranges to reportFile and marks those ranges FINISHED.
+     * An existing reportFile is taken to be left by an interrupted run and is continued.
+     */
+    UnusedNumberReport generateUnusedNumberReport(Path reportFile);
+
     InvoiceNumberRange disableOneInvoiceNumberRange(String ubn, String rangeIdentifier, String rangeFrom);
 
     InvoiceNumberRange deleteOneInvoiceNumberRange(String ubn, String rangeIdentifier, String rangeFrom);
@@ -30,6 +39,15 @@ public interface InvoiceNumberRangeService {
 
     String resolveInvoiceNumber(String ubn);
 
+    List<String> resolveInvoiceNumbers(String ubn, int count);
+
+    /**
+     * Ubns whose invoice number range for the given period has fewer than threshold remaining numbers, lowest first.
+     */
+    List<InvoiceNumberRangeCapacity> getInvoiceNumberRangesRunningLow(String rangeIdentifier, int threshold);
+
+    List<LockStripeStats> getDispensingLockStats();
+
     String getCurrentRangeIdentifier();
 
     String getRangeIdentifier(YearMonth yearMonth);
@@ -1,27 +1,25 @@
 package io.nextpos.einvoice.common.invoicenumber;
 
 import com.mongodb.client.result.UpdateResult;
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
 import io.nextpos.einvoice.common.shared.InvoiceObjectNotFoundException;
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import io.nextpos.einvoice.common.shared.LockStripeStats;
+import io.nextpos.einvoice.common.shared.StripedLock;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
-import org.springframework.format.number.NumberStyleFormatter;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.nio.file.Path;
 import java.time.YearMonth;
-import java.time.chrono.MinguoDate;
-import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoField;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Optional;
 
 import static java.util.stream.Collectors.groupingBy;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
@@ -30,23 +28,48 @@ import static org.springframework.data.mongodb.core.query.Criteria.where;
 @Transactional("mongoTx")
 public class InvoiceNumberRangeServiceImpl implements InvoiceNumberRangeService {
 
-    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("MM");
-
     private final InvoiceNumberRangeRepository invoiceNumberRangeRepository;
 
     private final MongoTemplate mongoTemplate;
 
-    private final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+    private final InvoiceNumberAllocator invoiceNumberAllocator;
+
+    private final InvoiceNumberLeaseDispenser invoiceNumberLeaseDispenser;
+
+    private final InvoiceNumberRangeCache invoiceNumberRangeCache;
+
+    private final UnusedNumberReportGenerator unusedNumberReportGenerator;
+
+    private final InvoicePeriodCalendar invoicePeriodCalendar;
+
+    private final EInvoiceProperties properties;
+
+    /**
+     * Per-ubn locks for LOCKING mode. Ubns share a fixed number of stripes so the lock table does not grow with the number of sellers.
+     */
+    private final StripedLock dispensingLocks;
 
     @Autowired
-    public InvoiceNumberRangeServiceImpl(InvoiceNumberRangeRepository invoiceNumberRangeRepository, MongoTemplate mongoTemplate) {
+    public InvoiceNumberRangeServiceImpl(InvoiceNumberRangeRepository invoiceNumberRangeRepository, MongoTemplate mongoTemplate, InvoiceNumberAllocator invoiceNumberAllocator, InvoiceNumberLeaseDispenser invoiceNumberLeaseDispenser, InvoiceNumberRangeCache invoiceNumberRangeCache, UnusedNumberReportGenerator unusedNumberReportGenerator, InvoicePeriodCalendar invoicePeriodCalendar, EInvoiceProperties properties) {
         this.invoiceNumberRangeRepository = invoiceNumberRangeRepository;
         this.mongoTemplate = mongoTemplate;
+        this.invoiceNumberAllocator = invoiceNumberAllocator;
+        this.invoiceNumberLeaseDispenser = invoiceNumberLeaseDispenser;
+        this.invoiceNumberRangeCache = invoiceNumberRangeCache;
+        this.unusedNumberReportGenerator = unusedNumberReportGenerator;
+        this.invoicePeriodCalendar = invoicePeriodCalendar;
+        this.properties = properties;
+        this.dispensingLocks = new StripedLock(properties.getDispensing().getLockStripes());
     }
 
     @Override
     public InvoiceNumberRange saveInvoiceNumberRange(InvoiceNumberRange invoiceNumberRange) {
-        return invoiceNumberRangeRepository.save(invoiceNumberRange);
+        invoiceNumberRange.updateRemainingNumbers();
+
+        final InvoiceNumberRange savedInvoiceNumberRange = invoiceNumberRangeRepository.save(invoiceNumberRange);
+        invoiceNumberRangeCache.putAfterCommit(savedInvoiceNumberRange);
+
+        return savedInvoiceNumberRange;
     }
 
     @Override
@@ -59,7 +82,10 @@ public class InvoiceNumberRangeServiceImpl implements InvoiceNumberRangeService
 
     @Override
     public boolean hasCurrentInvoiceNumberRange(String ubn) {
-        return invoiceNumberRangeRepository.findByUbnAndRangeIdentifier(ubn, getCurrentRangeIdentifier()).isPresent();
+
+        final String rangeIdentifier = getCurrentRangeIdentifier();
+
+        return invoiceNumberRangeCache.hasInvoiceNumberRange(ubn, rangeIdentifier, () -> invoiceNumberRangeRepository.findByUbnAndRangeIdentifier(ubn, rangeIdentifier));
     }
 
     @Override
@@ -70,12 +96,33 @@ public class InvoiceNumberRangeServiceImpl implements InvoiceNumberRangeService
     @Override
     public InvoiceNumberRange getInvoiceNumberRangeByRangeIdentifier(String ubn, String rangeIdentifier) {
 
+        return findCachedInvoiceNumberRange(ubn, rangeIdentifier).orElseThrow(() -> {
+            throw invoiceNumberRangeNotFound(ubn, rangeIdentifier);
+        });
+    }
+
+    /**
+     * Returns a copy of the cached instance. Changes are only kept if it is saved through saveInvoiceNumberRange.
+     */
+    private Optional<InvoiceNumberRange> findCachedInvoiceNumberRange(String ubn, String rangeIdentifier) {
+        return invoiceNumberRangeCache.getInvoiceNumberRange(ubn, rangeIdentifier, () -> invoiceNumberRangeRepository.findByUbnAndRangeIdentifier(ubn, rangeIdentifier));
+    }
+
+    /**
+     * Reads the invoice number range from the database, bypassing the cache. Used by operations that modify the range.
+     */
+    private InvoiceNumberRange loadInvoiceNumberRange(String ubn, String rangeIdentifier) {
+
         return invoiceNumberRangeRepository.findByUbnAndRangeIdentifier(ubn, rangeIdentifier).orElseThrow(() -> {
-            final String message = String.format("Invoice number range cannot be found: ubn=%s, rangeIdentifier=%s", ubn, rangeIdentifier);
-            throw new InvoiceObjectNotFoundException(message);
+            throw invoiceNumberRangeNotFound(ubn, rangeIdentifier);
         });
     }
 
+    private InvoiceObjectNotFoundException invoiceNumberRangeNotFound(String ubn, String rangeIdentifier) {
+        final String message = String.format("Invoice number range cannot be found: ubn=%s, rangeIdentifier=%s", ubn, rangeIdentifier);
+        return new InvoiceObjectNotFoundException(message);
+    }
+
     @Override
     public List<InvoiceNumberRange> getInvoiceNumberRanges(String ubn) {
         return invoiceNumberRangeRepository.findAllByUbnOrderByRangeIdentifier(ubn);
@@ -99,42 +146,120 @@ public class InvoiceNumberRangeServiceImpl implements InvoiceNumberRangeService
         return invoiceNumberRangeRepository.findAllByRangeIdentifierAndStatus(getLastRangeIdentifier(), InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE);
     }
 
+    /**
+     * Runs outside of a transaction so that each batch is FINISHED as soon as it has been reported, and a large period close is not bound
+     * by the transaction lifetime limit.
+     */
+    @Override
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
+    public UnusedNumberReport generateUnusedNumberReport(Path reportFile) {
+        return unusedNumberReportGenerator.generateReport(getLastRangeIdentifier(), reportFile);
+    }
+
     @Override
     public InvoiceNumberRange disableOneInvoiceNumberRange(String ubn, String rangeIdentifier, String rangeFrom) {
 
-        final InvoiceNumberRange invoiceNumberRange = this.getInvoiceNumberRangeByRangeIdentifier(ubn, rangeIdentifier);
+        final InvoiceNumberRange invoiceNumberRange = this.loadInvoiceNumberRange(ubn, rangeIdentifier);
         invoiceNumberRange.disableNumberRangeById(rangeFrom);
 
-        return invoiceNumberRangeRepository.save(invoiceNumberRange);
+        return this.saveInvoiceNumberRange(invoiceNumberRange);
     }
 
     @Override
     public InvoiceNumberRange deleteOneInvoiceNumberRange(String ubn, String rangeIdentifier, String rangeFrom) {
 
-        final InvoiceNumberRange invoiceNumberRange = this.getInvoiceNumberRangeByRangeIdentifier(ubn, rangeIdentifier);
+        final InvoiceNumberRange invoiceNumberRange = this.loadInvoiceNumberRange(ubn, rangeIdentifier);
         invoiceNumberRange.deleteNumberRangeById(rangeFrom);
 
-        return invoiceNumberRangeRepository.save(invoiceNumberRange);
+        return this.saveInvoiceNumberRange(invoiceNumberRange);
     }
 
     @Override
     public void deleteInvoiceNumberRange(String ubn, String rangeIdentifier) {
 
-        final InvoiceNumberRange invoiceNumberRange = this.getInvoiceNumberRangeByRangeIdentifier(ubn, rangeIdentifier);
+        final InvoiceNumberRange invoiceNumberRange = this.loadInvoiceNumberRange(ubn, rangeIdentifier);
 
         invoiceNumberRangeRepository.delete(invoiceNumberRange);
+        invoiceNumberRangeCache.evict(ubn, rangeIdentifier);
     }
 
+    /**
+     * Dispensed numbers are not rolled back with the caller's transaction, same as a database sequence. Running outside of a transaction
+     * also avoids write conflicts between concurrent increments of the same document.
+     */
     @Override
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
     public String resolveInvoiceNumber(String ubn) {
-        Lock lock = acquireLock(ubn);
+
+        if (properties.getDispensing().getMode() == EInvoiceProperties.DispensingMode.LOCKING) {
+            return resolveInvoiceNumberWithLock(ubn);
+        }
+
+        if (properties.getDispensing().getMode() == EInvoiceProperties.DispensingMode.LEASING) {
+            return invoiceNumberLeaseDispenser.dispenseInvoiceNumber(ubn, getCurrentRangeIdentifier());
+        }
+
+        final NumberBlock numberBlock = invoiceNumberAllocator.allocateNumbers(ubn, getCurrentRangeIdentifier(), 1);
+
+        return InvoiceNumberRange.formatInvoiceNumber(numberBlock.getPrefix(), numberBlock.getLastNumber());
+    }
+
+    /**
+     * Reserves count numbers in order, continuing into the next dispensable number range when one runs out.
+     * If the numbers run out before count is reached, the numbers reserved so far are released and the exception is rethrown,
+     * with any failure to release attached as a suppressed exception.
+     */
+    @Override
+    @Transactional(value = "mongoTx", propagation = Propagation.NOT_SUPPORTED)
+    public List<String> resolveInvoiceNumbers(String ubn, int count) {
+
+        if (count < 1) {
+            throw new IllegalArgumentException("Number count must be positive: " + count);
+        }
+
+        final String rangeIdentifier = getCurrentRangeIdentifier();
+        final List<NumberBlock> numberBlocks = new ArrayList<>();
+        int remainingCount = count;
 
         try {
-            lock.lock();
-            final InvoiceNumberRange invoiceNumberRange = this.getCurrentInvoiceNumberRange(ubn);
+            while (remainingCount > 0) {
+                final NumberBlock numberBlock = invoiceNumberAllocator.allocateNumbers(ubn, rangeIdentifier, remainingCount);
+                numberBlocks.add(numberBlock);
+                remainingCount -= numberBlock.size();
+            }
+        } catch (RuntimeException e) {
+            for (int i = numberBlocks.size() - 1; i >= 0; i--) {
+                final NumberBlock numberBlock = numberBlocks.get(i);
+
+                try {
+                    invoiceNumberAllocator.releaseNumbers(numberBlock, numberBlock.getFirstNumber());
+                } catch (RuntimeException releaseException) {
+                    e.addSuppressed(releaseException);
+                }
+            }
+
+            throw e;
+        }
+
+        final List<String> invoiceNumbers = new ArrayList<>(count);
+
+        for (NumberBlock numberBlock : numberBlocks) {
+            for (int number = numberBlock.getFirstNumber(); number <= numberBlock.getLastNumber(); number++) {
+                invoiceNumbers.add(InvoiceNumberRange.formatInvoiceNumber(numberBlock.getPrefix(), number));
+            }
+        }
+
+        return invoiceNumbers;
+    }
+
+    private String resolveInvoiceNumberWithLock(String ubn) {
+        return dispensingLocks.withLock(ubn, properties.getDispensing().getLockTimeout(), () -> {
+            final InvoiceNumberRange invoiceNumberRange = this.loadInvoiceNumberRange(ubn, getCurrentRangeIdentifier());
             final InvoiceNumberRange.NumberRange dispensableNumberRange = invoiceNumberRange.findDispensableNumberRange();
 
-            final Update updateOperation = new Update().inc("numberRanges.$.currentIncrement", 1);
+            final Update updateOperation = new Update().inc("numberRanges.$.currentIncrement", 1)
+                    .inc("numberRanges.$.remainingNumbers", -1)
+                    .inc("remainingNumbers", -1);
 
             if (!dispensableNumberRange.isStarted()) {
                 updateOperation.set("numberRanges.$.started", true);
@@ -149,6 +274,8 @@ public class InvoiceNumberRangeServiceImpl implements InvoiceNumberRangeService
                     updateOperation,
                     InvoiceNumberRange.class);
 
+            invoiceNumberRangeCache.evict(ubn, invoiceNumberRange.getRangeIdentifier());
+
             if (result.getModifiedCount() != 1) {
                 throw new RuntimeException("Number increment operation failed");
             }
@@ -156,47 +283,35 @@ public class InvoiceNumberRangeServiceImpl implements InvoiceNumberRangeService
             final InvoiceNumberRange updatedInvoiceNumberRange = this.getInvoiceNumberRange(invoiceNumberRange.getId());
             final InvoiceNumberRange.NumberRange dispenserNumberRange = updatedInvoiceNumberRange.findNumberRangeById(dispensableNumberRange.getRangeFrom());
 
-            NumberStyleFormatter formatter = new NumberStyleFormatter("00000000");
-            final String number = formatter.getNumberFormat(Locale.getDefault()).format(dispenserNumberRange.getCurrentIncrement());
-            return dispenserNumberRange.getPrefix() + "-" + number;
+            return InvoiceNumberRange.formatInvoiceNumber(dispenserNumberRange.getPrefix(), dispenserNumberRange.getCurrentIncrement());
+        });
+    }
 
-        } finally {
-            lock.unlock();
-        }
+    @Override
+    public List<InvoiceNumberRangeCapacity> getInvoiceNumberRangesRunningLow(String rangeIdentifier, int threshold) {
+        return invoiceNumberRangeRepository.findAllByRangeIdentifierAndRemainingNumbersLessThanOrderByRemainingNumbers(rangeIdentifier, threshold);
     }
 
-    private Lock acquireLock(String ubn) {
-        return locks.computeIfAbsent(ubn, s -> new ReentrantLock());
+    @Override
+    public List<LockStripeStats> getDispensingLockStats() {
+        return dispensingLocks.getStats();
     }
 
     @Override
     public String getCurrentRangeIdentifier() {
-        return getRangeIdentifier(YearMonth.now());
+        return invoicePeriodCalendar.getCurrentPeriod().getRangeIdentifier();
     }
 
     private String getLastRangeIdentifier() {
-        int monthToSubtract = YearMonth.now().getMonthValue() % 2 == 0 ? 2 : 1;
-        return getRangeIdentifier(YearMonth.now().minusMonths(monthToSubtract));
+        return invoicePeriodCalendar.getCurrentPeriod().previous().getRangeIdentifier();
     }
 
     private String getNextRangeIdentifier() {
-        int monthToAdd = YearMonth.now().getMonthValue() % 2 == 0 ? 2 : 1;
-        return getRangeIdentifier(YearMonth.now().plusMonths(monthToAdd));
+        return invoicePeriodCalendar.getCurrentPeriod().next().getRangeIdentifier();
     }
 
-
     @Override
     public String getRangeIdentifier(YearMonth yearMonth) {
-
-        StringBuilder rangeIdentifier = new StringBuilder();
-        rangeIdentifier.append(MinguoDate.from(yearMonth.atDay(1)).get(ChronoField.YEAR));
-
-        if (yearMonth.getMonthValue() % 2 == 0) {
-            rangeIdentifier.append(yearMonth.minusMonths(1).format(FORMATTER)).append(yearMonth.format(FORMATTER));
-        } else {
-            rangeIdentifier.append(yearMonth.format(FORMATTER)).append(yearMonth.plusMonths(1).format(FORMATTER));
-        }
-
-        return rangeIdentifier.toString();
+        return InvoicePeriodCalendar.getPeriod(yearMonth).getRangeIdentifier();
     }
 }
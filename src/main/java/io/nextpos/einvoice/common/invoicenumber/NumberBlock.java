@@ -0,0 +1,34 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import lombok.Data;
+
+/**
+ * A contiguous block of invoice numbers that has been taken from one number range.
+ */
+@Data
+public class NumberBlock {
+
+    private final String ubn;
+
+    private final String rangeIdentifier;
+
+    private final String prefix;
+
+    /**
+     * Identifies the number range the block was taken from.
+     */
+    private final String rangeFrom;
+
+    private final int firstNumber;
+
+    private final int lastNumber;
+
+    /**
+     * Identifies the lease recorded on the invoice number range when the block was leased to a node, null otherwise.
+     */
+    private String leaseId;
+
+    public int size() {
+        return lastNumber - firstNumber + 1;
+    }
+}
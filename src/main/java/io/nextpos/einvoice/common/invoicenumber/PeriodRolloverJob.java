@@ -0,0 +1,141 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Moves all ubns from one bimonthly period to the next.
+ * <p>
+ * Pre-warming loads a period's invoice number ranges into the cache in parallel, one $in query per batch of the ubns of the period before,
+ * and reports ubns that have no invoice number range for the period yet. Those ubns would fail their first sale of the period.
+ * Pre-warmed entries expire after the configured cache time to live like any other, so that edits made on other nodes show up in time,
+ * and pre-warming only pays off when it runs within the time to live before the period boundary.
+ * <p>
+ * Closing writes the unused number report of a period and marks its invoice number ranges FINISHED in bulk, so it runs after the period has ended.
+ * Both steps take the period explicitly, as they run on different sides of the boundary.
+ */
+@Component
+public class PeriodRolloverJob {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PeriodRolloverJob.class);
+
+    private final InvoiceNumberRangeRepository invoiceNumberRangeRepository;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final InvoiceNumberRangeCache invoiceNumberRangeCache;
+
+    private final UnusedNumberReportGenerator unusedNumberReportGenerator;
+
+    private final InvoicePeriodCalendar invoicePeriodCalendar;
+
+    private final EInvoiceProperties properties;
+
+    private volatile PeriodRolloverProgress progress;
+
+    @Autowired
+    public PeriodRolloverJob(InvoiceNumberRangeRepository invoiceNumberRangeRepository, MongoTemplate mongoTemplate, InvoiceNumberRangeCache invoiceNumberRangeCache, UnusedNumberReportGenerator unusedNumberReportGenerator, InvoicePeriodCalendar invoicePeriodCalendar, EInvoiceProperties properties) {
+        this.invoiceNumberRangeRepository = invoiceNumberRangeRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.invoiceNumberRangeCache = invoiceNumberRangeCache;
+        this.unusedNumberReportGenerator = unusedNumberReportGenerator;
+        this.invoicePeriodCalendar = invoicePeriodCalendar;
+        this.properties = properties;
+    }
+
+    /**
+     * Typically called within the cache time to live before the boundary with the period that is about to start.
+     */
+    public PeriodRolloverProgress prewarmPeriod(InvoicePeriodCalendar.BimonthlyPeriod period) {
+
+        final List<String> ubns = mongoTemplate.findDistinct(Query.query(where("rangeIdentifier").is(period.previous().getRangeIdentifier())),
+                "ubn",
+                InvoiceNumberRange.class,
+                String.class);
+
+        final PeriodRolloverProgress rolloverProgress = new PeriodRolloverProgress(period.getRangeIdentifier(), ubns.size());
+        progress = rolloverProgress;
+
+        final EInvoiceProperties.PeriodClose settings = properties.getPeriodClose();
+        final ForkJoinPool pool = new ForkJoinPool(settings.getParallelism());
+
+        try {
+            final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < ubns.size(); i += settings.getBatchSize()) {
+                final List<String> batch = ubns.subList(i, Math.min(i + settings.getBatchSize(), ubns.size()));
+                tasks.add(pool.submit(() -> prewarm(batch, period, rolloverProgress)));
+            }
+
+            tasks.forEach(ForkJoinTask::join);
+        } finally {
+            pool.shutdown();
+        }
+
+        LOGGER.info("Pre-warmed period {}: {} of {} ubns have invoice number ranges, missing: {}",
+                period.getRangeIdentifier(),
+                rolloverProgress.getPrewarmedUbns(),
+                rolloverProgress.getTotalUbns(),
+                rolloverProgress.getMissingUbns());
+
+        return rolloverProgress;
+    }
+
+    /**
+     * Typically called after the boundary with the period that has just ended. The unused number report is written to reportDirectory.
+     */
+    public UnusedNumberReport closePeriod(InvoicePeriodCalendar.BimonthlyPeriod period, Path reportDirectory) {
+
+        if (invoicePeriodCalendar.now().isBefore(period.getEndInstant())) {
+            throw new IllegalStateException("Period has not ended yet: " + period.getRangeIdentifier());
+        }
+
+        final String rangeIdentifier = period.getRangeIdentifier();
+        final UnusedNumberReport report = unusedNumberReportGenerator.generateReport(rangeIdentifier, reportDirectory.resolve("unused-numbers-" + rangeIdentifier + ".csv"));
+
+        LOGGER.info("Closed period {}: {} invoice number ranges, {} unused numbers", rangeIdentifier, report.getInvoiceNumberRangeCount(), report.getUnusedNumberCount());
+
+        if (report.getUnfinishedInvoiceNumberRangeCount() > 0) {
+            LOGGER.warn("Period {} has {} invoice number ranges with unexpired leases, which will be reported by a later run", rangeIdentifier, report.getUnfinishedInvoiceNumberRangeCount());
+        }
+
+        return report;
+    }
+
+    /**
+     * Progress of the running or most recent pre-warm, or null if none has run on this node.
+     */
+    public PeriodRolloverProgress getProgress() {
+        return progress;
+    }
+
+    private void prewarm(List<String> ubns, InvoicePeriodCalendar.BimonthlyPeriod period, PeriodRolloverProgress rolloverProgress) {
+
+        final Set<String> missingUbns = new HashSet<>(ubns);
+
+        for (InvoiceNumberRange invoiceNumberRange : invoiceNumberRangeRepository.findAllByUbnInAndRangeIdentifier(ubns, period.getRangeIdentifier())) {
+            invoiceNumberRangeCache.put(invoiceNumberRange);
+            missingUbns.remove(invoiceNumberRange.getUbn());
+        }
+
+        final int processedUbns = rolloverProgress.completeBatch(ubns.size(), missingUbns);
+
+        LOGGER.debug("Pre-warming period {}: {}/{} ubns", period.getRangeIdentifier(), processedUbns, rolloverProgress.getTotalUbns());
+    }
+}
@@ -0,0 +1,54 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Data
+public class PeriodRolloverProgress {
+
+    /**
+     * The period that is being pre-warmed.
+     */
+    private final String rangeIdentifier;
+
+    private final int totalUbns;
+
+    private final AtomicInteger processedUbns = new AtomicInteger();
+
+    /**
+     * Ubns that have no invoice number range for the pre-warmed period.
+     */
+    private final List<String> missingUbns = new ArrayList<>();
+
+    int completeBatch(int ubnCount, Collection<String> batchMissingUbns) {
+
+        synchronized (missingUbns) {
+            missingUbns.addAll(batchMissingUbns);
+        }
+
+        return processedUbns.addAndGet(ubnCount);
+    }
+
+    public int getProcessedUbns() {
+        return processedUbns.get();
+    }
+
+    public List<String> getMissingUbns() {
+
+        synchronized (missingUbns) {
+            return new ArrayList<>(missingUbns);
+        }
+    }
+
+    public int getPrewarmedUbns() {
+        return getProcessedUbns() - getMissingUbns().size();
+    }
+
+    public boolean isCompleted() {
+        return getProcessedUbns() == totalUbns;
+    }
+}
@@ -0,0 +1,34 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import lombok.Data;
+
+import java.nio.file.Path;
+
+@Data
+public class UnusedNumberReport {
+
+    private final String rangeIdentifier;
+
+    private final Path reportFile;
+
+    /**
+     * Invoice number ranges that were reported and marked FINISHED.
+     */
+    private int invoiceNumberRangeCount;
+
+    /**
+     * Invoice number ranges of the period that are still ACTIVE after the run, because of unexpired leases. These need another run once the leases
+     * are released or have expired.
+     */
+    private long unfinishedInvoiceNumberRangeCount;
+
+    private long unusedNumberCount;
+
+    void addInvoiceNumberRanges(int count) {
+        invoiceNumberRangeCount += count;
+    }
+
+    void addUnusedNumbers(long count) {
+        unusedNumberCount += count;
+    }
+}
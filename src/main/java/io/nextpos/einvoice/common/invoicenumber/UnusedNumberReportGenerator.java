@@ -0,0 +1,319 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import com.mongodb.bulk.BulkWriteResult;
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+/**
+ * Writes the unused (blank) invoice numbers of a closed period to a report file and marks the reported invoice number ranges FINISHED.
+ * <p>
+ * Invoice number ranges are read through a cursor and written one at a time, so memory use does not depend on the number of ubns.
+ * Each batch is forced to disk before it is marked FINISHED, so an interrupted run can be resumed and never loses reported ranges.
+ * A rerun on the same report file keeps the lines of FINISHED ranges, drops lines the interrupted run wrote for ranges it had not marked yet,
+ * and appends the remaining ranges. The returned report only counts the ranges of the current run.
+ * <p>
+ * A range is only marked FINISHED if it is unchanged since it was read, so numbers taken or recorded as unused in the meantime are not lost.
+ * The lines of ranges that changed are removed and the ranges are reported again, up to MAX_REPORT_PASSES times per run.
+ * Invoice numbers this node has leased from the period are released first, so that those never issued are reported as unused.
+ * Invoice number ranges with an unexpired lease of another node are neither reported nor FINISHED, and are left to a later run.
+ */
+@Component
+public class UnusedNumberReportGenerator {
+
+    static final String HEADER = "ubn,yearMonth,prefix,numberFrom,numberTo";
+
+    private static final int MAX_REPORT_PASSES = 3;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final InvoiceNumberRangeCache invoiceNumberRangeCache;
+
+    private final InvoiceNumberLeaseDispenser invoiceNumberLeaseDispenser;
+
+    private final EInvoiceProperties properties;
+
+    @Autowired
+    public UnusedNumberReportGenerator(MongoTemplate mongoTemplate, InvoiceNumberRangeCache invoiceNumberRangeCache, InvoiceNumberLeaseDispenser invoiceNumberLeaseDispenser, EInvoiceProperties properties) {
+        this.mongoTemplate = mongoTemplate;
+        this.invoiceNumberRangeCache = invoiceNumberRangeCache;
+        this.invoiceNumberLeaseDispenser = invoiceNumberLeaseDispenser;
+        this.properties = properties;
+    }
+
+    public UnusedNumberReport generateReport(String rangeIdentifier, Path reportFile) {
+
+        invoiceNumberLeaseDispenser.releaseLeases(rangeIdentifier);
+
+        final UnusedNumberReport report = new UnusedNumberReport(rangeIdentifier, reportFile);
+
+        try {
+            boolean allFinished = false;
+
+            for (int pass = 0; pass < MAX_REPORT_PASSES && !allFinished; pass++) {
+                allFinished = writeReport(rangeIdentifier, reportFile, report);
+            }
+
+            if (!allFinished) {
+                removeUnfinishedLines(rangeIdentifier, reportFile);
+            }
+
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to write unused number report: " + reportFile, e);
+        }
+
+        final Query activeQuery = Query.query(where("rangeIdentifier").is(rangeIdentifier).and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE));
+        report.setUnfinishedInvoiceNumberRangeCount(mongoTemplate.count(activeQuery, InvoiceNumberRange.class));
+
+        return report;
+    }
+
+    /**
+     * @return false if a reported range could not be marked FINISHED, in which case its lines are still in the report.
+     */
+    private boolean writeReport(String rangeIdentifier, Path reportFile, UnusedNumberReport report) throws IOException {
+
+        final int batchSize = properties.getPeriodClose().getBatchSize();
+        final Query query = Query.query(unleasedCriteria(rangeIdentifier)).cursorBatchSize(batchSize);
+        final List<ReportedRange> batch = new ArrayList<>(batchSize);
+        boolean allFinished = true;
+
+        try (FileChannel channel = openReport(rangeIdentifier, reportFile);
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+             CloseableIterator<InvoiceNumberRange> invoiceNumberRanges = mongoTemplate.stream(query, InvoiceNumberRange.class)) {
+
+            if (channel.size() == 0) {
+                writer.write(HEADER);
+                writer.newLine();
+            }
+
+            while (invoiceNumberRanges.hasNext()) {
+                final InvoiceNumberRange invoiceNumberRange = invoiceNumberRanges.next();
+                batch.add(new ReportedRange(invoiceNumberRange, writeUnusedNumbers(invoiceNumberRange, writer)));
+
+                if (batch.size() == batchSize) {
+                    writer.flush();
+                    channel.force(false);
+                    allFinished &= markFinished(batch, report);
+                }
+            }
+
+            writer.flush();
+            channel.force(false);
+            allFinished &= markFinished(batch, report);
+        }
+
+        return allFinished;
+    }
+
+    /**
+     * ACTIVE invoice number ranges of the period without an unexpired lease.
+     */
+    private Criteria unleasedCriteria(String rangeIdentifier) {
+
+        return where("rangeIdentifier").is(rangeIdentifier)
+                .and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE)
+                .and("leases").not().elemMatch(where("expiresAt").gt(new Date()));
+    }
+
+    /**
+     * Opens an existing report for appending, without its unfinished lines, or creates an empty one.
+     */
+    private FileChannel openReport(String rangeIdentifier, Path reportFile) throws IOException {
+
+        if (Files.exists(reportFile) && Files.size(reportFile) > 0) {
+            removeUnfinishedLines(rangeIdentifier, reportFile);
+
+            return FileChannel.open(reportFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        return FileChannel.open(reportFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Rewrites the report of an interrupted run, or of ranges that could not be marked FINISHED, without the lines of ranges that are still ACTIVE, which are reported again, and without
+     * a last line that was cut off. Reports are per period, so the ubn identifies the range of a line.
+     */
+    private void removeUnfinishedLines(String rangeIdentifier, Path reportFile) throws IOException {
+
+        final Query query = Query.query(where("rangeIdentifier").is(rangeIdentifier).and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE));
+        final Set<String> activeUbns = new HashSet<>(mongoTemplate.findDistinct(query, "ubn", InvoiceNumberRange.class, String.class));
+        final boolean lastLineComplete = endsWithLineSeparator(reportFile);
+        final Path tempFile = reportFile.resolveSibling(reportFile.getFileName() + ".tmp");
+
+        try (BufferedReader reader = Files.newBufferedReader(reportFile, StandardCharsets.UTF_8);
+             FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8))) {
+
+            String line = reader.readLine();
+
+            while (line != null) {
+                final String nextLine = reader.readLine();
+                final boolean cutOff = nextLine == null && !lastLineComplete;
+                final int separator = line.indexOf(',');
+
+                if (!cutOff && (separator < 0 || !activeUbns.contains(line.substring(0, separator)))) {
+                    writer.write(line);
+                    writer.newLine();
+                }
+
+                line = nextLine;
+            }
+
+            writer.flush();
+            channel.force(false);
+        }
+
+        Files.move(tempFile, reportFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean endsWithLineSeparator(Path file) throws IOException {
+
+        try (SeekableByteChannel channel = Files.newByteChannel(file)) {
+            final ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.position(channel.size() - 1).read(lastByte);
+
+            return lastByte.get(0) == '\n';
+        }
+    }
+
+    /**
+     * Numbers recorded as unused by leasing come first, followed by the tail of each number range that was never dispensed.
+     * Disabled number ranges are reported as well, as their tail was never dispensed either.
+     *
+     * @return the number of unused numbers written.
+     */
+    private long writeUnusedNumbers(InvoiceNumberRange invoiceNumberRange, BufferedWriter writer) throws IOException {
+
+        final String yearMonth = invoiceNumberRange.getShortRangeIdentifier();
+        long unusedNumberCount = 0;
+
+        for (InvoiceNumberRange.NumberRange numberRange : invoiceNumberRange.getNumberRanges()) {
+            for (InvoiceNumberRange.UnusedNumbers unusedNumbers : numberRange.getUnusedNumbers()) {
+                writeLine(writer, invoiceNumberRange.getUbn(), yearMonth, numberRange.getPrefix(), unusedNumbers.getNumberFrom(), unusedNumbers.getNumberTo());
+                unusedNumberCount += unusedNumbers.getNumberTo() - unusedNumbers.getNumberFrom() + 1;
+            }
+
+            if (numberRange.getRemainingNumberInRange() > 0) {
+                writeLine(writer, invoiceNumberRange.getUbn(), yearMonth, numberRange.getPrefix(), numberRange.getCurrentIncrement() + 1, numberRange.getRangeToNumber());
+                unusedNumberCount += numberRange.getRemainingNumberInRange();
+            }
+        }
+
+        return unusedNumberCount;
+    }
+
+    private void writeLine(BufferedWriter writer, String ubn, String yearMonth, String prefix, int numberFrom, int numberTo) throws IOException {
+
+        writer.write(ubn);
+        writer.write(',');
+        writer.write(yearMonth);
+        writer.write(',');
+        writer.write(prefix);
+        writer.write(',');
+        writer.write(InvoiceNumber.formatSequence(numberFrom));
+        writer.write(',');
+        writer.write(InvoiceNumber.formatSequence(numberTo));
+        writer.newLine();
+    }
+
+    /**
+     * Marks each range of the batch FINISHED if it is still as it was reported: the same number ranges with the same increments, unused numbers
+     * and disabled flags, and no unexpired lease.
+     *
+     * @return false if a range of the batch is still ACTIVE, in which case its lines need to be removed from the report.
+     */
+    private boolean markFinished(List<ReportedRange> batch, UnusedNumberReport report) {
+
+        if (batch.isEmpty()) {
+            return true;
+        }
+
+        final List<String> ids = new ArrayList<>(batch.size());
+        batch.forEach(r -> ids.add(r.invoiceNumberRange.getId()));
+
+        final Update updateOperation = new Update().set("status", InvoiceNumberRange.InvoiceNumberRangeStatus.FINISHED)
+                .set("leases", new ArrayList<>());
+        final BulkOperations bulkOperations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, InvoiceNumberRange.class);
+        batch.forEach(r -> bulkOperations.updateOne(Query.query(reportedSnapshotCriteria(r.invoiceNumberRange)), updateOperation));
+        final BulkWriteResult result = bulkOperations.execute();
+
+        final Set<String> activeIds = new HashSet<>();
+
+        if (result.getModifiedCount() < batch.size()) {
+            final Query activeQuery = Query.query(where("_id").in(ids).and("status").is(InvoiceNumberRange.InvoiceNumberRangeStatus.ACTIVE));
+            activeQuery.fields().include("_id");
+            mongoTemplate.find(activeQuery, InvoiceNumberRange.class).forEach(r -> activeIds.add(r.getId()));
+        }
+
+        for (ReportedRange reportedRange : batch) {
+            final InvoiceNumberRange invoiceNumberRange = reportedRange.invoiceNumberRange;
+            invoiceNumberRangeCache.evict(invoiceNumberRange.getUbn(), invoiceNumberRange.getRangeIdentifier());
+
+            if (!activeIds.contains(invoiceNumberRange.getId())) {
+                report.addInvoiceNumberRanges(1);
+                report.addUnusedNumbers(reportedRange.unusedNumberCount);
+            }
+        }
+
+        batch.clear();
+
+        return activeIds.isEmpty();
+    }
+
+    private Criteria reportedSnapshotCriteria(InvoiceNumberRange invoiceNumberRange) {
+
+        final List<InvoiceNumberRange.NumberRange> numberRanges = invoiceNumberRange.getNumberRanges();
+        Criteria criteria = where("_id").is(invoiceNumberRange.getId()).and("numberRanges").size(numberRanges.size());
+
+        for (int i = 0; i < numberRanges.size(); i++) {
+            final InvoiceNumberRange.NumberRange numberRange = numberRanges.get(i);
+            final String path = "numberRanges." + i;
+            criteria = criteria.and(path + ".rangeFrom").is(numberRange.getRangeFrom())
+                    .and(path + ".currentIncrement").is(numberRange.getCurrentIncrement())
+                    .and(path + ".disabled").is(numberRange.isDisabled())
+                    .and(path + ".unusedNumbers").size(numberRange.getUnusedNumbers().size());
+        }
+
+        return criteria.andOperator(unleasedCriteria(invoiceNumberRange.getRangeIdentifier()));
+    }
+
+    private static class ReportedRange {
+
+        private final InvoiceNumberRange invoiceNumberRange;
+
+        private final long unusedNumberCount;
+
+        ReportedRange(InvoiceNumberRange invoiceNumberRange, long unusedNumberCount) {
+            this.invoiceNumberRange = invoiceNumberRange;
+            this.unusedNumberCount = unusedNumberCount;
+        }
+    }
+}
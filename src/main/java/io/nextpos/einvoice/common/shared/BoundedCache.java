@@ -0,0 +1,131 @@
+package io.nextpos.einvoice.common.shared;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Size bounded, least recently used cache with an optional time to live per entry.
+ * <p>
+ * Values are loaded outside of the cache lock, so concurrent misses on the same key may load the value more than once.
+ */
+public class BoundedCache<K, V> {
+
+    private final int maximumSize;
+
+    private final long timeToLiveNanos;
+
+    private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+    /**
+     * @param timeToLive null or zero means entries only leave the cache when they are evicted or removed.
+     */
+    public BoundedCache(int maximumSize, Duration timeToLive) {
+
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be positive: " + maximumSize);
+        }
+
+        this.maximumSize = maximumSize;
+        this.timeToLiveNanos = timeToLive != null ? timeToLive.toNanos() : 0;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > BoundedCache.this.maximumSize;
+            }
+        };
+    }
+
+    public V get(K key) {
+
+        synchronized (entries) {
+            final CacheEntry<V> entry = entries.get(key);
+
+            if (entry == null) {
+                return null;
+            }
+
+            if (entry.isExpired(System.nanoTime())) {
+                entries.remove(key);
+                return null;
+            }
+
+            return entry.value;
+        }
+    }
+
+    public V get(K key, Function<K, V> loader) {
+
+        final V cachedValue = get(key);
+
+        if (cachedValue != null) {
+            return cachedValue;
+        }
+
+        final V value = loader.apply(key);
+
+        if (value != null) {
+            put(key, value);
+        }
+
+        return value;
+    }
+
+    public void put(K key, V value) {
+
+        final long expiresAt = timeToLiveNanos > 0 ? System.nanoTime() + timeToLiveNanos : 0;
+
+        synchronized (entries) {
+            entries.put(key, new CacheEntry<>(value, expiresAt));
+        }
+    }
+
+    public void remove(K key) {
+
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void removeIf(Predicate<V> predicate) {
+
+        synchronized (entries) {
+            entries.values().removeIf(entry -> predicate.test(entry.value));
+        }
+    }
+
+    public void clear() {
+
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class CacheEntry<V> {
+
+        private final V value;
+
+        /**
+         * System.nanoTime() based expiry, 0 means the entry does not expire.
+         */
+        private final long expiresAt;
+
+        CacheEntry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != 0 && now - expiresAt >= 0;
+        }
+    }
+}
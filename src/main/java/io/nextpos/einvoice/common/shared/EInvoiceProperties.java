@@ -0,0 +1,224 @@
+package io.nextpos.einvoice.common.shared;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Component
+@ConfigurationProperties("einvoice")
+@Data
+public class EInvoiceProperties {
+
+    private final Dispensing dispensing = new Dispensing();
+
+    private final NumberRangeCache numberRangeCache = new NumberRangeCache();
+
+    private final PeriodClose periodClose = new PeriodClose();
+
+    private final Encryption encryption = new Encryption();
+
+    private final Receipt receipt = new Receipt();
+
+    private final CodeGeneration codeGeneration = new CodeGeneration();
+
+    private final Turnkey turnkey = new Turnkey();
+
+    private final Streaming streaming = new Streaming();
+
+    @Data
+    public static class Dispensing {
+
+        /**
+         * How invoice numbers are dispensed from the current invoice number range.
+         */
+        private DispensingMode mode = DispensingMode.ATOMIC;
+
+        /**
+         * Number of invoice numbers leased to this node at a time in LEASING mode.
+         */
+        private int leaseBlockSize = 100;
+
+        /**
+         * How long a lease in LEASING mode may go without handing out a number before it is released and its ubn forgotten.
+         */
+        private Duration leaseIdleTimeout = Duration.ofMinutes(10);
+
+        /**
+         * How long a lease in LEASING mode is recorded on the invoice number range without being renewed. Leases are renewed while in use.
+         * The numbers of a lease that expires, e.g. because its node died, are treated as used when the period is closed.
+         */
+        private Duration leaseTimeToLive = Duration.ofMinutes(30);
+
+        /**
+         * Number of locks shared by all ubns in LOCKING mode, rounded up to a power of two.
+         */
+        private int lockStripes = 64;
+
+        /**
+         * How long to wait for a ubn lock in LOCKING mode before giving up with LockTimeoutException. Unset waits indefinitely.
+         */
+        private Duration lockTimeout;
+    }
+
+    @Data
+    public static class NumberRangeCache {
+
+        /**
+         * Maximum number of (ubn, rangeIdentifier) entries kept in memory.
+         */
+        private int maximumSize = 10_000;
+
+        /**
+         * Upper bound on how stale a cached invoice number range can be when other nodes dispense numbers or edit ranges.
+         */
+        private Duration timeToLive = Duration.ofSeconds(30);
+    }
+
+    @Data
+    public static class PeriodClose {
+
+        /**
+         * Number of invoice number ranges fetched per cursor batch and marked FINISHED per update when closing a period.
+         */
+        private int batchSize = 500;
+
+        /**
+         * Number of threads that pre-warm the next period's invoice number ranges.
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Data
+    public static class Encryption {
+
+        /**
+         * Maximum number of derived AES keys kept in memory.
+         */
+        private int aesKeyCacheSize = 1_000;
+
+        /**
+         * How long a derived AES key is reused before it is derived again.
+         */
+        private Duration aesKeyTimeToLive = Duration.ofHours(1);
+
+        /**
+         * Maximum number of QR code encryptors kept in memory, one per AES key. Each holds an encrypt and a decrypt Cipher per thread that used it,
+         * so memory grows with the number of threads times the number of cached keys.
+         */
+        private int encryptorCacheSize = 1_000;
+
+        /**
+         * How long a QR code encryptor is cached after it was created. The Ciphers of an expired encryptor are released as threads clear their stale
+         * thread locals.
+         */
+        private Duration encryptorTimeToLive = Duration.ofHours(1);
+    }
+
+    @Data
+    public static class Receipt {
+
+        /**
+         * Charset of the receipt printers, used for all text except QR code content.
+         */
+        private String charset = "Big5";
+
+        /**
+         * QR code module size in dots, 1 to 16.
+         */
+        private int qrCodeModuleSize = 4;
+
+        /**
+         * Initial size of the per-thread buffer a receipt is rendered into before it is written to a channel. Grows when a receipt does not fit.
+         */
+        private int bufferSize = 2048;
+
+        /**
+         * Maximum number of rendered seller headers kept in memory.
+         */
+        private int sellerTemplateCacheSize = 1_000;
+    }
+
+    @Data
+    public static class CodeGeneration {
+
+        /**
+         * Number of threads that generate or verify barcode and QR code content in batch jobs.
+         */
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Number of invoices processed in parallel at a time, saved with one bulk write when generating.
+         */
+        private int batchSize = 1_000;
+    }
+
+    @Data
+    public static class Turnkey {
+
+        /**
+         * Turnkey storage directory that holds a C0401/SRC, C0501/SRC and C0701/SRC directory per message type, e.g. C:/EINVTurnkey/UpCast/B2CSTORAGE.
+         */
+        private Path uploadDirectory;
+
+        /**
+         * Directory MIG files are written to before they are moved into the upload directory. Must be on the same file system.
+         * Defaults to .staging in the upload directory.
+         */
+        private Path stagingDirectory;
+
+        /**
+         * Number of MIG files written, synced and published together, and marked PROCESSED with one bulk write.
+         */
+        private int flushSize = 200;
+
+        /**
+         * Leases of claimed entries are extended to at least this long before their MIG files are moved into the upload directory,
+         * so they cannot be claimed again before they are marked PROCESSED. PENDING entries are claimed for this long before their files are written.
+         */
+        private Duration publishLease = Duration.ofMinutes(5);
+
+        /**
+         * Number of Turnkey results fetched and applied with one bulk write per reconciliation round.
+         */
+        private int reconciliationBatchSize = 1_000;
+
+        /**
+         * How long Turnkey results that match no queue entry hold the high-water mark before they are skipped, e.g. results of MIG files that were
+         * published by another system.
+         */
+        private Duration reconciliationHoldTimeout = Duration.ofHours(1);
+    }
+
+    @Data
+    public static class Streaming {
+
+        /**
+         * Number of documents fetched per round trip by cursor-backed streams.
+         */
+        private int cursorBatchSize = 500;
+    }
+
+    public enum DispensingMode {
+
+        /**
+         * Read the number range, increment it and read it back while holding a JVM local lock per ubn.
+         * Only safe when a single node dispenses numbers for a given ubn.
+         */
+        LOCKING,
+
+        /**
+         * Dispense with a single findAndModify that is guarded on the remaining numbers of a number range.
+         * Safe across nodes and needs no in-process lock.
+         */
+        ATOMIC,
+
+        /**
+         * Lease a block of numbers per ubn with one atomic update and hand them out from memory.
+         * Numbers are no longer issued in strict order across nodes.
+         */
+        LEASING
+    }
+}
@@ -0,0 +1,228 @@
+package io.nextpos.einvoice.common.shared;
+
+import lombok.Getter;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bimonthly invoice periods in Minguo calendar, precomputed for a span of years so that lookups neither allocate nor convert chronology.
+ * <p>
+ * Period boundaries are in Taipei time regardless of the server time zone. A Clock bean, if defined, decides what the current period is.
+ */
+@Component
+public class InvoicePeriodCalendar {
+
+    public static final ZoneId ZONE_ID = ZoneId.of("Asia/Taipei");
+
+    private static final int MINGUO_YEAR_OFFSET = 1911;
+
+    private static final int FIRST_YEAR = 2000;
+
+    private static final int LAST_YEAR = 2100;
+
+    private static final int PERIODS_PER_YEAR = 6;
+
+    private static final BimonthlyPeriod[] PERIODS;
+
+    private static final long[] PERIOD_START_MILLIS;
+
+    private static final Map<String, BimonthlyPeriod> PERIODS_BY_RANGE_IDENTIFIER;
+
+    static {
+        final int periodCount = (LAST_YEAR - FIRST_YEAR + 1) * PERIODS_PER_YEAR;
+        PERIODS = new BimonthlyPeriod[periodCount];
+        PERIOD_START_MILLIS = new long[periodCount];
+        PERIODS_BY_RANGE_IDENTIFIER = new HashMap<>(periodCount * 2);
+
+        for (int i = 0; i < periodCount; i++) {
+            final BimonthlyPeriod period = new BimonthlyPeriod(YearMonth.of(FIRST_YEAR + i / PERIODS_PER_YEAR, (i % PERIODS_PER_YEAR) * 2 + 1));
+            PERIODS[i] = period;
+            PERIOD_START_MILLIS[i] = period.getStartInstant().toEpochMilli();
+            PERIODS_BY_RANGE_IDENTIFIER.put(period.getRangeIdentifier(), period);
+        }
+    }
+
+    private static final InvoicePeriodCalendar DEFAULT_CALENDAR = new InvoicePeriodCalendar(Clock.system(ZONE_ID));
+
+    private final Clock clock;
+
+    private volatile BimonthlyPeriod currentPeriod = PERIODS[0];
+
+    @Autowired
+    public InvoicePeriodCalendar(ObjectProvider<Clock> clock) {
+        this(clock.getIfAvailable(() -> Clock.system(ZONE_ID)));
+    }
+
+    public InvoicePeriodCalendar(Clock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * For callers that are not managed by Spring, such as documents. Uses the system clock.
+     */
+    public static InvoicePeriodCalendar getDefault() {
+        return DEFAULT_CALENDAR;
+    }
+
+    public Instant now() {
+        return clock.instant();
+    }
+
+    public BimonthlyPeriod getCurrentPeriod() {
+
+        final long now = clock.millis();
+        final BimonthlyPeriod period = currentPeriod;
+
+        if (period.contains(now)) {
+            return period;
+        }
+
+        final BimonthlyPeriod newPeriod = getPeriod(now);
+        currentPeriod = newPeriod;
+
+        return newPeriod;
+    }
+
+    public static BimonthlyPeriod getPeriod(Instant instant) {
+        return getPeriod(instant.toEpochMilli());
+    }
+
+    public static BimonthlyPeriod getPeriod(long epochMilli) {
+
+        int index = Arrays.binarySearch(PERIOD_START_MILLIS, epochMilli);
+
+        if (index < 0) {
+            index = -index - 2;
+        }
+
+        if (index >= 0 && PERIODS[index].contains(epochMilli)) {
+            return PERIODS[index];
+        }
+
+        return new BimonthlyPeriod(YearMonth.from(Instant.ofEpochMilli(epochMilli).atZone(ZONE_ID)));
+    }
+
+    public static BimonthlyPeriod getPeriod(YearMonth yearMonth) {
+
+        final int index = (yearMonth.getYear() - FIRST_YEAR) * PERIODS_PER_YEAR + (yearMonth.getMonthValue() - 1) / 2;
+
+        if (index >= 0 && index < PERIODS.length) {
+            return PERIODS[index];
+        }
+
+        return new BimonthlyPeriod(yearMonth);
+    }
+
+    /**
+     * @param rangeIdentifier Minguo year followed by start and end month, e.g. 1090910
+     */
+    public static BimonthlyPeriod getPeriod(String rangeIdentifier) {
+
+        final BimonthlyPeriod period = PERIODS_BY_RANGE_IDENTIFIER.get(rangeIdentifier);
+
+        if (period != null) {
+            return period;
+        }
+
+        final int length = rangeIdentifier.length();
+        final int minguoYear = Integer.parseInt(rangeIdentifier.substring(0, length - 4));
+        final int startMonth = Integer.parseInt(rangeIdentifier.substring(length - 4, length - 2));
+
+        return getPeriod(YearMonth.of(minguoYear + MINGUO_YEAR_OFFSET, startMonth));
+    }
+
+    @Getter
+    public static final class BimonthlyPeriod {
+
+        private final YearMonth startYearMonth;
+
+        /**
+         * Minguo year (e.g. 109 = 2020)
+         */
+        private final String year;
+
+        /**
+         * Always an odd month, e.g. 09
+         */
+        private final String startMonth;
+
+        /**
+         * Always an even month, e.g. 10
+         */
+        private final String endMonth;
+
+        /**
+         * Example: 1090910
+         */
+        private final String rangeIdentifier;
+
+        /**
+         * Example: 10910
+         */
+        private final String shortRangeIdentifier;
+
+        private final LocalDateTime startDateTime;
+
+        private final LocalDateTime endDateTime;
+
+        private final Instant startInstant;
+
+        /**
+         * Exclusive, i.e. the start of the next period.
+         */
+        private final Instant endInstant;
+
+        private final long startMillis;
+
+        private final long endMillis;
+
+        private BimonthlyPeriod(YearMonth yearMonth) {
+
+            this.startYearMonth = yearMonth.getMonthValue() % 2 == 0 ? yearMonth.minusMonths(1) : yearMonth;
+            final YearMonth endYearMonth = startYearMonth.plusMonths(1);
+
+            this.year = String.valueOf(startYearMonth.getYear() - MINGUO_YEAR_OFFSET);
+            this.startMonth = String.format("%02d", startYearMonth.getMonthValue());
+            this.endMonth = String.format("%02d", endYearMonth.getMonthValue());
+            this.rangeIdentifier = year + startMonth + endMonth;
+            this.shortRangeIdentifier = year + endMonth;
+
+            final LocalDate startDate = startYearMonth.atDay(1);
+            final LocalDate endDate = endYearMonth.atEndOfMonth();
+            this.startDateTime = startDate.atStartOfDay();
+            this.endDateTime = endDate.atTime(23, 59, 59);
+            this.startInstant = startDate.atStartOfDay(ZONE_ID).toInstant();
+            this.endInstant = endDate.plusDays(1).atStartOfDay(ZONE_ID).toInstant();
+            this.startMillis = startInstant.toEpochMilli();
+            this.endMillis = endInstant.toEpochMilli();
+        }
+
+        public boolean contains(long epochMilli) {
+            return epochMilli >= startMillis && epochMilli < endMillis;
+        }
+
+        public BimonthlyPeriod previous() {
+            return getPeriod(startYearMonth.minusMonths(2));
+        }
+
+        public BimonthlyPeriod next() {
+            return getPeriod(startYearMonth.plusMonths(2));
+        }
+
+        @Override
+        public String toString() {
+            return rangeIdentifier;
+        }
+    }
+}
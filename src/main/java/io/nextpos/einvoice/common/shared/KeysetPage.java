@@ -0,0 +1,48 @@
+package io.nextpos.einvoice.common.shared;
+
+import lombok.Data;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Page of a query ordered by _id. The next page is the query continued after nextKey, so pages stay stable while documents are added
+ * and a crashed job can resume from the last key it processed.
+ */
+@Data
+public class KeysetPage<T> {
+
+    private final List<T> content;
+
+    /**
+     * _id of the last document, to be passed as afterId for the next page. Null on the last page.
+     */
+    private final String nextKey;
+
+    public boolean hasNext() {
+        return nextKey != null;
+    }
+
+    /**
+     * @param results up to pageSize + 1 documents, the extra one only indicating that there is a next page.
+     */
+    public static <T> KeysetPage<T> of(List<T> results, int pageSize, Function<T, String> keyExtractor) {
+
+        checkPageSize(pageSize);
+
+        if (results.size() <= pageSize) {
+            return new KeysetPage<>(results, null);
+        }
+
+        final List<T> content = results.subList(0, pageSize);
+
+        return new KeysetPage<>(content, keyExtractor.apply(content.get(pageSize - 1)));
+    }
+
+    public static void checkPageSize(int pageSize) {
+
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+        }
+    }
+}
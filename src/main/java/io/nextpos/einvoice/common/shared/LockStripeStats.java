@@ -0,0 +1,37 @@
+package io.nextpos.einvoice.common.shared;
+
+import lombok.Data;
+
+@Data
+public class LockStripeStats {
+
+    private int stripe;
+
+    private long acquisitions;
+
+    /**
+     * Number of callers that gave up waiting for the lock.
+     */
+    private long timeouts;
+
+    private long totalWaitNanos;
+
+    private long maxWaitNanos;
+
+    private long totalHoldNanos;
+
+    /**
+     * Estimated number of threads waiting for the lock at the time of the snapshot.
+     */
+    private int queueLength;
+
+    private boolean locked;
+
+    public long getAverageWaitNanos() {
+        return acquisitions > 0 ? totalWaitNanos / acquisitions : 0;
+    }
+
+    public long getAverageHoldNanos() {
+        return acquisitions > 0 ? totalHoldNanos / acquisitions : 0;
+    }
+}
@@ -0,0 +1,8 @@
+package io.nextpos.einvoice.common.shared;
+
+public class LockTimeoutException extends RuntimeException {
+
+    public LockTimeoutException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,135 @@
+package io.nextpos.einvoice.common.shared;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Fixed number of locks that keys are hashed onto, so memory stays bounded no matter how many keys are seen.
+ * Each stripe records how long callers waited for it and held it.
+ */
+public class StripedLock {
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    /**
+     * @param stripeCount rounded up to the next power of two.
+     */
+    public StripedLock(int stripeCount) {
+
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+        }
+
+        final int size = stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        this.stripes = new Stripe[size];
+        this.mask = size - 1;
+
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Runs the action while holding the stripe of the given key.
+     *
+     * @param timeout null or zero waits indefinitely, otherwise LockTimeoutException is thrown if the stripe cannot be acquired in time.
+     */
+    public <T> T withLock(Object key, Duration timeout, Supplier<T> action) {
+
+        final Stripe stripe = stripes[indexFor(key)];
+        final long waitStart = System.nanoTime();
+
+        if (timeout == null || timeout.isZero()) {
+            stripe.lock.lock();
+        } else {
+            acquire(stripe, key, timeout);
+        }
+
+        final long holdStart = System.nanoTime();
+        stripe.recordWait(holdStart - waitStart);
+
+        try {
+            return action.get();
+        } finally {
+            stripe.lock.unlock();
+            stripe.holdNanos.add(System.nanoTime() - holdStart);
+        }
+    }
+
+    public List<LockStripeStats> getStats() {
+
+        final List<LockStripeStats> stats = new ArrayList<>(stripes.length);
+
+        for (int i = 0; i < stripes.length; i++) {
+            stats.add(stripes[i].toStats(i));
+        }
+
+        return stats;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    private void acquire(Stripe stripe, Object key, Duration timeout) {
+
+        try {
+            if (!stripe.lock.tryLock(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                stripe.timeouts.increment();
+                throw new LockTimeoutException(String.format("Unable to acquire lock for %s within %s", key, timeout));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LockTimeoutException("Interrupted while waiting for lock: " + key);
+        }
+    }
+
+    private int indexFor(Object key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static class Stripe {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final LongAdder acquisitions = new LongAdder();
+
+        private final LongAdder timeouts = new LongAdder();
+
+        private final LongAdder waitNanos = new LongAdder();
+
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+        private final LongAdder holdNanos = new LongAdder();
+
+        void recordWait(long nanos) {
+            acquisitions.increment();
+            waitNanos.add(nanos);
+            maxWaitNanos.accumulate(nanos);
+        }
+
+        LockStripeStats toStats(int index) {
+
+            final LockStripeStats stats = new LockStripeStats();
+            stats.setStripe(index);
+            stats.setAcquisitions(acquisitions.sum());
+            stats.setTimeouts(timeouts.sum());
+            stats.setTotalWaitNanos(waitNanos.sum());
+            stats.setMaxWaitNanos(maxWaitNanos.get());
+            stats.setTotalHoldNanos(holdNanos.sum());
+            stats.setQueueLength(lock.getQueueLength());
+            stats.setLocked(lock.isLocked());
+
+            return stats;
+        }
+    }
+}
@@ -6,6 +6,15 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
 @SpringBootTest
 class EncryptionServiceImplTest {
 
@@ -23,4 +32,24 @@ class EncryptionServiceImplTest {
 
         LOGGER.info("{}", encryptionService.generateAESKey("90rainapp"));
     }
+
+    @Test
+    void generateAESKeyConcurrently() throws Exception {
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            final List<Callable<String>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < 20; i++) {
+                tasks.add(() -> encryptionService.generateAESKey("90rainapp"));
+            }
+
+            for (Future<String> aesKey : executor.invokeAll(tasks)) {
+                assertThat(aesKey.get()).isSameAs(encryptionService.generateAESKey("90rainapp"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
\ No newline at end of file
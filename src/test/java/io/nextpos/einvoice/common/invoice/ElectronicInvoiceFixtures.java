@@ -0,0 +1,21 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+
+/**
+ * Each test uses its own invoice number prefix and seller ubn, so tests sharing the database do not see each other's invoices.
+ */
+final class ElectronicInvoiceFixtures {
+
+    private ElectronicInvoiceFixtures() {
+    }
+
+    static ElectronicInvoice newElectronicInvoice(String prefix, int index, String sellerUbn) {
+        return new ElectronicInvoice("client", "order-" + index, String.format("%s-%08d", prefix, index), ElectronicInvoice.InvoiceStatus.CREATED,
+                new ElectronicInvoice.InvoicePeriod(InvoicePeriodCalendar.getDefault()),
+                new BigDecimal("100"), new BigDecimal("5"), sellerUbn, "Rain App", "Taipei", new ArrayList<>());
+    }
+}
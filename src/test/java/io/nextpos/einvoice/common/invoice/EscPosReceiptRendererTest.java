@@ -0,0 +1,93 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.YearMonth;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EscPosReceiptRendererTest {
+
+    @Test
+    void render() throws Exception {
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getReceipt().setBufferSize(64);
+        final EscPosReceiptRenderer renderer = new EscPosReceiptRenderer(properties);
+        final ElectronicInvoice electronicInvoice = createElectronicInvoice();
+
+        final ByteBuffer buffer = ByteBuffer.allocate(4096);
+        final int length = renderer.render(electronicInvoice, buffer);
+        final byte[] receipt = Arrays.copyOf(buffer.array(), length);
+
+        assertThat(receipt).startsWith(0x1B, '@');
+        assertThat(receipt).endsWith(0x1D, 'V', 66, 0);
+        assertThat(indexOf(receipt, "電子發票證明聯".getBytes(Charset.forName("Big5")))).isPositive();
+        assertThat(indexOf(receipt, "109年09-10月".getBytes(Charset.forName("Big5")))).isPositive();
+
+        final byte[] qrCode1 = electronicInvoice.getQrCode1Content().getBytes(StandardCharsets.UTF_8);
+        final int qrCode1Start = indexOf(receipt, qrCode1);
+        assertThat(Arrays.copyOfRange(receipt, qrCode1Start - 8, qrCode1Start))
+                .containsExactly(0x1D, '(', 'k', (qrCode1.length + 3) % 256, (qrCode1.length + 3) / 256, 49, 80, 48);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        renderer.render(electronicInvoice, Channels.newChannel(output));
+
+        assertThat(output.toByteArray()).isEqualTo(receipt);
+    }
+
+    @Test
+    void renderLongSellerHeader() throws Exception {
+
+        final EscPosReceiptRenderer renderer = new EscPosReceiptRenderer(new EInvoiceProperties());
+        final ElectronicInvoice electronicInvoice = createElectronicInvoice();
+        electronicInvoice.setSellerName("雨".repeat(400));
+        electronicInvoice.setSellerAddress("台北市".repeat(200));
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        renderer.render(electronicInvoice, Channels.newChannel(output));
+
+        assertThat(indexOf(output.toByteArray(), electronicInvoice.getSellerAddress().getBytes(Charset.forName("Big5")))).isPositive();
+    }
+
+    private ElectronicInvoice createElectronicInvoice() {
+
+        final ElectronicInvoice.InvoicePeriod invoicePeriod = new ElectronicInvoice.InvoicePeriod(InvoicePeriodCalendar.getPeriod(YearMonth.of(2020, 10)));
+        final List<ElectronicInvoice.InvoiceItem> items = List.of(new ElectronicInvoice.InvoiceItem("coffee", 1, new BigDecimal("55"), new BigDecimal("55")));
+
+        final ElectronicInvoice electronicInvoice = new ElectronicInvoice("client", "order", "AW-00002350", ElectronicInvoice.InvoiceStatus.CREATED, invoicePeriod,
+                new BigDecimal("55"), new BigDecimal("3"), "83515813", "Rain App", "台北市", items);
+        electronicInvoice.setInvoiceCreatedDate(Date.from(ZonedDateTime.of(2020, 10, 31, 23, 30, 0, 0, InvoicePeriodCalendar.ZONE_ID).toInstant()));
+        electronicInvoice.generateCodeContent("0123456789ABCDEF0123456789ABCDEF");
+
+        return electronicInvoice;
+    }
+
+    private int indexOf(byte[] bytes, byte[] pattern) {
+
+        outer:
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+
+            return i;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,95 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InvoiceCodeContentEncoderTest {
+
+    private static final String AES_KEY = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Test
+    void generateCodeContent() {
+
+        final ElectronicInvoice.InvoicePeriod invoicePeriod = new ElectronicInvoice.InvoicePeriod(InvoicePeriodCalendar.getPeriod(YearMonth.of(2020, 10)));
+        final List<ElectronicInvoice.InvoiceItem> items = List.of(
+                new ElectronicInvoice.InvoiceItem("coffee", 1, new BigDecimal("55"), new BigDecimal("55")),
+                new ElectronicInvoice.InvoiceItem("tea", 1, new BigDecimal("50"), new BigDecimal("50")));
+
+        final ElectronicInvoice electronicInvoice = new ElectronicInvoice("client", "order", "AW-00002350", ElectronicInvoice.InvoiceStatus.CREATED, invoicePeriod,
+                new BigDecimal("105"), new BigDecimal("5"), "83515813", "Rain App", "Taipei", items);
+        electronicInvoice.setRandomNumber("1234");
+        electronicInvoice.setInvoiceCreatedDate(Date.from(ZonedDateTime.of(2020, 10, 31, 23, 30, 0, 0, InvoicePeriodCalendar.ZONE_ID).toInstant()));
+
+        electronicInvoice.generateCodeContent(AES_KEY);
+
+        final String encryptedInvoiceNumber = ElectronicInvoice.InvoiceQRCodeEncryptor.forKey(AES_KEY).encode("AW000023501234");
+
+        assertThat(electronicInvoice.getBarcodeContent()).isEqualTo("10910AW000023501234");
+        assertThat(electronicInvoice.getQrCode1Content()).isEqualTo("AW00002350" + "1091031" + "1234" + "00000064" + "00000069" + "00000000" + "83515813"
+                + encryptedInvoiceNumber + ":**********:2:2:1:coffee:1:55:tea:1:50");
+        assertThat(electronicInvoice.getQrCode2Content()).isEqualTo("**");
+        assertThat(electronicInvoice.getQrCodeEncoding()).isEqualTo(QrCodeEncoding.UTF8);
+    }
+
+    @Test
+    void layoutItems() {
+
+        final List<ElectronicInvoice.InvoiceItem> items = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            items.add(new ElectronicInvoice.InvoiceItem("珍珠奶茶" + i, 2, new BigDecimal("65"), new BigDecimal("130")));
+        }
+
+        final ElectronicInvoice electronicInvoice = new ElectronicInvoice("client", "order", "AW-00002351", ElectronicInvoice.InvoiceStatus.CREATED,
+                new ElectronicInvoice.InvoicePeriod(InvoicePeriodCalendar.getPeriod(YearMonth.of(2020, 10))),
+                new BigDecimal("2600"), new BigDecimal("124"), "83515813", "Rain App", "Taipei", items);
+        electronicInvoice.generateCodeContent(AES_KEY);
+
+        final QrCodeItemLayout itemLayout = InvoiceCodeContentEncoder.layoutItems(electronicInvoice);
+
+        assertThat(itemLayout.getEncoding()).isEqualTo(QrCodeEncoding.BIG5);
+        assertThat(itemLayout.getTotalItemCount()).isEqualTo(20);
+        assertThat(itemLayout.getQrCode1ItemCount()).isPositive();
+        assertThat(itemLayout.getQrCode2ItemCount()).isPositive();
+        assertThat(itemLayout.getRecordedItemCount()).isLessThan(20);
+
+        final String qrCode1Content = electronicInvoice.getQrCode1Content();
+        assertThat(qrCode1Content).contains(":**********:" + itemLayout.getRecordedItemCount() + ":20:0:珍珠奶茶0:2:65");
+        assertThat(qrCode1Content.getBytes(QrCodeEncoding.BIG5.getCharset()).length).isLessThanOrEqualTo(InvoiceCodeContentEncoder.MAX_QR_CODE_BYTES);
+
+        final String qrCode2Content = electronicInvoice.getQrCode2Content();
+        assertThat(qrCode2Content).startsWith("**珍珠奶茶" + itemLayout.getQrCode1ItemCount() + ":2:65");
+        assertThat(qrCode2Content.getBytes(QrCodeEncoding.BIG5.getCharset()).length).isLessThanOrEqualTo(InvoiceCodeContentEncoder.MAX_QR_CODE_BYTES);
+        assertThat(qrCode2Content.split(":")).hasSize(itemLayout.getQrCode2ItemCount() * 3);
+    }
+
+    @Test
+    void appendMinguoDate() {
+
+        final StringBuilder buffer = new StringBuilder();
+        InvoiceCodeContentEncoder.appendMinguoDate(Date.from(ZonedDateTime.of(2021, 1, 1, 0, 0, 0, 0, InvoicePeriodCalendar.ZONE_ID).toInstant()), buffer);
+        InvoiceCodeContentEncoder.appendMinguoDate(Date.from(ZonedDateTime.of(2011, 2, 28, 23, 59, 59, 0, InvoicePeriodCalendar.ZONE_ID).toInstant()), buffer);
+
+        assertThat(buffer.toString()).isEqualTo("1100101" + "1000228");
+    }
+
+    @Test
+    void appendEightDigitHexadecimal() {
+
+        final StringBuilder buffer = new StringBuilder();
+        InvoiceCodeContentEncoder.appendEightDigitHexadecimal(0, buffer);
+        InvoiceCodeContentEncoder.appendEightDigitHexadecimal(4_294_967_295L, buffer);
+        InvoiceCodeContentEncoder.appendEightDigitHexadecimal(4_294_967_296L, buffer);
+
+        assertThat(buffer.toString()).isEqualTo("00000000" + "ffffffff" + "100000000");
+    }
+}
@@ -0,0 +1,53 @@
+package io.nextpos.einvoice.common.invoice;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.nextpos.einvoice.common.invoice.ElectronicInvoiceFixtures.newElectronicInvoice;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+class InvoiceCodeGenerationServiceImplTest {
+
+    private static final String AES_KEY = "0123456789ABCDEF0123456789ABCDEF";
+
+    private final InvoiceCodeGenerationService invoiceCodeGenerationService;
+
+    private final ElectronicInvoiceRepository electronicInvoiceRepository;
+
+    @Autowired
+    InvoiceCodeGenerationServiceImplTest(InvoiceCodeGenerationService invoiceCodeGenerationService, ElectronicInvoiceRepository electronicInvoiceRepository) {
+        this.invoiceCodeGenerationService = invoiceCodeGenerationService;
+        this.electronicInvoiceRepository = electronicInvoiceRepository;
+    }
+
+    @Test
+    void generateCodeContent() {
+
+        final List<ElectronicInvoice> electronicInvoices = new ArrayList<>();
+
+        for (int i = 0; i < 25; i++) {
+            final ElectronicInvoice electronicInvoice = newElectronicInvoice("AX", i, "61482937");
+            electronicInvoices.add(electronicInvoiceRepository.save(electronicInvoice));
+        }
+
+        assertThat(invoiceCodeGenerationService.generateCodeContent(electronicInvoices, AES_KEY)).isEqualTo(25);
+
+        assertThat(electronicInvoiceRepository.findAllById(electronicInvoices.stream().map(ElectronicInvoice::getId)::iterator)).allSatisfy(ei -> {
+            assertThat(ei.getBarcodeContent()).endsWith(ei.getInternalInvoiceNumber() + ei.getRandomNumber());
+            assertThat(ei.getQrCode1Content()).startsWith(ei.getInternalInvoiceNumber());
+            assertThat(ei.getQrCode2Content()).isEqualTo("**");
+        });
+
+        final ElectronicInvoice.InvoicePeriod invoicePeriod = electronicInvoices.get(0).getInvoicePeriod();
+        assertThat(invoiceCodeGenerationService.regenerateCodeContent("61482937", invoicePeriod, List.of(ElectronicInvoice.InvoiceStatus.CREATED), AES_KEY)).isEqualTo(25);
+        assertThat(invoiceCodeGenerationService.regenerateCodeContent("61482937", invoicePeriod, List.of(ElectronicInvoice.InvoiceStatus.PROCESSED), AES_KEY)).isZero();
+        assertThat(invoiceCodeGenerationService.regenerateCodeContent(List.of(electronicInvoices.get(0).getId(), electronicInvoices.get(1).getId()), AES_KEY)).isEqualTo(2);
+
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+}
@@ -0,0 +1,53 @@
+package io.nextpos.einvoice.common.invoice;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InvoiceQRCodeEncryptorTest {
+
+    private static final String AES_KEY = "0123456789ABCDEF0123456789ABCDEF";
+
+    @Test
+    void forKey() throws Exception {
+
+        final ElectronicInvoice.InvoiceQRCodeEncryptor encryptor = ElectronicInvoice.InvoiceQRCodeEncryptor.forKey(AES_KEY);
+
+        assertThat(ElectronicInvoice.InvoiceQRCodeEncryptor.forKey(AES_KEY)).isSameAs(encryptor);
+
+        final String encoded = encryptor.encode("AW000023501234");
+
+        assertThat(encoded).hasSize(24);
+        assertThat(encoded).isEqualTo(new ElectronicInvoice.InvoiceQRCodeEncryptor(AES_KEY).encode("AW000023501234"));
+        assertThat(encryptor.decode(encoded)).isEqualTo("AW000023501234");
+    }
+
+    @Test
+    void encodeConcurrently() throws Exception {
+
+        final ElectronicInvoice.InvoiceQRCodeEncryptor encryptor = ElectronicInvoice.InvoiceQRCodeEncryptor.forKey(AES_KEY);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+        try {
+            final List<Callable<Boolean>> tasks = new ArrayList<>();
+
+            for (int i = 0; i < 200; i++) {
+                final String input = String.format("AW%08d%04d", i, i);
+                tasks.add(() -> encryptor.decode(encryptor.encode(input)).equals(input));
+            }
+
+            for (Future<Boolean> result : executor.invokeAll(tasks)) {
+                assertThat(result.get()).isTrue();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.nextpos.einvoice.common.invoice;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.nextpos.einvoice.common.invoice.ElectronicInvoiceFixtures.newElectronicInvoice;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest
+class InvoiceQRCodeVerificationServiceImplTest {
+
+    private static final String AES_KEY = "0123456789ABCDEF0123456789ABCDEF";
+
+    private final InvoiceQRCodeVerificationService invoiceQRCodeVerificationService;
+
+    private final ElectronicInvoiceRepository electronicInvoiceRepository;
+
+    @Autowired
+    InvoiceQRCodeVerificationServiceImplTest(InvoiceQRCodeVerificationService invoiceQRCodeVerificationService, ElectronicInvoiceRepository electronicInvoiceRepository) {
+        this.invoiceQRCodeVerificationService = invoiceQRCodeVerificationService;
+        this.electronicInvoiceRepository = electronicInvoiceRepository;
+    }
+
+    @Test
+    void verifyQRCodes(@TempDir Path tempDir) throws Exception {
+
+        final List<ElectronicInvoice> electronicInvoices = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            final ElectronicInvoice electronicInvoice = newElectronicInvoice("AY", i, "29384716");
+            electronicInvoice.generateCodeContent(AES_KEY);
+            electronicInvoices.add(electronicInvoice);
+        }
+
+        final ElectronicInvoice tamperedInvoice = electronicInvoices.get(3);
+        tamperedInvoice.setRandomNumber(tamperedInvoice.getRandomNumber().equals("0000") ? "0001" : "0000");
+        electronicInvoiceRepository.saveAll(electronicInvoices);
+
+        final Path reportFile = tempDir.resolve("qr-code-verification.csv");
+        final QRCodeVerificationReport report = invoiceQRCodeVerificationService.verifyQRCodes("29384716", AES_KEY, reportFile);
+
+        assertThat(report.getVerifiedCount()).isEqualTo(10);
+        assertThat(report.getMismatchCount()).isEqualTo(1);
+        assertThat(Files.readAllLines(reportFile)).hasSize(2).last().satisfies(line -> {
+            assertThat(line).startsWith(tamperedInvoice.getId() + ",AY-00000003,29384716,MISMATCH,AY00000003");
+        });
+
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+}
@@ -0,0 +1,144 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MigWriterTest {
+
+    private final MigWriter migWriter = new MigWriter();
+
+    @Test
+    void writeInvoice() throws Exception {
+
+        final ElectronicInvoice electronicInvoice = createElectronicInvoice();
+        electronicInvoice.setCarrierType(ElectronicInvoice.CarrierType.MOBILE);
+        electronicInvoice.setCarrierId("/ABC+123");
+
+        final Element root = write(electronicInvoice).getDocumentElement();
+
+        assertThat(root.getLocalName()).isEqualTo("Invoice");
+        assertThat(root.getNamespaceURI()).isEqualTo(MigWriter.C0401_NAMESPACE);
+        assertThat(text(root, "InvoiceNumber")).isEqualTo("AW00002350");
+        assertThat(text(root, "InvoiceDate")).isEqualTo("20201031");
+        assertThat(text(root, "InvoiceTime")).isEqualTo("23:30:05");
+        assertThat(text(root, "Identifier")).isEqualTo("83515813");
+        assertThat(text(root, "Name")).isEqualTo("Rain & <Sun> App");
+        assertThat(text(root, "CarrierType")).isEqualTo("3J0002");
+        assertThat(text(root, "CarrierId1")).isEqualTo("/ABC+123");
+        assertThat(text(root, "PrintMark")).isEqualTo("N");
+        assertThat(text(root, "DonateMark")).isEqualTo("0");
+        assertThat(root.getElementsByTagNameNS(MigWriter.C0401_NAMESPACE, "ProductItem").getLength()).isEqualTo(2);
+        assertThat(text(root, "Description")).isEqualTo("咖啡");
+        assertThat(text(root, "SalesAmount")).isEqualTo("105");
+        assertThat(text(root, "TaxAmount")).isEqualTo("0");
+        assertThat(text(root, "TotalAmount")).isEqualTo("105");
+    }
+
+    @Test
+    void writeInvoice_B2B() throws Exception {
+
+        final ElectronicInvoice electronicInvoice = createElectronicInvoice();
+        electronicInvoice.setBuyerUbn("27252210");
+        electronicInvoice.setBuyerName("Buyer");
+
+        final Element root = write(electronicInvoice).getDocumentElement();
+        final Element buyer = (Element) root.getElementsByTagNameNS(MigWriter.C0401_NAMESPACE, "Buyer").item(0);
+
+        assertThat(text(buyer, "Identifier")).isEqualTo("27252210");
+        assertThat(text(buyer, "Name")).isEqualTo("Buyer");
+        assertThat(text(root, "PrintMark")).isEqualTo("Y");
+        assertThat(text(root, "SalesAmount")).isEqualTo("100");
+        assertThat(text(root, "TaxAmount")).isEqualTo("5");
+        assertThat(text(root, "TotalAmount")).isEqualTo("105");
+    }
+
+    @Test
+    void writeCancelAndVoidInvoice() throws Exception {
+
+        final ElectronicInvoice electronicInvoice = createElectronicInvoice();
+        final Date date = Date.from(ZonedDateTime.of(2020, 11, 2, 8, 5, 9, 0, InvoicePeriodCalendar.ZONE_ID).toInstant());
+
+        final ByteArrayOutputStream cancelOutput = new ByteArrayOutputStream();
+        migWriter.writeCancelInvoice(electronicInvoice, date, "退貨", cancelOutput);
+        final Element cancelRoot = parse(cancelOutput).getDocumentElement();
+
+        assertThat(cancelRoot.getNamespaceURI()).isEqualTo(MigWriter.C0501_NAMESPACE);
+        assertThat(text(cancelRoot, "CancelInvoiceNumber")).isEqualTo("AW00002350");
+        assertThat(text(cancelRoot, "BuyerId")).isEqualTo("0000000000");
+        assertThat(text(cancelRoot, "CancelDate")).isEqualTo("20201102");
+        assertThat(text(cancelRoot, "CancelTime")).isEqualTo("08:05:09");
+        assertThat(text(cancelRoot, "CancelReason")).isEqualTo("退貨");
+
+        final ByteArrayOutputStream voidOutput = new ByteArrayOutputStream();
+        migWriter.writeVoidInvoice(electronicInvoice, date, "作廢", voidOutput);
+        final Element voidRoot = parse(voidOutput).getDocumentElement();
+
+        assertThat(voidRoot.getNamespaceURI()).isEqualTo(MigWriter.C0701_NAMESPACE);
+        assertThat(text(voidRoot, "VoidInvoiceNumber")).isEqualTo("AW00002350");
+        assertThat(text(voidRoot, "InvoiceDate")).isEqualTo("20201031");
+        assertThat(text(voidRoot, "VoidReason")).isEqualTo("作廢");
+    }
+
+    @Test
+    void writeLargeInvoice() throws Exception {
+
+        final ElectronicInvoice electronicInvoice = createElectronicInvoice();
+
+        for (int i = 0; i < 500; i++) {
+            electronicInvoice.getInvoiceItems().add(new ElectronicInvoice.InvoiceItem("品項 " + i, 1, new BigDecimal("10"), new BigDecimal("10")));
+        }
+
+        final Element root = write(electronicInvoice).getDocumentElement();
+
+        assertThat(root.getElementsByTagNameNS(MigWriter.C0401_NAMESPACE, "ProductItem").getLength()).isEqualTo(502);
+        assertThat(text(root, "RandomNumber")).isEqualTo(electronicInvoice.getRandomNumber());
+    }
+
+    private Document write(ElectronicInvoice electronicInvoice) throws Exception {
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        migWriter.writeInvoice(electronicInvoice, output);
+
+        return parse(output);
+    }
+
+    private Document parse(ByteArrayOutputStream output) throws Exception {
+
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(output.toByteArray()));
+    }
+
+    private String text(Element parent, String name) {
+        return parent.getElementsByTagNameNS(parent.getNamespaceURI(), name).item(0).getTextContent();
+    }
+
+    private ElectronicInvoice createElectronicInvoice() {
+
+        final ElectronicInvoice.InvoicePeriod invoicePeriod = new ElectronicInvoice.InvoicePeriod(InvoicePeriodCalendar.getPeriod(YearMonth.of(2020, 10)));
+        final List<ElectronicInvoice.InvoiceItem> items = new ArrayList<>(List.of(
+                new ElectronicInvoice.InvoiceItem("咖啡", 1, new BigDecimal("55"), new BigDecimal("55")),
+                new ElectronicInvoice.InvoiceItem("tea", 2, new BigDecimal("25"), new BigDecimal("50"))));
+
+        final ElectronicInvoice electronicInvoice = new ElectronicInvoice("client", "order", "AW-00002350", ElectronicInvoice.InvoiceStatus.CREATED, invoicePeriod,
+                new BigDecimal("105"), new BigDecimal("5"), "83515813", "Rain & <Sun> App", "台北市", items);
+        electronicInvoice.setInvoiceCreatedDate(Date.from(ZonedDateTime.of(2020, 10, 31, 23, 30, 5, 0, InvoicePeriodCalendar.ZONE_ID).toInstant()));
+
+        return electronicInvoice;
+    }
+}
@@ -0,0 +1,279 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.KeysetPage;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.LazyLoadingProxy;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.nextpos.einvoice.common.invoice.ElectronicInvoiceFixtures.newElectronicInvoice;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.tuple;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+@SpringBootTest
+class PendingEInvoiceQueueServiceImplTest {
+
+    private static final String SELLER_UBN = "38162745";
+
+    private final PendingEInvoiceQueueService pendingEInvoiceQueueService;
+
+    private final PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository;
+
+    private final ElectronicInvoiceRepository electronicInvoiceRepository;
+
+    private final MongoTemplate mongoTemplate;
+
+    @Autowired
+    PendingEInvoiceQueueServiceImplTest(PendingEInvoiceQueueService pendingEInvoiceQueueService, PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository, ElectronicInvoiceRepository electronicInvoiceRepository,
+                                        MongoTemplate mongoTemplate) {
+        this.pendingEInvoiceQueueService = pendingEInvoiceQueueService;
+        this.pendingEInvoiceQueueRepository = pendingEInvoiceQueueRepository;
+        this.electronicInvoiceRepository = electronicInvoiceRepository;
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Test
+    void claimBatch() throws Exception {
+
+        final List<ElectronicInvoice> electronicInvoices = createPendingEInvoices(40);
+        final List<String> ids = pendingEInvoiceQueueRepository.findAllByUbnAndStatus(SELLER_UBN, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING).stream()
+                .map(PendingEInvoiceQueue::getId)
+                .collect(Collectors.toList());
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final Set<String> claimedIds = ConcurrentHashMap.newKeySet();
+        final List<Future<Integer>> workers = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            final String workerId = "worker-" + i;
+
+            workers.add(executor.submit(() -> {
+                int claimedCount = 0;
+                List<PendingEInvoiceQueue> batch;
+
+                while (!(batch = pendingEInvoiceQueueService.claimBatch(workerId, 3, Duration.ofMinutes(5))).isEmpty()) {
+                    for (PendingEInvoiceQueue pendingEInvoiceQueue : batch) {
+                        assertThat(pendingEInvoiceQueue.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED);
+                        assertThat(pendingEInvoiceQueue.getClaimedBy()).isEqualTo(workerId);
+                        assertThat(claimedIds.add(pendingEInvoiceQueue.getId())).isTrue();
+                    }
+
+                    claimedCount += batch.size();
+                }
+
+                return claimedCount;
+            }));
+        }
+
+        int claimedCount = 0;
+
+        for (Future<Integer> worker : workers) {
+            claimedCount += worker.get();
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertThat(claimedCount).isEqualTo(claimedIds.size());
+        assertThat(claimedIds).containsAll(ids);
+
+        cleanUp(electronicInvoices);
+    }
+
+    @Test
+    void claimBatch_ReclaimExpiredLease() throws Exception {
+
+        final List<ElectronicInvoice> electronicInvoices = createPendingEInvoices(2);
+        final List<PendingEInvoiceQueue> claimedEInvoices = pendingEInvoiceQueueService.claimBatch("worker-1", 10, Duration.ofMillis(100));
+
+        assertThat(claimedEInvoices).hasSize(2);
+        assertThat(pendingEInvoiceQueueService.claimBatch("worker-2", 10, Duration.ofMinutes(5))).isEmpty();
+
+        Thread.sleep(200);
+
+        final List<PendingEInvoiceQueue> reclaimedEInvoices = pendingEInvoiceQueueService.claimBatch("worker-2", 10, Duration.ofMinutes(5));
+
+        assertThat(reclaimedEInvoices).hasSize(2);
+        assertThat(reclaimedEInvoices).allSatisfy(pending -> assertThat(pending.getClaimedBy()).isEqualTo("worker-2"));
+
+        final List<String> ids = reclaimedEInvoices.stream().map(PendingEInvoiceQueue::getId).collect(Collectors.toList());
+
+        assertThat(pendingEInvoiceQueueService.transitionClaimed(claimedEInvoices.get(0).getClaimId(), ids, PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED))
+                .allSatisfy((id, outcome) -> assertThat(outcome).isEqualTo(StatusTransitionOutcome.STATUS_MISMATCH));
+        assertThat(pendingEInvoiceQueueService.transitionClaimed(reclaimedEInvoices.get(0).getClaimId(), ids, PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED))
+                .allSatisfy((id, outcome) -> assertThat(outcome).isEqualTo(StatusTransitionOutcome.TRANSITIONED));
+
+        cleanUp(electronicInvoices);
+    }
+
+    @Test
+    void streamAndPagePendingEInvoices() {
+
+        final List<ElectronicInvoice> electronicInvoices = createPendingEInvoices(7);
+
+        try (Stream<PendingEInvoiceQueue> pendingEInvoices = pendingEInvoiceQueueService.streamPendingEInvoicesByStatuses(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING)) {
+            assertThat(pendingEInvoices.filter(pending -> pending.getUbn().equals(SELLER_UBN)).map(PendingEInvoiceQueue::getInvoiceNumber)).hasSize(7).doesNotHaveDuplicates();
+        }
+
+        final List<String> pagedIds = new ArrayList<>();
+        String afterId = null;
+
+        do {
+            final KeysetPage<PendingEInvoiceQueue> page = pendingEInvoiceQueueService.findPendingEInvoicePageByStatuses(afterId, 3, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+            page.getContent().forEach(pending -> pagedIds.add(pending.getId()));
+            afterId = page.getNextKey();
+        } while (afterId != null);
+
+        assertThat(pagedIds).doesNotHaveDuplicates().isSorted();
+        assertThatThrownBy(() -> pendingEInvoiceQueueService.findPendingEInvoicePageByStatuses(null, 0, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        final List<String> sellerPagedIds = new ArrayList<>();
+        afterId = null;
+        int pageCount = 0;
+
+        do {
+            final KeysetPage<PendingEInvoiceQueue> page = pendingEInvoiceQueueRepository.findPageByUbnAndStatus(SELLER_UBN, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING, afterId, 3);
+            page.getContent().forEach(pending -> sellerPagedIds.add(pending.getId()));
+            afterId = page.getNextKey();
+            pageCount++;
+        } while (afterId != null);
+
+        assertThat(pageCount).isEqualTo(3);
+        assertThat(sellerPagedIds).hasSize(7).doesNotHaveDuplicates().isSorted();
+        assertThat(pagedIds).containsAll(sellerPagedIds);
+
+        try (Stream<ElectronicInvoice> invoices = electronicInvoiceRepository.streamAllByClientIdAndInvoiceStatus("client", ElectronicInvoice.InvoiceStatus.CREATED)) {
+            assertThat(invoices.filter(ei -> ei.getSellerUbn().equals(SELLER_UBN))).hasSize(7);
+        }
+
+        final KeysetPage<ElectronicInvoice> firstInvoicePage = electronicInvoiceRepository.findPageByClientIdAndInvoiceStatus("client", ElectronicInvoice.InvoiceStatus.CREATED, null, 5);
+
+        assertThat(firstInvoicePage.getContent()).hasSize(5);
+        assertThat(firstInvoicePage.hasNext()).isTrue();
+
+        cleanUp(electronicInvoices);
+    }
+
+    @Test
+    void resolveElectronicInvoices() {
+
+        final List<ElectronicInvoice> electronicInvoices = createPendingEInvoices(5);
+
+        assertThat(pendingEInvoiceQueueRepository.findAllByUbnAndStatus(SELLER_UBN, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING))
+                .allSatisfy(pending -> assertThat(pending.getElectronicInvoice()).isInstanceOf(LazyLoadingProxy.class));
+
+        assertThat(pendingEInvoiceQueueService.findPendingEInvoicesByUbn(SELLER_UBN)).hasSize(5).allSatisfy(pending -> {
+            assertThat(pending.getElectronicInvoice()).isNotInstanceOf(LazyLoadingProxy.class);
+            assertThat(pending.getElectronicInvoice().getInvoiceNumber()).isEqualTo(pending.getInvoiceNumber());
+        });
+
+        cleanUp(electronicInvoices);
+    }
+
+    @Test
+    void transition() {
+
+        final List<ElectronicInvoice> electronicInvoices = createPendingEInvoices(4);
+        final List<PendingEInvoiceQueue> pendingEInvoices = pendingEInvoiceQueueRepository.findAllByUbnAndStatus(SELLER_UBN, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+        final List<String> ids = pendingEInvoices.stream().map(PendingEInvoiceQueue::getId).collect(Collectors.toList());
+        final String missingId = new ObjectId().toHexString();
+
+        assertThat(pendingEInvoiceQueueService.transition(ids.subList(0, 3), PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING, PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED))
+                .hasSize(3)
+                .containsOnlyKeys(ids.subList(0, 3))
+                .allSatisfy((id, outcome) -> assertThat(outcome).isEqualTo(StatusTransitionOutcome.TRANSITIONED));
+
+        final Map<String, StatusTransitionOutcome> outcomes = pendingEInvoiceQueueService.transition(List.of(ids.get(0), ids.get(3), missingId),
+                PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED,
+                PendingEInvoiceQueue.PendingEInvoiceStatus.UPLOADED);
+
+        assertThat(outcomes).containsEntry(ids.get(0), StatusTransitionOutcome.TRANSITIONED)
+                .containsEntry(ids.get(3), StatusTransitionOutcome.STATUS_MISMATCH)
+                .containsEntry(missingId, StatusTransitionOutcome.NOT_FOUND);
+        assertThat(pendingEInvoiceQueueRepository.findById(ids.get(0)).orElseThrow().getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.UPLOADED);
+        assertThat(pendingEInvoiceQueueRepository.findById(ids.get(3)).orElseThrow().getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+
+        pendingEInvoiceQueueService.transition(List.of(ids.get(3)), PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING, PendingEInvoiceQueue.PendingEInvoiceStatus.ERROR);
+        final PendingEInvoiceQueue reissued = pendingEInvoiceQueueService.reissueErroredEInvoiceQueue(pendingEInvoices.get(3).getInvoiceNumber(), PendingEInvoiceQueue.PendingEInvoiceType.CREATE);
+
+        assertThat(reissued.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+        assertThat(pendingEInvoiceQueueRepository.findById(ids.get(3)).orElseThrow().getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+
+        pendingEInvoiceQueueRepository.deleteAllById(ids);
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+
+    @Test
+    void generatePendingEInvoiceStats() {
+
+        pendingEInvoiceQueueService.reconcilePendingEInvoiceStats();
+
+        final List<ElectronicInvoice> electronicInvoices = createPendingEInvoices(3);
+        final List<String> ids = pendingEInvoiceQueueRepository.findAllByUbnAndStatus(SELLER_UBN, PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING).stream()
+                .map(PendingEInvoiceQueue::getId)
+                .collect(Collectors.toList());
+
+        assertThat(pendingEInvoiceQueueService.generatePendingEInvoiceStats().get(SELLER_UBN))
+                .extracting(PendingInvoiceStats::getStatus, PendingInvoiceStats::getInvoiceCount)
+                .containsExactly(tuple("PENDING", 3));
+
+        mongoTemplate.dropCollection(PendingInvoiceStatusCounter.class);
+
+        assertThat(pendingEInvoiceQueueService.generatePendingEInvoiceStats().get(SELLER_UBN))
+                .extracting(PendingInvoiceStats::getStatus, PendingInvoiceStats::getInvoiceCount)
+                .containsExactly(tuple("PENDING", 3));
+
+        pendingEInvoiceQueueService.transition(ids.subList(0, 2), PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING, PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED);
+
+        final Map<String, List<PendingInvoiceStats>> stats = pendingEInvoiceQueueService.generatePendingEInvoiceStats();
+
+        assertThat(stats.get(SELLER_UBN))
+                .extracting(PendingInvoiceStats::getStatus, PendingInvoiceStats::getInvoiceCount)
+                .containsExactlyInAnyOrder(tuple("PENDING", 1), tuple("PROCESSED", 2));
+        assertThat(pendingEInvoiceQueueService.reconcilePendingEInvoiceStats().get(SELLER_UBN))
+                .containsExactlyInAnyOrderElementsOf(stats.get(SELLER_UBN));
+
+        pendingEInvoiceQueueRepository.deleteAllById(ids);
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+
+        assertThat(pendingEInvoiceQueueService.reconcilePendingEInvoiceStats()).doesNotContainKey(SELLER_UBN);
+        assertThat(pendingEInvoiceQueueService.generatePendingEInvoiceStats()).doesNotContainKey(SELLER_UBN);
+    }
+
+    private List<ElectronicInvoice> createPendingEInvoices(int count) {
+
+        final List<ElectronicInvoice> electronicInvoices = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            final ElectronicInvoice electronicInvoice = electronicInvoiceRepository.save(newElectronicInvoice("BA", i, SELLER_UBN));
+            electronicInvoices.add(electronicInvoice);
+
+            pendingEInvoiceQueueService.createPendingEInvoiceQueue(electronicInvoice, PendingEInvoiceQueue.PendingEInvoiceType.CREATE);
+        }
+
+        return electronicInvoices;
+    }
+
+    private void cleanUp(List<ElectronicInvoice> electronicInvoices) {
+        mongoTemplate.remove(Query.query(where("ubn").is(SELLER_UBN)), PendingEInvoiceQueue.class);
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+}
@@ -0,0 +1,170 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static io.nextpos.einvoice.common.invoice.ElectronicInvoiceFixtures.newElectronicInvoice;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+@SpringBootTest
+class TurnkeyReconcilerTest {
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ElectronicInvoiceRepository electronicInvoiceRepository;
+
+    private final PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository;
+
+    private final PendingInvoiceStatsTracker pendingInvoiceStatsTracker;
+
+    @Autowired
+    TurnkeyReconcilerTest(MongoTemplate mongoTemplate, ElectronicInvoiceRepository electronicInvoiceRepository, PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository,
+                          PendingInvoiceStatsTracker pendingInvoiceStatsTracker) {
+        this.mongoTemplate = mongoTemplate;
+        this.electronicInvoiceRepository = electronicInvoiceRepository;
+        this.pendingEInvoiceQueueRepository = pendingEInvoiceQueueRepository;
+        this.pendingInvoiceStatsTracker = pendingInvoiceStatsTracker;
+    }
+
+    @Test
+    void reconcile(@TempDir Path tempDir) throws Exception {
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getTurnkey().setReconciliationBatchSize(2);
+        final TurnkeyReconciler turnkeyReconciler = new TurnkeyReconciler(mongoTemplate, pendingInvoiceStatsTracker, properties);
+
+        final List<ElectronicInvoice> electronicInvoices = new ArrayList<>();
+        final List<PendingEInvoiceQueue> pendingEInvoices = new ArrayList<>();
+
+        for (int i = 0; i < 4; i++) {
+            final ElectronicInvoice electronicInvoice = electronicInvoiceRepository.save(newElectronicInvoice("AZ", i, "41827365"));
+            electronicInvoices.add(electronicInvoice);
+
+            final PendingEInvoiceQueue pendingEInvoiceQueue = new PendingEInvoiceQueue(electronicInvoice, PendingEInvoiceQueue.PendingEInvoiceType.CREATE);
+
+            if (i < 3) {
+                pendingEInvoiceQueue.markAsProcessed();
+                pendingEInvoiceQueue.setInvoiceIdentifier("C0401" + electronicInvoice.getInternalInvoiceNumber());
+            }
+
+            pendingEInvoices.add(pendingEInvoiceQueueRepository.save(pendingEInvoiceQueue));
+        }
+
+        final Path resultFile = tempDir.resolve("results.csv");
+        Files.write(resultFile, List.of(FileTurnkeyResultSource.HEADER,
+                "1,C0401AZ00000000,UPLOADED,",
+                "2,C0401AZ00000000,CONFIRMED,",
+                "3,C0401AZ00000001,ERROR,invalid seller",
+                "4,C0401AZ00000003,UPLOADED,",
+                "5,C0401AZ00000002,UPLOADED,"));
+
+        final FileTurnkeyResultSource resultSource = new FileTurnkeyResultSource(resultFile);
+        final TurnkeyReconciliationResult result = turnkeyReconciler.reconcile(resultSource);
+
+        assertThat(result.getResultCount()).isEqualTo(5);
+        assertThat(result.getUpdatedCount()).isEqualTo(3);
+        assertThat(result.getHeldCount()).isEqualTo(1);
+        assertThat(result.getHighWaterMark()).isEqualTo(3);
+        assertThat(statusOf(pendingEInvoices.get(0))).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.CONFIRMED);
+        assertThat(statusOf(pendingEInvoices.get(1))).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.ERROR);
+        assertThat(statusOf(pendingEInvoices.get(2))).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.UPLOADED);
+
+        final PendingEInvoiceQueue lateEInvoice = pendingEInvoices.get(3);
+        lateEInvoice.markAsProcessed();
+        lateEInvoice.setInvoiceIdentifier("C0401" + electronicInvoices.get(3).getInternalInvoiceNumber());
+        pendingEInvoiceQueueRepository.save(lateEInvoice);
+
+        final TurnkeyReconciliationResult retriedResult = turnkeyReconciler.reconcile(resultSource);
+
+        assertThat(retriedResult.getResultCount()).isEqualTo(2);
+        assertThat(retriedResult.getUpdatedCount()).isEqualTo(1);
+        assertThat(retriedResult.getSkippedCount()).isEqualTo(1);
+        assertThat(retriedResult.getHighWaterMark()).isEqualTo(5);
+        assertThat(statusOf(lateEInvoice)).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.UPLOADED);
+
+        assertThat(turnkeyReconciler.reconcile(resultSource).getResultCount()).isZero();
+
+        Files.write(resultFile, List.of("6,C0401AZ00000002,CONFIRMED,", "7,C0401AZ00000000,ERROR,"), StandardOpenOption.APPEND);
+        final TurnkeyReconciliationResult nextResult = turnkeyReconciler.reconcile(resultSource);
+
+        assertThat(nextResult.getResultCount()).isEqualTo(2);
+        assertThat(nextResult.getUpdatedCount()).isEqualTo(1);
+        assertThat(turnkeyReconciler.getHighWaterMark(resultSource.getName())).isEqualTo(7);
+        assertThat(statusOf(pendingEInvoices.get(0))).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.CONFIRMED);
+        assertThat(statusOf(pendingEInvoices.get(2))).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.CONFIRMED);
+
+        Files.writeString(resultFile, "8,C0401AZ00000003,CONFIRMED,", StandardOpenOption.APPEND);
+
+        assertThat(resultSource.fetchResults(7, 2)).isEmpty();
+
+        Files.writeString(resultFile, System.lineSeparator(), StandardOpenOption.APPEND);
+
+        assertThat(resultSource.fetchResults(7, 2)).extracting(TurnkeyResult::getSequence).containsExactly(8L);
+        assertThat(resultSource.fetchResults(2, 2)).extracting(TurnkeyResult::getSequence).containsExactly(3L, 4L);
+
+        mongoTemplate.remove(mongoTemplate.findById(resultSource.getName(), TurnkeyReconciliationMark.class));
+        pendingEInvoiceQueueRepository.deleteAll(pendingEInvoices);
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+
+    @Test
+    void reconcile_HoldTimedOut(@TempDir Path tempDir) throws Exception {
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getTurnkey().setReconciliationHoldTimeout(Duration.ofMinutes(10));
+        final TurnkeyReconciler turnkeyReconciler = new TurnkeyReconciler(mongoTemplate, pendingInvoiceStatsTracker, properties);
+
+        final ElectronicInvoice electronicInvoice = electronicInvoiceRepository.save(newElectronicInvoice("AZ", 10, "41827365"));
+        final PendingEInvoiceQueue pendingEInvoiceQueue = new PendingEInvoiceQueue(electronicInvoice, PendingEInvoiceQueue.PendingEInvoiceType.CREATE);
+        pendingEInvoiceQueue.markAsProcessed();
+        pendingEInvoiceQueue.setInvoiceIdentifier("C0401" + electronicInvoice.getInternalInvoiceNumber());
+        pendingEInvoiceQueueRepository.save(pendingEInvoiceQueue);
+
+        final Path resultFile = tempDir.resolve("results.csv");
+        Files.write(resultFile, List.of(FileTurnkeyResultSource.HEADER,
+                "1,C0401AZ99999999,UPLOADED,",
+                "2,C0401" + electronicInvoice.getInternalInvoiceNumber() + ",UPLOADED,"));
+
+        final FileTurnkeyResultSource resultSource = new FileTurnkeyResultSource(resultFile);
+        final TurnkeyReconciliationResult heldResult = turnkeyReconciler.reconcile(resultSource);
+
+        assertThat(heldResult.getHeldCount()).isEqualTo(1);
+        assertThat(heldResult.getHighWaterMark()).isZero();
+        assertThat(turnkeyReconciler.reconcile(resultSource).getHeldCount()).isEqualTo(1);
+        assertThat(statusOf(pendingEInvoiceQueue)).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.UPLOADED);
+
+        final Date heldSince = Date.from(Instant.now().minus(Duration.ofMinutes(11)));
+        mongoTemplate.updateFirst(Query.query(where("_id").is(resultSource.getName())), Update.update("heldSince", heldSince), TurnkeyReconciliationMark.class);
+
+        final TurnkeyReconciliationResult result = turnkeyReconciler.reconcile(resultSource);
+
+        assertThat(result.getHeldCount()).isZero();
+        assertThat(result.getSkippedCount()).isEqualTo(2);
+        assertThat(result.getHighWaterMark()).isEqualTo(2);
+        assertThat(mongoTemplate.findById(resultSource.getName(), TurnkeyReconciliationMark.class).getHeldSince()).isNull();
+
+        mongoTemplate.remove(mongoTemplate.findById(resultSource.getName(), TurnkeyReconciliationMark.class));
+        pendingEInvoiceQueueRepository.delete(pendingEInvoiceQueue);
+        electronicInvoiceRepository.delete(electronicInvoice);
+    }
+
+    private PendingEInvoiceQueue.PendingEInvoiceStatus statusOf(PendingEInvoiceQueue pendingEInvoiceQueue) {
+        return pendingEInvoiceQueueRepository.findById(pendingEInvoiceQueue.getId()).orElseThrow().getStatus();
+    }
+}
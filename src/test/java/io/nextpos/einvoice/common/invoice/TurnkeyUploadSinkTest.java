@@ -0,0 +1,187 @@
+package io.nextpos.einvoice.common.invoice;
+
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static io.nextpos.einvoice.common.invoice.ElectronicInvoiceFixtures.newElectronicInvoice;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+
+@SpringBootTest
+class TurnkeyUploadSinkTest {
+
+    private final MigWriter migWriter;
+
+    private final MongoTemplate mongoTemplate;
+
+    private final ElectronicInvoiceRepository electronicInvoiceRepository;
+
+    private final PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository;
+
+    private final PendingInvoiceStatsTracker pendingInvoiceStatsTracker;
+
+    @Autowired
+    TurnkeyUploadSinkTest(MigWriter migWriter, MongoTemplate mongoTemplate, ElectronicInvoiceRepository electronicInvoiceRepository, PendingEInvoiceQueueRepository pendingEInvoiceQueueRepository,
+                          PendingInvoiceStatsTracker pendingInvoiceStatsTracker) {
+        this.migWriter = migWriter;
+        this.mongoTemplate = mongoTemplate;
+        this.electronicInvoiceRepository = electronicInvoiceRepository;
+        this.pendingEInvoiceQueueRepository = pendingEInvoiceQueueRepository;
+        this.pendingInvoiceStatsTracker = pendingInvoiceStatsTracker;
+    }
+
+    @Test
+    void publish(@TempDir Path uploadDirectory) throws Exception {
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getTurnkey().setUploadDirectory(uploadDirectory);
+        properties.getTurnkey().setFlushSize(4);
+        final TurnkeyUploadSink turnkeyUploadSink = new TurnkeyUploadSink(migWriter, mongoTemplate, pendingEInvoiceQueueRepository, pendingInvoiceStatsTracker, properties);
+
+        final List<ElectronicInvoice> electronicInvoices = new ArrayList<>();
+        final List<PendingEInvoiceQueue> pendingEInvoices = new ArrayList<>();
+
+        for (int i = 0; i < 10; i++) {
+            final ElectronicInvoice electronicInvoice = electronicInvoiceRepository.save(newElectronicInvoice("AY", i, "52736418"));
+            electronicInvoices.add(electronicInvoice);
+
+            final PendingEInvoiceQueue.PendingEInvoiceType invoiceType = i < 8 ? PendingEInvoiceQueue.PendingEInvoiceType.CREATE : PendingEInvoiceQueue.PendingEInvoiceType.VOID;
+            pendingEInvoices.add(pendingEInvoiceQueueRepository.save(new PendingEInvoiceQueue(electronicInvoice, invoiceType)));
+        }
+
+        final PendingEInvoiceQueue unresolvedEInvoice = pendingEInvoiceQueueRepository.save(new PendingEInvoiceQueue(electronicInvoices.get(0), PendingEInvoiceQueue.PendingEInvoiceType.CANCEL));
+        unresolvedEInvoice.setElectronicInvoice(null);
+
+        final List<PendingEInvoiceQueue> staleEInvoices = new ArrayList<>();
+        pendingEInvoiceQueueRepository.findAllById(pendingEInvoices.stream().map(PendingEInvoiceQueue::getId)::iterator).forEach(staleEInvoices::add);
+        final List<PendingEInvoiceQueue> publishedEInvoices = new ArrayList<>(pendingEInvoices);
+        publishedEInvoices.add(5, unresolvedEInvoice);
+
+        assertThat(turnkeyUploadSink.publish(publishedEInvoices)).isEqualTo(10);
+
+        assertThat(uploadDirectory.resolve("C0401/SRC/C0401AY00000000.xml")).exists();
+        assertThat(Files.list(uploadDirectory.resolve("C0401/SRC"))).hasSize(8);
+        assertThat(Files.readString(uploadDirectory.resolve("C0701/SRC/C0701AY00000009.xml"))).contains("<VoidInvoiceNumber>AY00000009</VoidInvoiceNumber>");
+        assertThat(Files.list(uploadDirectory.resolve(".staging"))).isEmpty();
+
+        assertThat(pendingEInvoiceQueueRepository.findAllById(pendingEInvoices.stream().map(PendingEInvoiceQueue::getId)::iterator)).allSatisfy(pending -> {
+            assertThat(pending.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED);
+            assertThat(pending.getInvoiceIdentifier()).isEqualTo(pending.getInvoiceType().getMessageType() + pending.getElectronicInvoice().getInternalInvoiceNumber());
+        });
+
+        assertThat(pendingEInvoiceQueueRepository.findById(unresolvedEInvoice.getId())).hasValueSatisfying(pending -> {
+            assertThat(pending.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+            assertThat(pending.getClaimId()).isNull();
+        });
+        assertThat(Files.list(uploadDirectory.resolve("C0501/SRC"))).isEmpty();
+
+        final Map<Path, FileTime> publishedFiles = listFiles(uploadDirectory);
+
+        assertThat(turnkeyUploadSink.publish(pendingEInvoices)).isZero();
+        assertThat(turnkeyUploadSink.publish(staleEInvoices)).isZero();
+        assertThat(listFiles(uploadDirectory)).isEqualTo(publishedFiles);
+
+        pendingEInvoiceQueueRepository.delete(unresolvedEInvoice);
+        pendingEInvoiceQueueRepository.deleteAll(pendingEInvoices);
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+
+    @Test
+    void publish_ClaimedEntries(@TempDir Path uploadDirectory) {
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getTurnkey().setUploadDirectory(uploadDirectory);
+        final TurnkeyUploadSink turnkeyUploadSink = new TurnkeyUploadSink(migWriter, mongoTemplate, pendingEInvoiceQueueRepository, pendingInvoiceStatsTracker, properties);
+
+        final List<ElectronicInvoice> electronicInvoices = new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+
+        for (int i = 0; i < 2; i++) {
+            final ElectronicInvoice electronicInvoice = electronicInvoiceRepository.save(newElectronicInvoice("BB", i, "63184527"));
+            electronicInvoices.add(electronicInvoice);
+            ids.add(pendingEInvoiceQueueRepository.save(new PendingEInvoiceQueue(electronicInvoice, PendingEInvoiceQueue.PendingEInvoiceType.CREATE)).getId());
+        }
+
+        final Date leaseExpiresAt = Date.from(Instant.now().plus(Duration.ofMinutes(5)));
+        mongoTemplate.updateMulti(Query.query(where("_id").in(ids)), new Update().set("status", PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED)
+                .set("claimedBy", "worker-1")
+                .set("claimId", "claim-1")
+                .set("leaseExpiresAt", leaseExpiresAt), PendingEInvoiceQueue.class);
+
+        final List<PendingEInvoiceQueue> claimedEInvoices = new ArrayList<>();
+        pendingEInvoiceQueueRepository.findAllById(ids).forEach(claimedEInvoices::add);
+
+        mongoTemplate.updateFirst(Query.query(where("_id").is(ids.get(1))), new Update().set("claimedBy", "worker-2").set("claimId", "claim-2"), PendingEInvoiceQueue.class);
+
+        assertThat(turnkeyUploadSink.publish(claimedEInvoices)).isEqualTo(1);
+
+        assertThat(uploadDirectory.resolve("C0401/SRC/C0401BB00000000.xml")).exists();
+        assertThat(uploadDirectory.resolve("C0401/SRC/C0401BB00000001.xml")).doesNotExist();
+        assertThat(pendingEInvoiceQueueRepository.findById(ids.get(0)).orElseThrow().getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED);
+        assertThat(pendingEInvoiceQueueRepository.findById(ids.get(1)).orElseThrow()).satisfies(pending -> {
+            assertThat(pending.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.CLAIMED);
+            assertThat(pending.getClaimId()).isEqualTo("claim-2");
+        });
+
+        pendingEInvoiceQueueRepository.deleteAllById(ids);
+        electronicInvoiceRepository.deleteAll(electronicInvoices);
+    }
+
+    @Test
+    void publish_DuplicateInvoiceIdentifiers(@TempDir Path uploadDirectory) {
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getTurnkey().setUploadDirectory(uploadDirectory);
+        final TurnkeyUploadSink turnkeyUploadSink = new TurnkeyUploadSink(migWriter, mongoTemplate, pendingEInvoiceQueueRepository, pendingInvoiceStatsTracker, properties);
+
+        final ElectronicInvoice electronicInvoice = electronicInvoiceRepository.save(newElectronicInvoice("BC", 0, "71528364"));
+        final PendingEInvoiceQueue publishedEInvoice = pendingEInvoiceQueueRepository.save(new PendingEInvoiceQueue(electronicInvoice, PendingEInvoiceQueue.PendingEInvoiceType.CREATE));
+        final PendingEInvoiceQueue duplicateEInvoice = pendingEInvoiceQueueRepository.save(new PendingEInvoiceQueue(electronicInvoice, PendingEInvoiceQueue.PendingEInvoiceType.CREATE));
+
+        assertThat(turnkeyUploadSink.publish(List.of(publishedEInvoice, duplicateEInvoice))).isEqualTo(1);
+
+        assertThat(uploadDirectory.resolve("C0401/SRC/C0401BC00000000.xml")).exists();
+        assertThat(publishedEInvoice.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PROCESSED);
+        assertThat(duplicateEInvoice.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+        assertThat(pendingEInvoiceQueueRepository.findById(duplicateEInvoice.getId()).orElseThrow()).satisfies(pending -> {
+            assertThat(pending.getStatus()).isEqualTo(PendingEInvoiceQueue.PendingEInvoiceStatus.PENDING);
+            assertThat(pending.getClaimId()).isNull();
+        });
+
+        pendingEInvoiceQueueRepository.deleteAll(List.of(publishedEInvoice, duplicateEInvoice));
+        electronicInvoiceRepository.delete(electronicInvoice);
+    }
+
+    private Map<Path, FileTime> listFiles(Path directory) throws IOException {
+
+        try (Stream<Path> paths = Files.walk(directory)) {
+            final Map<Path, FileTime> files = new HashMap<>();
+
+            for (Path path : paths.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                files.put(path, Files.getLastModifiedTime(path));
+            }
+
+            return files;
+        }
+    }
+}
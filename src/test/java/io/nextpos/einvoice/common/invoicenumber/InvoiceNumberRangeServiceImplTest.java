@@ -1,13 +1,19 @@
 package io.nextpos.einvoice.common.invoicenumber;
 
+import io.nextpos.einvoice.common.shared.EInvoiceProperties;
 import io.nextpos.einvoice.common.shared.InvoiceObjectNotFoundException;
 import org.apache.commons.lang3.tuple.Pair;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
+import java.time.YearMonth;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -22,9 +28,12 @@ class InvoiceNumberRangeServiceImplTest {
 
     private final InvoiceNumberRangeService invoiceNumberRangeService;
 
+    private final InvoiceNumberAllocator invoiceNumberAllocator;
+
     @Autowired
-    InvoiceNumberRangeServiceImplTest(InvoiceNumberRangeService invoiceNumberRangeService) {
+    InvoiceNumberRangeServiceImplTest(InvoiceNumberRangeService invoiceNumberRangeService, InvoiceNumberAllocator invoiceNumberAllocator) {
         this.invoiceNumberRangeService = invoiceNumberRangeService;
+        this.invoiceNumberAllocator = invoiceNumberAllocator;
     }
 
     @Test
@@ -96,6 +105,244 @@ class InvoiceNumberRangeServiceImplTest {
         assertThatThrownBy(() -> invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId())).isInstanceOf(InvoiceObjectNotFoundException.class);
     }
 
+    @Test
+    void allocateNumbersAtomically() {
+
+        String ubn = "90345678";
+        final String currentRangeIdentifier = invoiceNumberRangeService.getCurrentRangeIdentifier();
+        InvoiceNumberRange invoiceNumberRange = new InvoiceNumberRange(ubn, currentRangeIdentifier, "AM", "00000900", "00000902");
+        invoiceNumberRange.addNumberRange("AN", "00000950", "00000951");
+        invoiceNumberRangeService.saveInvoiceNumberRange(invoiceNumberRange);
+
+        assertThat(invoiceNumberAllocator.allocateNumbers(ubn, currentRangeIdentifier, 1).getLastNumber()).isEqualTo(900);
+        assertThat(invoiceNumberAllocator.allocateNumbers(ubn, currentRangeIdentifier, 1).getLastNumber()).isEqualTo(901);
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId()).findNumberRangeById("00000900")).satisfies(nr -> {
+            assertThat(nr.isStarted()).isTrue();
+            assertThat(nr.isFinished()).isFalse();
+            assertThat(nr.getRemainingNumbers()).isEqualTo(1);
+        });
+
+        final NumberBlock lastNumberInRange = invoiceNumberAllocator.allocateNumbers(ubn, currentRangeIdentifier, 1);
+        assertThat(lastNumberInRange.getPrefix()).isEqualTo("AM");
+        assertThat(lastNumberInRange.getLastNumber()).isEqualTo(902);
+
+        InvoiceNumberRange updatedInvoiceNumberRange = invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId());
+        assertThat(updatedInvoiceNumberRange.findNumberRangeById("00000900")).satisfies(nr -> {
+            assertThat(nr.isFinished()).isTrue();
+            assertThat(nr.getRemainingNumbers()).isZero();
+        });
+        assertThat(updatedInvoiceNumberRange.getRemainingNumbers()).isEqualTo(2);
+
+        final NumberBlock nextRangeNumber = invoiceNumberAllocator.allocateNumbers(ubn, currentRangeIdentifier, 1);
+        assertThat(nextRangeNumber.getPrefix()).isEqualTo("AN");
+        assertThat(nextRangeNumber.getLastNumber()).isEqualTo(950);
+        assertThat(invoiceNumberAllocator.allocateNumbers(ubn, currentRangeIdentifier, 1).getLastNumber()).isEqualTo(951);
+
+        updatedInvoiceNumberRange = invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId());
+        assertThat(updatedInvoiceNumberRange.getNumberRanges()).allSatisfy(nr -> assertThat(nr.isFinished()).isTrue());
+        assertThat(updatedInvoiceNumberRange.getRemainingNumbers()).isZero();
+        assertThatThrownBy(() -> invoiceNumberAllocator.allocateNumbers(ubn, currentRangeIdentifier, 1)).isInstanceOf(RuntimeException.class);
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange(ubn, currentRangeIdentifier);
+    }
+
+    @Test
+    void leaseInvoiceNumbers() {
+
+        String ubn = "27252210";
+        final String currentRangeIdentifier = invoiceNumberRangeService.getCurrentRangeIdentifier();
+        InvoiceNumberRange invoiceNumberRange = new InvoiceNumberRange(ubn, currentRangeIdentifier, "AB", "00000100", "00000109");
+        invoiceNumberRangeService.saveInvoiceNumberRange(invoiceNumberRange);
+
+        final EInvoiceProperties properties = new EInvoiceProperties();
+        properties.getDispensing().setLeaseBlockSize(4);
+        final InvoiceNumberLeaseDispenser dispenser = new InvoiceNumberLeaseDispenser(invoiceNumberAllocator, properties);
+
+        assertThat(dispenser.dispenseInvoiceNumber(ubn, currentRangeIdentifier)).isEqualTo("AB-00000100");
+        assertThat(dispenser.dispenseInvoiceNumber(ubn, currentRangeIdentifier)).isEqualTo("AB-00000101");
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId()).findNumberRangeById("00000100").getCurrentIncrement()).isEqualTo(103);
+
+        dispenser.destroy();
+
+        final InvoiceNumberRange.NumberRange numberRange = invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId()).findNumberRangeById("00000100");
+        assertThat(numberRange.getCurrentIncrement()).isEqualTo(101);
+        assertThat(numberRange.getRemainingNumbers()).isEqualTo(8);
+        assertThat(invoiceNumberRangeService.resolveInvoiceNumber(ubn)).isEqualTo("AB-00000102");
+
+        assertThat(dispenser.dispenseInvoiceNumber(ubn, currentRangeIdentifier)).isEqualTo("AB-00000103");
+        dispenser.releaseLeases(invoiceNumberRangeService.getRangeIdentifier(YearMonth.now().minusMonths(2)));
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId()).findNumberRangeById("00000100").getCurrentIncrement()).isEqualTo(106);
+
+        dispenser.releaseLeases(currentRangeIdentifier);
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId()).findNumberRangeById("00000100").getCurrentIncrement()).isEqualTo(103);
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange(ubn, currentRangeIdentifier);
+    }
+
+    @Test
+    void resolveInvoiceNumbers() {
+
+        String ubn = "24549210";
+        final String currentRangeIdentifier = invoiceNumberRangeService.getCurrentRangeIdentifier();
+        InvoiceNumberRange invoiceNumberRange = new InvoiceNumberRange(ubn, currentRangeIdentifier, "AC", "00000200", "00000202");
+        invoiceNumberRange.addNumberRange("AD", "00000300", "00000304");
+        invoiceNumberRangeService.saveInvoiceNumberRange(invoiceNumberRange);
+
+        assertThat(invoiceNumberRangeService.resolveInvoiceNumbers(ubn, 5)).containsExactly("AC-00000200", "AC-00000201", "AC-00000202", "AD-00000300", "AD-00000301");
+
+        final InvoiceNumberRange updatedInvoiceNumberRange = invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId());
+        assertThat(updatedInvoiceNumberRange.findNumberRangeById("00000200")).satisfies(nr -> {
+            assertThat(nr.isStarted()).isTrue();
+            assertThat(nr.isFinished()).isTrue();
+        });
+        assertThat(updatedInvoiceNumberRange.findNumberRangeById("00000300")).satisfies(nr -> {
+            assertThat(nr.isStarted()).isTrue();
+            assertThat(nr.isFinished()).isFalse();
+            assertThat(nr.getRemainingNumbers()).isEqualTo(3);
+        });
+
+        assertThatThrownBy(() -> invoiceNumberRangeService.resolveInvoiceNumbers(ubn, 4)).isInstanceOf(RuntimeException.class);
+        assertThatThrownBy(() -> invoiceNumberRangeService.resolveInvoiceNumbers(ubn, 0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> invoiceNumberRangeService.resolveInvoiceNumbers(ubn, -1)).isInstanceOf(IllegalArgumentException.class);
+        assertThat(invoiceNumberRangeService.resolveInvoiceNumbers(ubn, 3)).containsExactly("AD-00000302", "AD-00000303", "AD-00000304");
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange(ubn, currentRangeIdentifier);
+    }
+
+    @Test
+    void getInvoiceNumberRangesRunningLow() {
+
+        final String currentRangeIdentifier = invoiceNumberRangeService.getCurrentRangeIdentifier();
+        final InvoiceNumberRange lowInvoiceNumberRange = new InvoiceNumberRange("53459281", currentRangeIdentifier, "AE", "00000400", "00000404");
+        lowInvoiceNumberRange.addNumberRange("AF", "00000500", "00000549");
+        invoiceNumberRangeService.saveInvoiceNumberRange(lowInvoiceNumberRange);
+        invoiceNumberRangeService.disableOneInvoiceNumberRange("53459281", currentRangeIdentifier, "00000500");
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange("16765104", currentRangeIdentifier, "AG", "00000600", "00000699"));
+
+        assertThat(invoiceNumberRangeService.resolveInvoiceNumbers("53459281", 2)).hasSize(2);
+        assertThat(invoiceNumberRangeService.resolveInvoiceNumber("53459281")).isEqualTo("AE-00000402");
+
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRangesRunningLow(currentRangeIdentifier, 10)).satisfiesExactly(c -> {
+            assertThat(c.getUbn()).isEqualTo("53459281");
+            assertThat(c.getRemainingNumbers()).isEqualTo(2);
+        });
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange("53459281", currentRangeIdentifier);
+        invoiceNumberRangeService.deleteInvoiceNumberRange("16765104", currentRangeIdentifier);
+    }
+
+    @Test
+    void generateUnusedNumberReport(@TempDir Path tempDir) throws Exception {
+
+        final String lastRangeIdentifier = invoiceNumberRangeService.getRangeIdentifier(YearMonth.now().minusMonths(2));
+        final InvoiceNumberRange invoiceNumberRange = new InvoiceNumberRange("42817539", lastRangeIdentifier, "AH", "00000700", "00000709");
+        invoiceNumberRange.addNumberRange("AJ", "00000800", "00000804");
+        invoiceNumberRange.getNumberRanges().get(0).increment(7);
+        invoiceNumberRange.getNumberRanges().get(0).getUnusedNumbers().add(new InvoiceNumberRange.UnusedNumbers(702, 703));
+        invoiceNumberRange.getNumberRanges().get(1).setDisabled(true);
+        invoiceNumberRangeService.saveInvoiceNumberRange(invoiceNumberRange);
+
+        final Path reportFile = tempDir.resolve("unused-numbers.csv");
+        final UnusedNumberReport report = invoiceNumberRangeService.generateUnusedNumberReport(reportFile);
+
+        assertThat(report.getInvoiceNumberRangeCount()).isEqualTo(1);
+        assertThat(report.getUnusedNumberCount()).isEqualTo(10);
+
+        final String yearMonth = invoiceNumberRange.getShortRangeIdentifier();
+        assertThat(Files.readAllLines(reportFile)).containsExactly(
+                UnusedNumberReportGenerator.HEADER,
+                "42817539," + yearMonth + ",AH,00000702,00000703",
+                "42817539," + yearMonth + ",AH,00000707,00000709",
+                "42817539," + yearMonth + ",AJ,00000800,00000804");
+
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRange(invoiceNumberRange.getId()).getStatus()).isEqualTo(InvoiceNumberRange.InvoiceNumberRangeStatus.FINISHED);
+        assertThat(invoiceNumberRangeService.getInvoiceNumberRangesByLastRangeIdentifier()).isEmpty();
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange("42817539", lastRangeIdentifier);
+    }
+
+    @Test
+    void resumeUnusedNumberReport(@TempDir Path tempDir) throws Exception {
+
+        final String lastRangeIdentifier = invoiceNumberRangeService.getRangeIdentifier(YearMonth.now().minusMonths(2));
+        final InvoiceNumberRange reportedInvoiceNumberRange = new InvoiceNumberRange("58203716", lastRangeIdentifier, "AR", "00001200", "00001204");
+        reportedInvoiceNumberRange.setStatus(InvoiceNumberRange.InvoiceNumberRangeStatus.FINISHED);
+        invoiceNumberRangeService.saveInvoiceNumberRange(reportedInvoiceNumberRange);
+
+        final InvoiceNumberRange interruptedInvoiceNumberRange = new InvoiceNumberRange("47310925", lastRangeIdentifier, "AS", "00001300", "00001302");
+        interruptedInvoiceNumberRange.addNumberRange("AT", "00001400", "00001402");
+        invoiceNumberRangeService.saveInvoiceNumberRange(interruptedInvoiceNumberRange);
+
+        final String yearMonth = reportedInvoiceNumberRange.getShortRangeIdentifier();
+        final Path reportFile = tempDir.resolve("unused-numbers.csv");
+        Files.writeString(reportFile, UnusedNumberReportGenerator.HEADER + System.lineSeparator()
+                + "58203716," + yearMonth + ",AR,00001200,00001204" + System.lineSeparator()
+                + "47310925," + yearMonth + ",AS,00001300,00001302" + System.lineSeparator()
+                + "47310925," + yearMonth + ",AT,000");
+
+        final UnusedNumberReport report = invoiceNumberRangeService.generateUnusedNumberReport(reportFile);
+
+        assertThat(report.getInvoiceNumberRangeCount()).isEqualTo(1);
+        assertThat(report.getUnusedNumberCount()).isEqualTo(6);
+        assertThat(Files.readAllLines(reportFile)).containsExactly(
+                UnusedNumberReportGenerator.HEADER,
+                "58203716," + yearMonth + ",AR,00001200,00001204",
+                "47310925," + yearMonth + ",AS,00001300,00001302",
+                "47310925," + yearMonth + ",AT,00001400,00001402");
+
+        assertThat(invoiceNumberRangeService.generateUnusedNumberReport(reportFile).getInvoiceNumberRangeCount()).isZero();
+        assertThat(Files.readAllLines(reportFile)).hasSize(4);
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange("58203716", lastRangeIdentifier);
+        invoiceNumberRangeService.deleteInvoiceNumberRange("47310925", lastRangeIdentifier);
+    }
+
+    @Test
+    void skipLeasedInvoiceNumberRangesInUnusedNumberReport(@TempDir Path tempDir) throws Exception {
+
+        final String lastRangeIdentifier = invoiceNumberRangeService.getRangeIdentifier(YearMonth.now().minusMonths(2));
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange("63820174", lastRangeIdentifier, "AU", "00001500", "00001509"));
+
+        final NumberBlock numberBlock = invoiceNumberAllocator.leaseNumbers("63820174", lastRangeIdentifier, 5, "other-node", new Date(System.currentTimeMillis() + 60_000));
+        final Path reportFile = tempDir.resolve("unused-numbers.csv");
+        final UnusedNumberReport leasedReport = invoiceNumberRangeService.generateUnusedNumberReport(reportFile);
+
+        assertThat(leasedReport.getInvoiceNumberRangeCount()).isZero();
+        assertThat(leasedReport.getUnfinishedInvoiceNumberRangeCount()).isEqualTo(1);
+        assertThat(Files.readAllLines(reportFile)).containsExactly(UnusedNumberReportGenerator.HEADER);
+
+        invoiceNumberAllocator.releaseNumbers(numberBlock, 1503);
+        final UnusedNumberReport report = invoiceNumberRangeService.generateUnusedNumberReport(reportFile);
+
+        assertThat(report.getInvoiceNumberRangeCount()).isEqualTo(1);
+        assertThat(report.getUnfinishedInvoiceNumberRangeCount()).isZero();
+        assertThat(report.getUnusedNumberCount()).isEqualTo(7);
+
+        assertThatThrownBy(() -> invoiceNumberAllocator.recordUnusedNumbers(numberBlock, 1503)).isInstanceOf(IllegalStateException.class);
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange("63820174", lastRangeIdentifier);
+    }
+
+    @Test
+    void getCachedInvoiceNumberRange() {
+
+        String ubn = "61827394";
+        final String currentRangeIdentifier = invoiceNumberRangeService.getCurrentRangeIdentifier();
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange(ubn, currentRangeIdentifier, "AP", "00001000", "00001009"));
+
+        final InvoiceNumberRange invoiceNumberRange = invoiceNumberRangeService.getCurrentInvoiceNumberRange(ubn);
+        invoiceNumberRange.getNumberRanges().get(0).increment(5);
+        invoiceNumberRange.addNumberRange("AQ", "00001100", "00001109");
+
+        assertThat(invoiceNumberRangeService.hasCurrentInvoiceNumberRange(ubn)).isTrue();
+        assertThat(invoiceNumberRangeService.getCurrentInvoiceNumberRange(ubn)).isNotSameAs(invoiceNumberRange).satisfies(r -> {
+            assertThat(r.getNumberRanges()).hasSize(1);
+            assertThat(r.getNumberRanges().get(0).getRemainingNumbers()).isEqualTo(10);
+        });
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange(ubn, currentRangeIdentifier);
+    }
+
     @Test
     void getDateRange() {
 
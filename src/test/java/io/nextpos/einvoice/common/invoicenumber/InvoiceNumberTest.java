@@ -0,0 +1,31 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class InvoiceNumberTest {
+
+    @Test
+    void packAndFormat() {
+
+        final long value = InvoiceNumber.parse("AW-00002350");
+
+        assertThat(InvoiceNumber.parse("AW00002350")).isEqualTo(value);
+        assertThat(InvoiceNumber.format(value)).isEqualTo("AW-00002350");
+        assertThat(InvoiceNumber.sequence(value)).isEqualTo(2350);
+        assertThat(InvoiceNumber.of(value).getPrefix()).isEqualTo("AW");
+        assertThat(InvoiceNumber.of(value).toInternalString()).isEqualTo("AW00002350");
+
+        final char[] buffer = new char[12];
+        assertThat(InvoiceNumber.formatTo(value, false, buffer, 2)).isEqualTo(10);
+        assertThat(new String(buffer, 2, 10)).isEqualTo("AW00002350");
+
+        assertThat(InvoiceNumber.pack("AX", 0)).isGreaterThan(InvoiceNumber.pack("AW", 99999999));
+        assertThat(InvoiceNumber.toInternalInvoiceNumber("GG-10009000")).isEqualTo("GG10009000");
+
+        assertThatThrownBy(() -> InvoiceNumber.parse("aw-00002350")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> InvoiceNumber.parse("AW-0002350")).isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,70 @@
+package io.nextpos.einvoice.common.invoicenumber;
+
+import io.nextpos.einvoice.common.shared.InvoicePeriodCalendar;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+@SpringBootTest
+class PeriodRolloverJobTest {
+
+    private final PeriodRolloverJob periodRolloverJob;
+
+    private final InvoiceNumberRangeService invoiceNumberRangeService;
+
+    private final InvoicePeriodCalendar invoicePeriodCalendar;
+
+    @Autowired
+    PeriodRolloverJobTest(PeriodRolloverJob periodRolloverJob, InvoiceNumberRangeService invoiceNumberRangeService, InvoicePeriodCalendar invoicePeriodCalendar) {
+        this.periodRolloverJob = periodRolloverJob;
+        this.invoiceNumberRangeService = invoiceNumberRangeService;
+        this.invoicePeriodCalendar = invoicePeriodCalendar;
+    }
+
+    @Test
+    void prewarmPeriod() {
+
+        final String currentRangeIdentifier = invoicePeriodCalendar.getCurrentPeriod().getRangeIdentifier();
+        final String nextRangeIdentifier = invoicePeriodCalendar.getCurrentPeriod().next().getRangeIdentifier();
+
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange("36428175", currentRangeIdentifier, "AK", "00000100", "00000199"));
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange("36428175", nextRangeIdentifier, "AL", "00000100", "00000199"));
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange("75193846", currentRangeIdentifier, "AM", "00000100", "00000199"));
+
+        final PeriodRolloverProgress progress = periodRolloverJob.prewarmPeriod(invoicePeriodCalendar.getCurrentPeriod().next());
+
+        assertThat(progress.getRangeIdentifier()).isEqualTo(nextRangeIdentifier);
+        assertThat(progress.isCompleted()).isTrue();
+        assertThat(progress.getMissingUbns()).contains("75193846").doesNotContain("36428175");
+        assertThat(periodRolloverJob.getProgress()).isSameAs(progress);
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange("36428175", currentRangeIdentifier);
+        invoiceNumberRangeService.deleteInvoiceNumberRange("36428175", nextRangeIdentifier);
+        invoiceNumberRangeService.deleteInvoiceNumberRange("75193846", currentRangeIdentifier);
+    }
+
+    @Test
+    void closePeriod(@TempDir Path tempDir) throws Exception {
+
+        final InvoicePeriodCalendar.BimonthlyPeriod currentPeriod = invoicePeriodCalendar.getCurrentPeriod();
+        final String lastRangeIdentifier = currentPeriod.previous().getRangeIdentifier();
+        invoiceNumberRangeService.saveInvoiceNumberRange(new InvoiceNumberRange("29174653", lastRangeIdentifier, "AU", "00001500", "00001509"));
+
+        assertThatThrownBy(() -> periodRolloverJob.closePeriod(currentPeriod, tempDir)).isInstanceOf(IllegalStateException.class);
+
+        final UnusedNumberReport report = periodRolloverJob.closePeriod(currentPeriod.previous(), tempDir);
+
+        assertThat(report.getRangeIdentifier()).isEqualTo(lastRangeIdentifier);
+        assertThat(Files.readAllLines(tempDir.resolve("unused-numbers-" + lastRangeIdentifier + ".csv")))
+                .contains("29174653," + currentPeriod.previous().getShortRangeIdentifier() + ",AU,00001500,00001509");
+
+        invoiceNumberRangeService.deleteInvoiceNumberRange("29174653", lastRangeIdentifier);
+    }
+}
@@ -0,0 +1,44 @@
+package io.nextpos.einvoice.common.shared;
+
+import io.nextpos.einvoice.common.invoice.ElectronicInvoice;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.ZonedDateTime;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InvoicePeriodCalendarTest {
+
+    @Test
+    void getCurrentPeriod() {
+
+        final ZonedDateTime now = ZonedDateTime.of(2020, 10, 31, 23, 59, 59, 0, InvoicePeriodCalendar.ZONE_ID);
+        final InvoicePeriodCalendar calendar = new InvoicePeriodCalendar(Clock.fixed(now.toInstant(), InvoicePeriodCalendar.ZONE_ID));
+
+        final InvoicePeriodCalendar.BimonthlyPeriod period = calendar.getCurrentPeriod();
+
+        assertThat(period.getRangeIdentifier()).isEqualTo("1090910");
+        assertThat(period.getShortRangeIdentifier()).isEqualTo("10910");
+        assertThat(period.getStartDateTime()).isEqualTo(LocalDateTime.of(2020, 9, 1, 0, 0));
+        assertThat(period.getEndDateTime()).isEqualTo(LocalDateTime.of(2020, 10, 31, 23, 59, 59));
+        assertThat(period.previous().getRangeIdentifier()).isEqualTo("1090708");
+        assertThat(period.next().getRangeIdentifier()).isEqualTo("1091112");
+        assertThat(period.next().next().getRangeIdentifier()).isEqualTo("1100102");
+        assertThat(new ElectronicInvoice.InvoicePeriod(calendar).formatLongInvoicePeriod()).isEqualTo("1090910");
+    }
+
+    @Test
+    void getPeriod() {
+
+        assertThat(InvoicePeriodCalendar.getPeriod(YearMonth.of(2020, 10))).isSameAs(InvoicePeriodCalendar.getPeriod("1090910"));
+        assertThat(InvoicePeriodCalendar.getPeriod(YearMonth.of(2020, 9))).isSameAs(InvoicePeriodCalendar.getPeriod("1090910"));
+        assertThat(InvoicePeriodCalendar.getPeriod(YearMonth.of(2150, 1)).getRangeIdentifier()).isEqualTo("2390102");
+
+        final ZonedDateTime startOfPeriod = ZonedDateTime.of(2020, 11, 1, 0, 0, 0, 0, InvoicePeriodCalendar.ZONE_ID);
+        assertThat(InvoicePeriodCalendar.getPeriod(startOfPeriod.toInstant()).getRangeIdentifier()).isEqualTo("1091112");
+        assertThat(InvoicePeriodCalendar.getPeriod(startOfPeriod.toInstant().minusMillis(1)).getRangeIdentifier()).isEqualTo("1090910");
+    }
+}
@@ -0,0 +1,57 @@
+package io.nextpos.einvoice.common.shared;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StripedLockTest {
+
+    @Test
+    void withLock() {
+
+        final StripedLock stripedLock = new StripedLock(5);
+
+        assertThat(stripedLock.getStripeCount()).isEqualTo(8);
+        assertThat(stripedLock.withLock("83515813", null, () -> "done")).isEqualTo("done");
+
+        assertThat(stripedLock.getStats()).hasSize(8);
+        assertThat(stripedLock.getStats().stream().mapToLong(LockStripeStats::getAcquisitions).sum()).isEqualTo(1);
+    }
+
+    @Test
+    void withLockTimeout() throws Exception {
+
+        final StripedLock stripedLock = new StripedLock(1);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            executor.submit(() -> stripedLock.withLock("83515813", null, () -> {
+                locked.countDown();
+                try {
+                    return release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+
+            assertThat(locked.await(5, TimeUnit.SECONDS)).isTrue();
+
+            assertThatThrownBy(() -> stripedLock.withLock("27252210", Duration.ofMillis(50), () -> "done"))
+                    .isInstanceOf(LockTimeoutException.class);
+
+            assertThat(stripedLock.getStats().get(0).getTimeouts()).isEqualTo(1);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}